@@ -29,17 +29,36 @@ CREATE TABLE IF NOT EXISTS messages (
     sender VARCHAR(255),
     target VARCHAR(255),
     is_group BOOLEAN,
+    -- 'private_<a>_<b>' (a y b en orden) o 'group_<nombre>', igual que el historial del servidor
+    conversation_key VARCHAR(520) NOT NULL,
     content TEXT
 );
 
+-- Bases creadas antes de conversation_key: agregar la columna y rellenarla una vez
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS conversation_key VARCHAR(520);
+UPDATE messages SET conversation_key = CASE
+    WHEN is_group THEN 'group_' || target
+    ELSE 'private_' || LEAST(sender COLLATE "C", target COLLATE "C")
+         || '_' || GREATEST(sender COLLATE "C", target COLLATE "C")
+END
+WHERE conversation_key IS NULL;
+ALTER TABLE messages ALTER COLUMN conversation_key SET NOT NULL;
+
+-- Historial por conversación con paginación por id (WHERE conversation_key = ? AND id < ? ORDER BY id DESC LIMIT ?).
+-- En una tabla grande ya en uso, crear el índice con CREATE INDEX CONCURRENTLY fuera de una transacción.
+CREATE INDEX IF NOT EXISTS messages_conversation_id_idx ON messages (conversation_key, id);
+
 CREATE TABLE IF NOT EXISTS audio_files (
     id BIGSERIAL PRIMARY KEY,
     created_at TIMESTAMP NOT NULL,
     sender VARCHAR(255),
     target VARCHAR(255),
     is_group BOOLEAN,
+    -- SHA-256 del audio en el almacén por contenido del servidor (src/audio_blobs)
+    blob_id CHAR(64),
     file_path TEXT
 );
+ALTER TABLE audio_files ADD COLUMN IF NOT EXISTS blob_id CHAR(64);
 
 -- Otorgar permisos a chatapp_user
 GRANT INSERT, SELECT, UPDATE ON ALL TABLES IN SCHEMA public TO chatapp_user;
@@ -24,15 +24,32 @@ app.use((req, res, next) => {
     next();
 });
 
+// ?since=N pide solo los cambios desde la versión N; sin él se devuelve la lista completa
+function parseSince(query) {
+    const since = parseInt(query.since, 10);
+    return isNaN(since) ? undefined : since;
+}
+
+function sendChanges(res, response) {
+    if (response.status !== 'ok') {
+        return res.status(200).json({ version: 0, full: true, users: [], groups: [] });
+    }
+    const { status, ...changes } = response;
+    res.status(200).json(changes);
+}
+
 // Get connected users
 app.get('/users', async (req, res) => {
     try {
         console.log('GET /users - Solicitando usuarios conectados');
-        const response = await delegate.getConnectedUsers();
+        const since = parseSince(req.query);
+        const response = await delegate.getConnectedUsers(since);
 
         console.log('Response from Java server:', response);
 
-        if (response.status === 'ok' && response.users) {
+        if (since !== undefined) {
+            sendChanges(res, response);
+        } else if (response.status === 'ok' && response.users) {
             res.status(200).json(response.users);
         } else {
             res.status(200).json([]);
@@ -47,11 +64,14 @@ app.get('/users', async (req, res) => {
 app.get('/groups', async (req, res) => {
     try {
         console.log('GET /groups - Solicitando grupos');
-        const response = await delegate.getAllGroups();
+        const since = parseSince(req.query);
+        const response = await delegate.getAllGroups(since);
 
         console.log('Response from Java server:', response);
 
-        if (response.status === 'ok' && response.groups) {
+        if (since !== undefined) {
+            sendChanges(res, response);
+        } else if (response.status === 'ok' && response.groups) {
             res.status(200).json(response.groups);
         } else {
             res.status(200).json([]);
@@ -132,6 +152,28 @@ app.post('/group', async (req, res) => {
 });
 
 
+// ?limit=&before=&after= piden una página; sin ellos se devuelve el historial completo
+function parsePaging(query) {
+    const paging = {};
+    for (const key of ['limit', 'before', 'after']) {
+        if (query[key] !== undefined && !isNaN(parseInt(query[key], 10))) {
+            paging[key] = parseInt(query[key], 10);
+        }
+    }
+    return paging;
+}
+
+function sendHistory(res, response, paging) {
+    if (response.status !== 'ok' || !response.history) {
+        return res.status(200).json(Object.keys(paging).length ? { history: [] } : []);
+    }
+    if (!Object.keys(paging).length) {
+        return res.status(200).json(response.history);
+    }
+    const { history, firstSeq, lastSeq, total, hasMoreBefore, hasMoreAfter } = response;
+    res.status(200).json({ history, firstSeq, lastSeq, total, hasMoreBefore, hasMoreAfter });
+}
+
 // Get group history
 app.get('/group/:name', async (req, res) => {
     try {
@@ -142,13 +184,9 @@ app.get('/group/:name', async (req, res) => {
         }
 
         console.log('GET /group/:name - Getting history for group:', groupName);
-        const response = await delegate.getGroupHistory(groupName);
-
-        if (response.status === 'ok' && response.history) {
-            res.status(200).json(response.history);
-        } else {
-            res.status(200).json([]);
-        }
+        const paging = parsePaging(req.query);
+        const response = await delegate.getGroupHistory(groupName, paging);
+        sendHistory(res, response, paging);
     } catch (err) {
         console.error('Error getting group history:', err);
         res.status(200).json([]);
@@ -162,25 +200,52 @@ app.post('/register', async (req, res) => {
         console.log('POST /register -', { username, sessionId });
         delegate.setCurrentUser(username);
         const response = await delegate.registerUser(username, sessionId);
-        res.status(200).json(response);
+        // Lo que llegó mientras no estaba: un lote por conversación, se confirma con POST /pending/ack
+        res.status(200).json({ ...response, pending: delegate.takePendingMessages(username) });
     } catch (err) {
         console.error('Error registering user:', err);
         res.status(500).json({ error: err.message });
     }
 });
 
+// Heartbeat de la sesión (el servidor vence las sesiones inactivas)
+app.post('/heartbeat', async (req, res) => {
+    const { sessionId } = req.body;
+    try {
+        if (!sessionId) {
+            return res.status(400).json({ status: 'error', message: 'sessionId is required' });
+        }
+        const response = await delegate.heartbeat(sessionId);
+        res.status(200).json(response);
+    } catch (err) {
+        console.error('Error sending heartbeat:', err);
+        res.status(500).json({ status: 'error', message: err.message });
+    }
+});
+
+// Ack de un lote de mensajes pendientes; la respuesta trae el lote siguiente si lo hay
+app.post('/pending/ack', async (req, res) => {
+    const { username, sessionId, conversation, seq } = req.body;
+    try {
+        if (!sessionId || !conversation || seq === undefined) {
+            return res.status(400).json({ status: 'error', message: 'sessionId, conversation and seq are required' });
+        }
+        const response = await delegate.ackPending(sessionId, conversation, seq);
+        res.status(200).json({ ...response, pending: delegate.takePendingMessages(username) });
+    } catch (err) {
+        console.error('Error acknowledging pending messages:', err);
+        res.status(500).json({ status: 'error', message: err.message });
+    }
+});
+
 // Update private history endpoint
 app.get('/private/:currentUser/:user', async (req, res) => {
     try {
         const { currentUser, user } = req.params;
         console.log('GET /private/:currentUser/:user -', { currentUser, user });
-        const response = await delegate.getPrivateHistory(currentUser, user);
-
-        if (response.status === 'ok' && response.history) {
-            res.status(200).json(response.history);
-        } else {
-            res.status(200).json([]);
-        }
+        const paging = parsePaging(req.query);
+        const response = await delegate.getPrivateHistory(currentUser, user, paging);
+        sendHistory(res, response, paging);
     } catch (err) {
         console.error('Error getting private history:', err);
         res.status(200).json([]);
@@ -208,6 +273,46 @@ app.delete('/groups/:name', async (req, res) => {
   }
 });
 
+// Pushes en vivo del servidor Java (Server-Sent Events): cada navegador abre
+// GET /events?username=... y recibe los mensajes dirigidos a ese usuario
+const subscribers = new Map(); // usuario -> Set de respuestas abiertas
+
+delegate.on('userPush', (username, message) => {
+    const targets = username === null ? [...subscribers.values()] : [subscribers.get(username)];
+    const event = `data: ${JSON.stringify(message)}\n\n`;
+    for (const set of targets) {
+        for (const res of set || []) res.write(event);
+    }
+});
+
+app.get('/events', async (req, res) => {
+    const { username } = req.query;
+    if (!username) {
+        return res.status(400).json({ status: 'error', message: 'username is required' });
+    }
+    res.writeHead(200, {
+        'Content-Type': 'text/event-stream',
+        'Cache-Control': 'no-cache',
+        Connection: 'keep-alive'
+    });
+    res.write(': ok\n\n');
+
+    const set = subscribers.get(username) || new Set();
+    set.add(res);
+    subscribers.set(username, set);
+    req.on('close', () => {
+        set.delete(res);
+        if (set.size === 0 && subscribers.get(username) === set) subscribers.delete(username);
+    });
+
+    // Sin conexión con el servidor Java no llegan pushes: se abre ya
+    try {
+        await delegate.connectToServer();
+    } catch (err) {
+        console.error('Error connecting for events:', err.message);
+    }
+});
+
 // Health check endpoint
 app.get('/health', (req, res) => {
     res.status(200).json({ status: 'OK', message: 'Proxy server is running' });
@@ -227,6 +332,8 @@ app.listen(PORT, () => {
     console.log('  GET  /private/:user  - Get private history');
     console.log('  GET  /group/:name    - Get group history');
     console.log('  POST /register       - Register user');
+    console.log('  POST /heartbeat      - Keep user session alive');
     console.log('  DELETE /groups/:name - Delete a group');
+    console.log('  GET  /events         - Live pushes (SSE)');
     console.log('  GET  /health         - Health check');
 });
\ No newline at end of file
@@ -1,10 +1,95 @@
 const net = require('net');
+const { EventEmitter } = require('events');
 
-class DelegateService {
+const REQUEST_TIMEOUT_MS = 10000;
+
+// Mantiene una única conexión persistente con el servidor Java. Cada petición
+// lleva un requestId y las respuestas se emparejan por ese id; los mensajes sin
+// requestId son pushes en vivo y se emiten como evento 'push'. Los pushes de
+// mensajes se reparten además por usuario como evento 'userPush' (ver
+// routePush), que index.js manda a los navegadores por GET /events.
+class DelegateService extends EventEmitter {
     constructor() {
+        super();
         this.serverPort = 12345;
         this.serverHost = 'localhost';
         this.currentUser = null;
+
+        this.socket = null;
+        this.connecting = null;
+        this.buffer = '';
+        this.nextRequestId = 1;
+        this.pending = new Map();
+
+        // Lotes de mensajes que llegaron mientras el usuario no estaba (type
+        // 'pendingMessages'): el servidor los manda antes de la respuesta del
+        // registro o del ack, así que quedan aquí hasta que la ruta los tome.
+        this.deliveries = new Map();
+
+        // Miembros de cada grupo, para repartir los pushes de grupo: el
+        // servidor manda uno solo por conexión aunque el proxy registre a
+        // varios miembros. Se actualiza con deltas de la acción 10.
+        this.groupMembers = new Map();
+        this.groupsVersion = 0;
+        // Los pushes se reparten en orden aunque alguno espere la lista de grupos
+        this.routing = Promise.resolve();
+
+        this.on('push', (message) => {
+            if (message.type === 'pendingMessages') {
+                const batches = this.deliveries.get(message.user) || [];
+                batches.push(message);
+                this.deliveries.set(message.user, batches);
+            } else {
+                this.routing = this.routing
+                    .then(() => this.routePush(message))
+                    .catch((err) => console.error('Error routing push:', err.message));
+            }
+        });
+    }
+
+    // Emite 'userPush' (usuario, mensaje) por cada usuario al que va dirigido el push
+    async routePush(message) {
+        switch (message.type) {
+            case 'privateMessage':
+                this.emit('userPush', message.recipient, message);
+                break;
+            case 'voiceNote':
+            case 'groupMessage': {
+                if (message.recipient) {
+                    this.emit('userPush', message.recipient, message);
+                    break;
+                }
+                await this.refreshGroups();
+                for (const member of this.groupMembers.get(message.group) || []) {
+                    if (member !== message.sender) {
+                        this.emit('userPush', member, message);
+                    }
+                }
+                break;
+            }
+            default:
+                // presence, historyGap, ...: sirven a todos
+                this.emit('userPush', null, message);
+        }
+    }
+
+    async refreshGroups() {
+        const response = await this.getAllGroups(this.groupsVersion);
+        if (response.status !== 'ok') return;
+        if (response.full) this.groupMembers.clear();
+        for (const group of response.groups || []) {
+            this.groupMembers.set(group.name, new Set(group.members || []));
+        }
+        for (const name of response.deleted || []) {
+            this.groupMembers.delete(name);
+        }
+        this.groupsVersion = response.version;
+    }
+
+    takePendingMessages(username) {
+        const batches = this.deliveries.get(username) || [];
+        this.deliveries.delete(username);
+        return batches;
     }
 
     async setCurrentUser(username) {
@@ -12,81 +97,104 @@ class DelegateService {
     }
 
     async connectToServer() {
-        return new Promise((resolve, reject) => {
+        if (this.socket) return this.socket;
+        if (this.connecting) return this.connecting;
+
+        this.connecting = new Promise((resolve, reject) => {
             const socket = new net.Socket();
-            socket.setTimeout(10000);
+            socket.setKeepAlive(true);
+            socket.setNoDelay(true);
+            // Decodifica UTF-8 entre chunks: un carácter partido entre dos no se corrompe
+            socket.setEncoding('utf8');
 
             socket.connect(this.serverPort, this.serverHost, () => {
-                console.log('Connected to Java server');
+                console.log('Connected to Java server (persistent session)');
+                this.socket = socket;
+                this.connecting = null;
                 resolve(socket);
             });
 
+            socket.on('data', (chunk) => this.onData(chunk));
+
             socket.on('error', (err) => {
                 console.error('Socket error:', err.message);
-                reject(err);
+                if (this.connecting) {
+                    this.connecting = null;
+                    reject(err);
+                }
             });
 
-            socket.on('timeout', () => {
-                socket.destroy();
-                reject(new Error('Connection timeout'));
+            socket.on('close', () => {
+                console.log('Connection to Java server closed');
+                this.socket = null;
+                this.buffer = '';
+                this.failPending(new Error('Connection closed'));
             });
         });
+
+        return this.connecting;
     }
 
-    async sendRequest(action, data) {
-        return new Promise(async (resolve, reject) => {
-            let socket;
-            try {
-                socket = await this.connectToServer();
-
-                // Incluimos el usuario actual en cada petición
-                const request = JSON.stringify({
-                    action,
-                    currentUser: this.currentUser || 'unknown',
-                    data
-                }) + '\n';
-
-                console.log('Sending request:', { action, data, currentUser: this.currentUser });
-                socket.write(request);
-
-                let buffer = '';
-                socket.on('data', (data) => {
-                    buffer += data.toString();
-
-                    if (buffer.includes('\n')) {
-                        const response = buffer.trim();
-                        socket.end();
-                        console.log('Received response:', response);
-
-                        try {
-                            const parsed = JSON.parse(response);
-                            resolve(parsed);
-                        } catch {
-                            resolve({ message: response });
-                        }
-                    }
-                });
+    onData(chunk) {
+        this.buffer += chunk;
 
-                socket.on('error', (err) => {
-                    console.error('Socket error:', err);
-                    socket.destroy();
-                    reject(err);
-                });
-
-                socket.on('close', () => {
-                    if (buffer && !buffer.includes('\n')) {
-                        try {
-                            resolve(JSON.parse(buffer));
-                        } catch {
-                            resolve({ message: buffer || 'Connection closed' });
-                        }
-                    }
-                });
+        let newline;
+        while ((newline = this.buffer.indexOf('\n')) >= 0) {
+            const line = this.buffer.slice(0, newline).trim();
+            this.buffer = this.buffer.slice(newline + 1);
+            if (!line) continue;
+
+            let message;
+            try {
+                message = JSON.parse(line);
+            } catch {
+                console.error('Invalid message from Java server:', line);
+                continue;
+            }
 
-            } catch (err) {
-                if (socket) socket.destroy();
-                reject(err);
+            if (message.requestId !== undefined && this.pending.has(message.requestId)) {
+                const { resolve, timer } = this.pending.get(message.requestId);
+                this.pending.delete(message.requestId);
+                clearTimeout(timer);
+                delete message.requestId;
+                console.log('Received response:', message);
+                resolve(message);
+            } else {
+                this.emit('push', message);
             }
+        }
+    }
+
+    failPending(err) {
+        for (const { reject, timer } of this.pending.values()) {
+            clearTimeout(timer);
+            reject(err);
+        }
+        this.pending.clear();
+    }
+
+    async sendRequest(action, data) {
+        const socket = await this.connectToServer();
+        const requestId = this.nextRequestId++;
+
+        return new Promise((resolve, reject) => {
+            const timer = setTimeout(() => {
+                this.pending.delete(requestId);
+                reject(new Error('Request timeout'));
+            }, REQUEST_TIMEOUT_MS);
+
+            this.pending.set(requestId, { resolve, reject, timer });
+
+            // Incluimos el usuario actual en cada petición
+            const request = JSON.stringify({
+                action,
+                requestId,
+                currentUser: this.currentUser || 'unknown',
+                data
+            }) + '\n';
+
+            console.log('Sending request:', { action, requestId, data, currentUser: this.currentUser });
+            socket.write(request);
         });
     }
 
@@ -113,10 +221,12 @@ class DelegateService {
         });
     }
 
-    async getPrivateHistory(currentUser, otherUser) {
+    // paging: { limit, before, after } opcionales (números de secuencia)
+    async getPrivateHistory(currentUser, otherUser, paging = {}) {
         return this.sendRequest('7', {
             currentUser: currentUser,
-            user: otherUser
+            user: otherUser,
+            ...paging
         });
     }
 
@@ -127,18 +237,30 @@ class DelegateService {
         });
     }
 
-    async getGroupHistory(groupName) {
+    // Mantiene viva la sesión en el servidor; si venció responde error y hay que registrarse de nuevo
+    async heartbeat(sessionId) {
+        return this.sendRequest('13', { sessionId });
+    }
+
+    // Confirma hasta seq de la conversación; si queda más, el servidor manda el lote siguiente
+    async ackPending(sessionId, conversation, seq) {
+        return this.sendRequest('14', { sessionId, conversation, seq });
+    }
+
+    async getGroupHistory(groupName, paging = {}) {
         return this.sendRequest('8', {
-            groupName
+            groupName,
+            ...paging
         });
     }
 
-    async getConnectedUsers() {
-        return this.sendRequest('9', {});
+    // since: versión que ya tiene el cliente; el servidor responde solo los cambios
+    async getConnectedUsers(since) {
+        return this.sendRequest('9', since === undefined ? {} : { since });
     }
 
-    async getAllGroups() {
-        return this.sendRequest('10', {});
+    async getAllGroups(since) {
+        return this.sendRequest('10', since === undefined ? {} : { since });
     }
 
     async deleteGroup(groupName) {
@@ -0,0 +1,194 @@
+package com.icesi.chatapp.Client;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.*;
+
+/**
+ * Nota de voz comprimida: el PCM se pasa a 16 kHz mono (filtro pasa bajos y
+ * remuestreo) y se codifica en IMA ADPCM, 4 bits por muestra. Un segundo de
+ * voz ocupa 8000 bytes contra 88200 del WAV de 44.1 kHz que graba el
+ * cliente; para voz la banda hasta 8 kHz alcanza.
+ *
+ * El archivo es {@code "IMAD" | int muestrasPorSegundo | int muestras} y
+ * después los nibbles (el bajo primero), con el predictor y el índice de
+ * paso en 0 al empezar. Una subida cortada llega con el resto en ceros (o
+ * sin esos bytes): desde el último byte distinto de cero se repite la última
+ * muestra. Decodificar los ceros como nibbles corre el predictor en
+ * {@code paso >> 3} por muestra y deja un escalón de continua.
+ */
+class AdpcmCodec implements VoiceCodec {
+    static final int MUESTRAS_POR_SEGUNDO = 16000;
+    private static final byte[] MAGIC = { 'I', 'M', 'A', 'D' };
+
+    private static final int[] PASOS = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707,
+            1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845,
+            8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794,
+            32767 };
+    private static final int[] AJUSTE_INDICE = { -1, -1, -1, -1, 2, 4, 6, 8 };
+
+    @Override
+    public String extension() {
+        return ".ima";
+    }
+
+    @Override
+    public byte[] codificar(byte[] pcm, AudioFormat formato) throws IOException {
+        short[] muestras = remuestrear(aMono(pcm, formato), Math.round(formato.getSampleRate()), MUESTRAS_POR_SEGUNDO);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(12 + (muestras.length + 1) / 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeInt(MUESTRAS_POR_SEGUNDO);
+        out.writeInt(muestras.length);
+
+        int predictor = 0;
+        int indice = 0;
+        int pendiente = -1;
+        for (short muestra : muestras) {
+            int paso = PASOS[indice];
+            int diferencia = muestra - predictor;
+            int nibble = 0;
+            if (diferencia < 0) {
+                nibble = 8;
+                diferencia = -diferencia;
+            }
+            if (diferencia >= paso) {
+                nibble |= 4;
+                diferencia -= paso;
+            }
+            if (diferencia >= paso >> 1) {
+                nibble |= 2;
+                diferencia -= paso >> 1;
+            }
+            if (diferencia >= paso >> 2) {
+                nibble |= 1;
+            }
+            // El codificador sigue al decodificador para no acumular error
+            predictor = siguiente(predictor, paso, nibble);
+            indice = Math.clamp(indice + AJUSTE_INDICE[nibble & 7], 0, PASOS.length - 1);
+
+            if (pendiente < 0) {
+                pendiente = nibble;
+            } else {
+                out.writeByte(pendiente | nibble << 4);
+                pendiente = -1;
+            }
+        }
+        if (pendiente >= 0) {
+            out.writeByte(pendiente);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Mira (sin consumir) si in empieza con la cabecera ADPCM; in tiene que soportar mark/reset
+    static boolean esAdpcm(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        byte[] cabecera = in.readNBytes(MAGIC.length);
+        in.reset();
+        return java.util.Arrays.equals(cabecera, MAGIC);
+    }
+
+    // PCM de 16 bits little endian, listo para un Clip o un SourceDataLine
+    static AudioInputStream decodificar(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        data.readFully(new byte[MAGIC.length]);
+        int muestrasPorSegundo = data.readInt();
+        int muestras = data.readInt();
+        if (muestrasPorSegundo <= 0 || muestras < 0 || muestras > Integer.MAX_VALUE / 2) {
+            throw new IOException("Cabecera ADPCM inválida");
+        }
+        byte[] codificado = data.readNBytes((muestras + 1) / 2);
+        // Si el archivo está cortado solo se decodifica lo que llegó
+        muestras = (int) Math.min(muestras, 2L * codificado.length);
+
+        // El relleno en ceros de una subida cortada no se decodifica: mantiene la última muestra
+        int datos = codificado.length;
+        while (datos > 0 && codificado[datos - 1] == 0) {
+            datos--;
+        }
+
+        byte[] pcm = new byte[muestras * 2];
+        int predictor = 0;
+        int indice = 0;
+        for (int i = 0; i < muestras; i++) {
+            if (i / 2 < datos) {
+                int b = codificado[i / 2];
+                int nibble = (i & 1) == 0 ? b & 0x0F : b >> 4 & 0x0F;
+                predictor = siguiente(predictor, PASOS[indice], nibble);
+                indice = Math.clamp(indice + AJUSTE_INDICE[nibble & 7], 0, PASOS.length - 1);
+            }
+            pcm[2 * i] = (byte) predictor;
+            pcm[2 * i + 1] = (byte) (predictor >> 8);
+        }
+        AudioFormat formato = new AudioFormat(muestrasPorSegundo, 16, 1, true, false);
+        return new AudioInputStream(new ByteArrayInputStream(pcm), formato, muestras);
+    }
+
+    private static int siguiente(int predictor, int paso, int nibble) {
+        int delta = paso >> 3;
+        if ((nibble & 4) != 0) {
+            delta += paso;
+        }
+        if ((nibble & 2) != 0) {
+            delta += paso >> 1;
+        }
+        if ((nibble & 1) != 0) {
+            delta += paso >> 2;
+        }
+        return Math.clamp((nibble & 8) != 0 ? predictor - delta : predictor + delta, Short.MIN_VALUE, Short.MAX_VALUE);
+    }
+
+    private static short[] aMono(byte[] pcm, AudioFormat formato) throws IOException {
+        if (formato.getSampleSizeInBits() != 16 || formato.getEncoding() != AudioFormat.Encoding.PCM_SIGNED) {
+            throw new IOException("Se esperaba PCM con signo de 16 bits: " + formato);
+        }
+        int canales = formato.getChannels();
+        boolean bigEndian = formato.isBigEndian();
+        short[] mono = new short[pcm.length / (2 * canales)];
+        for (int i = 0; i < mono.length; i++) {
+            int suma = 0;
+            for (int c = 0; c < canales; c++) {
+                int p = 2 * (i * canales + c);
+                suma += bigEndian ? (short) (pcm[p] << 8 | pcm[p + 1] & 0xFF) : (short) (pcm[p + 1] << 8 | pcm[p] & 0xFF);
+            }
+            mono[i] = (short) (suma / canales);
+        }
+        return mono;
+    }
+
+    /*
+     * Cada muestra de salida es la suma de las de entrada cercanas pesadas con
+     * un sinc con ventana de Hann, cortado un poco antes de la mitad de la
+     * frecuencia más baja para que lo que no entra en 16 kHz no se pliegue
+     * como ruido. Se normaliza por la suma de los pesos (también en los bordes).
+     */
+    private static short[] remuestrear(short[] entrada, int desde, int hasta) {
+        if (desde == hasta) {
+            return entrada;
+        }
+        double razon = (double) hasta / desde;
+        double corte = 0.45 * Math.min(1, razon); // ciclos por muestra de entrada
+        int mitad = (int) Math.ceil(4 / corte);
+        short[] salida = new short[(int) ((long) entrada.length * hasta / desde)];
+        for (int n = 0; n < salida.length; n++) {
+            double t = n / razon;
+            int centro = (int) t;
+            double suma = 0;
+            double pesos = 0;
+            for (int k = Math.max(0, centro - mitad + 1); k <= Math.min(entrada.length - 1, centro + mitad); k++) {
+                double x = t - k;
+                double ventana = 0.5 + 0.5 * Math.cos(Math.PI * x / mitad);
+                double arg = 2 * Math.PI * corte * x;
+                double peso = (x == 0 ? 1 : Math.sin(arg) / arg) * ventana;
+                suma += entrada[k] * peso;
+                pesos += peso;
+            }
+            salida[n] = (short) Math.clamp(Math.round(suma / pesos), Short.MIN_VALUE, Short.MAX_VALUE);
+        }
+        return salida;
+    }
+}
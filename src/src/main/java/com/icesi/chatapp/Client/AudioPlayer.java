@@ -6,7 +6,7 @@ import java.io.IOException;
 
 public class AudioPlayer {
     public static void reproducirAudio(File archivo) {
-        try (AudioInputStream audioStream = AudioSystem.getAudioInputStream(archivo)) {
+        try (AudioInputStream audioStream = VoiceCodec.abrir(archivo)) {
             Clip clip = AudioSystem.getClip();
             clip.open(audioStream);
             clip.start();
@@ -92,8 +92,7 @@ public class AudioSender {
     }
 
     public static void reproducirAudioDesdeBytes(byte[] audioBytes) {
-        try (AudioInputStream ais = AudioSystem.getAudioInputStream(
-                new java.io.ByteArrayInputStream(audioBytes))) {
+        try (AudioInputStream ais = VoiceCodec.abrir(new java.io.ByteArrayInputStream(audioBytes))) {
 
             AudioFormat formato = ais.getFormat();
             DataLine.Info info = new DataLine.Info(SourceDataLine.class, formato);
@@ -267,28 +267,15 @@ public class Client {
                 return;
             }
 
-            File archivoTemporal = new File("temp_audio_" + System.currentTimeMillis() + ".wav");
+            // El codec (chat.voice.codec) decide qué se sube; el servidor guarda y reenvía esos bytes
+            VoiceCodec codec = VoiceCodec.configurado();
+            byte[] nota = codec.codificar(audioData, formato);
+            System.out.println("Nota de voz: " + audioData.length + " bytes grabados, " + nota.length + " a enviar");
 
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(audioData);
-                 AudioInputStream ais = new AudioInputStream(bais, formato, audioData.length / formato.getFrameSize())) {
-                AudioSystem.write(ais, AudioFileFormat.Type.WAVE, archivoTemporal);
-            }
-
-            dataOut.writeUTF(archivoTemporal.getName());
-            dataOut.writeLong(archivoTemporal.length());
-
-            try (FileInputStream fis = new FileInputStream(archivoTemporal)) {
-                byte[] bufferEnvio = new byte[4096];
-                int bytesLeidos;
-                while ((bytesLeidos = fis.read(bufferEnvio)) > 0) {
-                    dataOut.write(bufferEnvio, 0, bytesLeidos);
-                }
-                dataOut.flush();
-            }
-
-            if (!archivoTemporal.delete()) {
-                System.err.println("Advertencia: No se pudo eliminar el archivo temporal: " + archivoTemporal.getName());
-            }
+            dataOut.writeUTF("audio_" + System.currentTimeMillis() + codec.extension());
+            dataOut.writeLong(nota.length);
+            dataOut.write(nota);
+            dataOut.flush();
 
         } catch (Exception e) {
             System.err.println(" Error al grabar/enviar audio: " + e.getMessage());
@@ -304,7 +291,7 @@ public class Client {
                 return false;
             }
 
-            try (AudioInputStream audioStream = AudioSystem.getAudioInputStream(archivoAudio)) {
+            try (AudioInputStream audioStream = VoiceCodec.abrir(archivoAudio)) {
                 AudioFormat format = audioStream.getFormat();
 
                 Clip clip = AudioSystem.getClip();
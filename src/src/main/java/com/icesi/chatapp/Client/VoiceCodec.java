@@ -0,0 +1,48 @@
+package com.icesi.chatapp.Client;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.*;
+
+/**
+ * Etapa de codificación de las notas de voz: lo que se graba (PCM) pasa por
+ * el codec antes de subirse, y el servidor guarda y reenvía esos mismos bytes
+ * sin tocarlos. Al reproducir, {@link #abrir(File)} reconoce el formato por
+ * sus primeros bytes, así que un cliente puede escuchar notas grabadas con
+ * cualquiera de los codecs.
+ *
+ * Se elige con {@code -Dchat.voice.codec}: {@code adpcm} (por defecto, 16 kHz
+ * IMA ADPCM, unas 11 veces menos que el WAV) o {@code wav} (el PCM tal como
+ * se grabó).
+ */
+public interface VoiceCodec {
+
+    // Extensión del archivo que se sube (el receptor la ve en el nombre)
+    String extension();
+
+    // PCM con signo de 16 bits (mono o estéreo) a los bytes que se suben
+    byte[] codificar(byte[] pcm, AudioFormat formato) throws IOException;
+
+    static VoiceCodec configurado() {
+        String nombre = System.getProperty("chat.voice.codec", "adpcm");
+        return switch (nombre.trim().toLowerCase()) {
+            case "adpcm" -> new AdpcmCodec();
+            case "wav" -> new WavCodec();
+            default -> throw new IllegalArgumentException("Codec de voz desconocido: " + nombre);
+        };
+    }
+
+    static AudioInputStream abrir(File archivo) throws IOException, UnsupportedAudioFileException {
+        return abrir(new BufferedInputStream(new FileInputStream(archivo)));
+    }
+
+    // in tiene que soportar mark/reset (para mirar la cabecera)
+    static AudioInputStream abrir(InputStream in) throws IOException, UnsupportedAudioFileException {
+        if (AdpcmCodec.esAdpcm(in)) {
+            return AdpcmCodec.decodificar(in);
+        }
+        return AudioSystem.getAudioInputStream(in);
+    }
+}
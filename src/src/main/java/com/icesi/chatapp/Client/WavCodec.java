@@ -0,0 +1,28 @@
+package com.icesi.chatapp.Client;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+// Sin compresión: el PCM grabado dentro de un WAV (lo que se subía antes)
+class WavCodec implements VoiceCodec {
+
+    @Override
+    public String extension() {
+        return ".wav";
+    }
+
+    @Override
+    public byte[] codificar(byte[] pcm, AudioFormat formato) throws IOException {
+        ByteArrayOutputStream wav = new ByteArrayOutputStream(pcm.length + 44);
+        try (AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(pcm), formato,
+                pcm.length / formato.getFrameSize())) {
+            AudioSystem.write(ais, AudioFileFormat.Type.WAVE, wav);
+        }
+        return wav.toByteArray();
+    }
+}
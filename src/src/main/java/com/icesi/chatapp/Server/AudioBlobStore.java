@@ -0,0 +1,353 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonObject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Audios de las notas de voz guardados por contenido: el id de un audio es el
+ * SHA-256 de sus bytes, así que un clip reenviado o mandado a varias
+ * conversaciones ocupa un solo archivo. El archivo vive en
+ * {@code ab/cd/<id>} (los dos primeros bytes del id como carpetas) para que
+ * ninguna carpeta junte demasiados archivos.
+ *
+ * Cada registro de audio del historial cuenta como una referencia de su
+ * conversación. Al borrar la conversación se sueltan sus referencias y el
+ * audio que queda sin ninguna se borra. Las referencias se anexan a
+ * {@code refs.log} como los cursores de {@link PendingDeliveries}; al abrir se
+ * reproduce el archivo, se reescribe compacto y se borran los audios que no
+ * tienen referencias (subidos pero nunca guardados en el historial). Por eso
+ * {@link #ref} hace fsync antes de volver: el registro del historial se anexa
+ * después, así que nunca hay en disco un audio del historial sin su referencia.
+ *
+ * Entre {@code put} y la referencia del historial el audio queda fijado: un
+ * {@link #release} de otra conversación que lo deje sin referencias no lo
+ * borra mientras alguien lo esté guardando. Quien llama a {@code put} tiene
+ * que llamar a {@link #unpin} cuando terminó (haya guardado o no).
+ *
+ * Sin archivo de referencias (backend memory) las cuentas viven en memoria y
+ * no se borra ningún audio: otra ejecución con historial en disco puede
+ * estar usándolos.
+ */
+final class AudioBlobStore {
+    private static final String REFS_FILE = "refs.log";
+    private static final String UPLOADS = "tmp";
+    private static final byte REF = 1;
+    private static final byte CLEAR = 2;
+
+    // Un audio guardado: id (hex del SHA-256) y su archivo, que no cambia nunca
+    record Blob(String id, File file) {
+    }
+
+    private final File dir;
+    private final File refsFile;
+    // conversación -> (audio -> referencias) y el total por audio
+    private final Map<String, Map<String, Integer>> byConversation = new HashMap<>();
+    private final Map<String, Integer> refs = new HashMap<>();
+    // Audios devueltos por put que todavía no se soltaron con unpin
+    private final Map<String, Integer> pins = new HashMap<>();
+    private DataOutputStream out;
+    // El archivo debajo de out, para el fsync de cada referencia
+    private FileOutputStream outFile;
+    private long records;
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+
+    private AudioBlobStore(File dir, File refsFile) {
+        this.dir = dir;
+        this.refsFile = refsFile;
+    }
+
+    // persistent == false: referencias solo en memoria y nada se borra (backend memory)
+    static AudioBlobStore open(File dir, boolean persistent) throws IOException {
+        new File(dir, UPLOADS).mkdirs();
+        AudioBlobStore blobs = new AudioBlobStore(dir, persistent ? new File(dir, REFS_FILE) : null);
+        // Subidas a medias de la ejecución anterior
+        File[] leftovers = new File(dir, UPLOADS).listFiles();
+        if (leftovers != null) {
+            for (File f : leftovers) {
+                f.delete();
+            }
+        }
+        if (persistent) {
+            blobs.recover();
+            blobs.compact();
+            blobs.sweep();
+        }
+        return blobs;
+    }
+
+    // Archivo temporal para recibir una subida; después se pasa a put(File)
+    File newUpload() throws IOException {
+        return File.createTempFile("upload", ".part", new File(dir, UPLOADS));
+    }
+
+    /*
+     * Guarda la subida con su hash como id. Si el audio ya estaba, la subida
+     * se borra y se devuelve el existente; si no, se mueve a su lugar (mismo
+     * disco, así que es un rename). El audio queda fijado hasta unpin.
+     */
+    Blob put(File upload) throws IOException {
+        String id = hash(upload);
+        File target = file(id);
+        synchronized (this) {
+            if (target.exists()) {
+                Files.delete(upload.toPath());
+                deduplicated.incrementAndGet();
+            } else {
+                target.getParentFile().mkdirs();
+                Files.move(upload.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                stored.incrementAndGet();
+            }
+            pins.merge(id, 1, Integer::sum);
+        }
+        return new Blob(id, target);
+    }
+
+    // Lo mismo para un audio que ya está en memoria: si el id existe no se escribe nada
+    Blob put(byte[] audio) throws IOException {
+        String id = HexFormat.of().formatHex(digest().digest(audio));
+        File target = file(id);
+        synchronized (this) {
+            if (target.exists()) {
+                pins.merge(id, 1, Integer::sum);
+                deduplicated.incrementAndGet();
+                return new Blob(id, target);
+            }
+        }
+        File upload = newUpload();
+        Files.write(upload.toPath(), audio);
+        return put(upload);
+    }
+
+    // Archivo del audio (puede no existir); el id tiene que ser un hash, no una ruta
+    File file(String id) {
+        if (!isId(id)) {
+            throw new IllegalArgumentException("Id de audio inválido: " + id);
+        }
+        return new File(new File(new File(dir, id.substring(0, 2)), id.substring(2, 4)), id);
+    }
+
+    static boolean isId(String id) {
+        if (id == null || id.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.digit(id.charAt(i), 16) < 0 || Character.isUpperCase(id.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Suelta el audio de un put; si nadie lo referencia (no llegó al historial) se borra
+    synchronized void unpin(String id) {
+        if (pins.merge(id, -1, Integer::sum) <= 0) {
+            pins.remove(id);
+            if (!refs.containsKey(id)) {
+                delete(id);
+            }
+        }
+    }
+
+    /*
+     * Un registro del historial de la conversación va a apuntar al audio.
+     * Vuelve con la referencia ya en disco; si no se pudo guardar no cuenta y
+     * el registro del historial no se tiene que escribir.
+     */
+    synchronized void ref(String id, String conversation) throws IOException {
+        if (out != null) {
+            writeRecord(out, REF, conversation, id, 1);
+            out.flush();
+            outFile.getFD().sync();
+        }
+        add(id, conversation, 1);
+        written();
+    }
+
+    // La conversación se borró: suelta sus referencias y borra los audios que quedan sin ninguna
+    synchronized void release(String conversation) {
+        Map<String, Integer> mine = byConversation.remove(conversation);
+        if (mine == null) {
+            return;
+        }
+        if (out != null) {
+            try {
+                writeRecord(out, CLEAR, conversation, null, 0);
+                out.flush();
+            } catch (IOException e) {
+                // Sin el CLEAR la próxima vez las referencias vuelven: los audios que queden no se borran
+                System.err.println("Error guardando referencias de audios: " + e.getMessage());
+            }
+            written();
+        }
+        for (Map.Entry<String, Integer> e : mine.entrySet()) {
+            int left = refs.merge(e.getKey(), -e.getValue(), Integer::sum);
+            if (left <= 0) {
+                refs.remove(e.getKey());
+                // Uno fijado se borra en unpin si para entonces sigue sin referencias
+                if (!pins.containsKey(e.getKey())) {
+                    delete(e.getKey());
+                }
+            }
+        }
+    }
+
+    synchronized int references(String id) {
+        return refs.getOrDefault(id, 0);
+    }
+
+    void addStats(JsonObject stats) {
+        synchronized (this) {
+            stats.addProperty("audioBlobs", refs.size());
+        }
+        stats.addProperty("audioBlobsStored", stored.get());
+        stats.addProperty("audioBlobsDeduplicated", deduplicated.get());
+        stats.addProperty("audioBlobsRemoved", removed.get());
+    }
+
+    private void delete(String id) {
+        if (refsFile != null && file(id).delete()) {
+            removed.incrementAndGet();
+        }
+    }
+
+    private void add(String id, String conversation, int n) {
+        byConversation.computeIfAbsent(conversation, k -> new HashMap<>()).merge(id, n, Integer::sum);
+        refs.merge(id, n, Integer::sum);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = digest();
+        ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (ch.read(buf) >= 0) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Cuenta un registro anexado y compacta el log si ya es mucho más largo que las referencias vigentes
+    private void written() {
+        if (out == null || ++records <= 4L * refs.size() + 1024) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            System.err.println("Error compactando referencias de audios: " + e.getMessage());
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, String conversation, String id, int n)
+            throws IOException {
+        out.writeByte(op);
+        out.writeUTF(conversation);
+        if (op == REF) {
+            out.writeUTF(id);
+            out.writeInt(n);
+        }
+    }
+
+    private void recover() throws IOException {
+        if (!refsFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(refsFile)))) {
+            while (true) {
+                byte op = in.readByte();
+                String conversation = in.readUTF();
+                if (op == REF) {
+                    String id = in.readUTF();
+                    add(id, conversation, in.readInt());
+                } else if (op == CLEAR) {
+                    Map<String, Integer> mine = byConversation.remove(conversation);
+                    if (mine != null) {
+                        for (Map.Entry<String, Integer> e : mine.entrySet()) {
+                            if (refs.merge(e.getKey(), -e.getValue(), Integer::sum) <= 0) {
+                                refs.remove(e.getKey());
+                            }
+                        }
+                    }
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // Fin del archivo o registro cortado: lo anterior es el estado
+        }
+    }
+
+    // Escribe solo las referencias vigentes en un temporal y lo pone en lugar del log
+    private void compact() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        File tmp = new File(dir, REFS_FILE + ".tmp");
+        records = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(fos))) {
+            for (Map.Entry<String, Map<String, Integer>> c : byConversation.entrySet()) {
+                for (Map.Entry<String, Integer> e : c.getValue().entrySet()) {
+                    writeRecord(tmpOut, REF, c.getKey(), e.getKey(), e.getValue());
+                    records++;
+                }
+            }
+            tmpOut.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), refsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        outFile = new FileOutputStream(refsFile, true);
+        out = new DataOutputStream(new BufferedOutputStream(outFile));
+    }
+
+    // Al abrir: borra los audios sin referencias (la subida llegó pero no se guardó en el historial)
+    private void sweep() {
+        File[] level1 = dir.listFiles(f -> f.isDirectory() && f.getName().length() == 2);
+        if (level1 == null) {
+            return;
+        }
+        for (File a : level1) {
+            File[] level2 = a.listFiles(File::isDirectory);
+            if (level2 == null) {
+                continue;
+            }
+            for (File b : level2) {
+                File[] blobs = b.listFiles();
+                if (blobs == null) {
+                    continue;
+                }
+                for (File blob : blobs) {
+                    if (!refs.containsKey(blob.getName()) && blob.delete()) {
+                        removed.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.icesi.chatapp.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Nota de voz que todavía se está subiendo, para reenviarla mientras llega
+ * (corte directo, ver {@code chat.audio.cutThrough}). Quien sube escribe en
+ * el archivo y avisa cuántos bytes hay; cada receptor la tiene en su cola de
+ * salida como un {@link FileBody} que manda lo que ya está en disco y espera
+ * el resto, así que recibe el audio al ritmo de la subida y no después.
+ * Mientras espera, lo que venga detrás en la cola de ese receptor también
+ * espera: el audio ya ocupa su conexión.
+ *
+ * Todos los receptores leen con el mismo canal, abierto al crear la subida y
+ * por posición: el archivo se puede renombrar al almacén o borrar (audio
+ * repetido) sin cortar a nadie. El largo se conoce desde la cabecera, así que
+ * si la subida se corta se completa con ceros: el cliente recibe los bytes
+ * que se le anunciaron (silencio en un WAV PCM) y la conexión sigue en pie.
+ * Una subida que no avanza en {@code stallMillis} cuenta como cortada, para
+ * que un emisor trabado no frene la salida de sus receptores.
+ */
+final class AudioUpload implements FileBody {
+    private final File file;
+    private final long length;
+    private final FileChannel source;
+    private final long stallMillis;
+    private long received;
+    // Último avance de la subida, en el reloj de System.nanoTime
+    private long lastProgress = System.nanoTime();
+    private boolean failed;
+    // Quien sube más los receptores que todavía no terminaron; en 0 se cierra el canal
+    private int users = 1;
+
+    AudioUpload(File file, long length) throws IOException {
+        this(file, length, ServerConfig.AUDIO_STALL_MS);
+    }
+
+    AudioUpload(File file, long length, long stallMillis) throws IOException {
+        this.file = file;
+        this.length = length;
+        this.stallMillis = stallMillis;
+        this.source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    // Un archivo ya completo: los receptores lo leen de un canal abierto ahora, aunque después se borre
+    static AudioUpload complete(File file) throws IOException {
+        AudioUpload upload = new AudioUpload(file, file.length());
+        upload.progress(upload.length);
+        return upload;
+    }
+
+    File file() {
+        return file;
+    }
+
+    long length() {
+        return length;
+    }
+
+    // Otro receptor la va a leer (se llama al encolarla)
+    synchronized FileBody retain() {
+        users++;
+        return this;
+    }
+
+    // Ya hay total bytes escritos en el archivo
+    synchronized void progress(long total) {
+        received = total;
+        lastProgress = System.nanoTime();
+        notifyAll();
+    }
+
+    // La subida no se completó: los receptores rellenan con ceros lo que falta
+    synchronized void fail() {
+        failed = true;
+        notifyAll();
+    }
+
+    // Quien sube terminó (bien o mal) y ya no escribe
+    void release() {
+        boolean close;
+        synchronized (this) {
+            close = --users == 0;
+        }
+        if (close) {
+            try {
+                source.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    // Un receptor que no la va a leer (su cola la descartó o se cerró) cuenta como terminado
+    @Override
+    public void discard() {
+        release();
+    }
+
+    @Override
+    public void transferTo(WritableByteChannel target) throws IOException {
+        try {
+            long position = 0;
+            while (position < length) {
+                long available = awaitAvailable(position);
+                if (available < 0) {
+                    pad(target, length - position);
+                    return;
+                }
+                position += source.transferTo(position, available, target);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    // Bytes listos desde position (espera si no hay) o -1 si la subida falló o se trabó
+    private synchronized long awaitAvailable(long position) throws InterruptedIOException {
+        while (received <= position && !failed) {
+            long remaining = stallMillis - (System.nanoTime() - lastProgress) / 1_000_000;
+            if (remaining <= 0) {
+                System.err.println("Subida de audio sin avance en " + stallMillis + " ms: " + file.getName());
+                fail();
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrumpido esperando la subida del audio");
+            }
+        }
+        return failed ? -1 : received - position;
+    }
+
+    private static void pad(WritableByteChannel target, long count) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+        while (count > 0) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), count));
+            while (zeros.hasRemaining()) {
+                count -= target.write(zeros);
+            }
+        }
+    }
+}
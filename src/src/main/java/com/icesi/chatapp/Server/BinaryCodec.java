@@ -0,0 +1,521 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonElement;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Protocolo binario del puerto 12345, alternativo a las líneas JSON. Un
+ * cliente lo pide mandando {@link #HELLO} como primeros bytes (una línea JSON
+ * nunca empieza con 0x00) y el servidor contesta lo mismo.
+ *
+ * Cada frame es {@code varint largo | varint opcode | cuerpo}:
+ * <ul>
+ * <li>opcodes 0-15, del cliente: la acción con ese número;
+ *     {@code varint requestId | mapa} y, en la 15 (nota de voz), {@code varint n | n bytes};</li>
+ * <li>{@link #RESPONSE}: {@code varint requestId | mapa};</li>
+ * <li>{@link #PUSH}: {@code mapa} (con su "type", igual que en JSON);</li>
+ * <li>{@link #VOICE_NOTE}: {@code mapa | varint n | n bytes}.</li>
+ * </ul>
+ * El mapa es {@code varint cantidad} pares {@code símbolo clave | tag valor}.
+ * Tags: 0 null, 1 false, 2 true, 3 entero (varint zigzag), 4 string
+ * (varint largo + UTF-8), 5 símbolo, 6 lista (varint n + n valores), 7 JSON
+ * anidado (string con el JSON), 8 número no entero (string).
+ *
+ * Los símbolos internan claves y nombres de usuarios y grupos: cada sentido
+ * de la conexión tiene su tabla, que empieza con los ids fijos de
+ * STATIC_SYMBOLS. Un símbolo es un varint v: 0 = literal (varint largo +
+ * UTF-8) que toma el siguiente id, 1 = literal que no se guarda, v ≥ 2 = el
+ * id v - 2. Los pushes del servidor nunca definen ids
+ * porque la cola de salida puede descartarlos; solo lo hacen las respuestas
+ * y los lotes de pendientes, que siempre llegan.
+ *
+ * Cada tabla admite hasta {@link #MAX_SYMBOLS} ids nuevos de hasta
+ * {@link #MAX_SYMBOL_CHARS} caracteres y {@link #MAX_SYMBOL_TABLE_CHARS} en
+ * total. El servidor manda como literal (v = 1) lo que no entra; si el
+ * cliente define un símbolo que no entra, el frame es inválido y la conexión
+ * se cierra.
+ */
+final class BinaryCodec {
+    static final byte[] HELLO = { 0x00, 'C', 'B', 0x01 };
+    // Respuesta a una versión que no se conoce: el servidor cierra después
+    static final byte[] HELLO_REJECTED = { 0x00, 'C', 'B', 0x00 };
+
+    static final int RESPONSE = 64;
+    static final int PUSH = 65;
+    static final int VOICE_NOTE = 66;
+
+    // Acción de nota de voz: solo existe en el protocolo binario
+    static final String VOICE_NOTE_ACTION = "15";
+    static final int MAX_AUDIO_BYTES = 10_000_000;
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INT = 3;
+    private static final int STRING = 4;
+    private static final int SYMBOL = 5;
+    private static final int LIST = 6;
+    private static final int JSON = 7;
+    private static final int DECIMAL = 8;
+
+    private static final int MAX_SYMBOLS = 65_536;
+    private static final int MAX_SYMBOL_CHARS = 256;
+    private static final int MAX_SYMBOL_TABLE_CHARS = 1 << 20;
+
+    /*
+     * Ids fijos, los mismos en las dos tablas de toda conexión: las claves y
+     * valores de siempre no se definen nunca y los pushes (que no pueden
+     * definir ids) igual salen compactos. Los ids nuevos siguen después. Es
+     * parte del protocolo: solo se agregan entradas al final con otra versión.
+     */
+    private static final List<String> STATIC_SYMBOLS = List.of(
+            "status", "message", "type", "sender", "recipient", "group", "groupName", "user", "username",
+            "sessionId", "currentUser", "users", "members", "groups", "deleted", "online", "offline",
+            "history", "firstSeq", "lastSeq", "total", "hasMoreBefore", "hasMoreAfter", "version", "full",
+            "since", "limit", "before", "after", "conversation", "messages", "hasMore", "seq", "more",
+            "durable", "timeoutMs", "stats", "invalidUsers", "availableUsers", "dropped", "fileName", "size",
+            "ok", "error", "privateMessage", "groupMessage", "presence", "pendingMessages", "historyGap",
+            "voiceNote");
+
+    // Valores que son nombres (se internan); el resto de los strings va literal
+    private static final Set<String> NAME_KEYS = Set.of("type", "status", "sender", "recipient", "user",
+            "username", "group", "groupName", "currentUser", "conversation", "users", "online", "offline",
+            "members", "invalidUsers", "availableUsers");
+
+    // Sentido cliente -> servidor: solo lo usa el hilo que procesa las peticiones de la conexión
+    private final List<String> received = new ArrayList<>(STATIC_SYMBOLS);
+    private int receivedChars;
+    // Sentido servidor -> cliente: se codifica y se encola bajo el monitor del codec (ver send)
+    private final Map<String, Integer> sent = new HashMap<>();
+    private int sentChars;
+    private final Out out = new Out();
+
+    BinaryCodec() {
+        for (String symbol : STATIC_SYMBOLS) {
+            sent.put(symbol, sent.size());
+        }
+    }
+
+    static boolean isHello(int firstByte) {
+        return firstByte == 0;
+    }
+
+    // Tamaño máximo de un frame entrante: una petición o una nota de voz con sus datos
+    static int maxFrameBytes() {
+        return ServerConfig.MAX_LINE_BYTES + MAX_AUDIO_BYTES;
+    }
+
+    /*
+     * Lee el saludo de un socket bloqueante. false si la versión no es la
+     * nuestra (ya se leyó el 0x00 con el que se detectó el protocolo).
+     */
+    static boolean readHello(InputStream in) throws IOException {
+        byte[] hello = new byte[HELLO.length];
+        new DataInputStream(in).readFully(hello);
+        return Arrays.equals(hello, HELLO);
+    }
+
+    // Cuerpo del siguiente frame de un socket bloqueante o null si el cliente cerró
+    static byte[] readFrame(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        long length = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            b = in.read();
+            if (b == -1) {
+                throw new EOFException("Frame cortado");
+            }
+            length |= (long) (b & 0x7F) << shift;
+            shift += 7;
+            if (shift > 35) {
+                throw new IOException("Largo de frame inválido");
+            }
+        }
+        if (length > maxFrameBytes()) {
+            throw new IOException("Frame demasiado grande: " + length);
+        }
+        byte[] body = new byte[(int) length];
+        new DataInputStream(in).readFully(body);
+        return body;
+    }
+
+    /**
+     * Armado incremental de frames para el loop NIO: recibe lo que haya en el
+     * buffer y devuelve los cuerpos completos. Primero espera el saludo.
+     */
+    static final class FrameReader {
+        private final byte[] hello = new byte[HELLO.length];
+        private int helloRead;
+        private long length = -1;
+        private int shift;
+        private byte[] body;
+        private int bodyRead;
+
+        boolean helloComplete() {
+            return helloRead == HELLO.length;
+        }
+
+        boolean helloAccepted() {
+            return Arrays.equals(hello, HELLO);
+        }
+
+        // Consume buffer; los frames completos van a frames. true si justo se completó el saludo
+        boolean feed(ByteBuffer buffer, List<byte[]> frames) throws IOException {
+            boolean helloDone = false;
+            while (buffer.hasRemaining()) {
+                if (helloRead < HELLO.length) {
+                    hello[helloRead++] = buffer.get();
+                    helloDone = helloRead == HELLO.length;
+                    if (helloDone && !helloAccepted()) {
+                        return true;
+                    }
+                    continue;
+                }
+                if (body == null) {
+                    int b = buffer.get() & 0xFF;
+                    if (length < 0) {
+                        length = 0;
+                        shift = 0;
+                    }
+                    length |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                    if ((b & 0x80) != 0) {
+                        if (shift > 35) {
+                            throw new IOException("Largo de frame inválido");
+                        }
+                        continue;
+                    }
+                    if (length > maxFrameBytes()) {
+                        throw new IOException("Frame demasiado grande: " + length);
+                    }
+                    body = new byte[(int) length];
+                    bodyRead = 0;
+                } else {
+                    int n = Math.min(buffer.remaining(), body.length - bodyRead);
+                    buffer.get(body, bodyRead, n);
+                    bodyRead += n;
+                }
+                if (body != null && bodyRead == body.length) {
+                    frames.add(body);
+                    body = null;
+                    length = -1;
+                }
+            }
+            return helloDone;
+        }
+    }
+
+    // ---- Entrada ----
+
+    // Petición del cliente con sus campos; la nota de voz trae además sus bytes
+    JsonCodec.Request decode(byte[] body) {
+        In in = new In(body);
+        int opcode = (int) in.varint();
+        if (opcode > 15) {
+            throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        }
+        String action = String.valueOf(opcode);
+        if (!VOICE_NOTE_ACTION.equals(action) && body.length > ServerConfig.MAX_LINE_BYTES) {
+            throw new IllegalArgumentException("Request too large");
+        }
+        long requestId = in.varint();
+
+        JsonCodec.Fields data = new JsonCodec.Fields();
+        long count = in.varint();
+        for (long i = 0; i < count; i++) {
+            String key = symbol(in);
+            int tag = in.u8();
+            switch (tag) {
+                case NULL -> data.put(key, null, JsonCodec.Fields.NULL);
+                case FALSE -> data.put(key, "false", JsonCodec.Fields.BOOLEAN);
+                case TRUE -> data.put(key, "true", JsonCodec.Fields.BOOLEAN);
+                case INT -> data.put(key, Long.toString(zigzag(in.varint())), JsonCodec.Fields.NUMBER);
+                case STRING -> data.put(key, in.string(), JsonCodec.Fields.STRING);
+                case SYMBOL -> data.put(key, symbol(in), JsonCodec.Fields.STRING);
+                case DECIMAL -> data.put(key, in.string(), JsonCodec.Fields.NUMBER);
+                case JSON -> {
+                    in.string();
+                    data.put(key, null, JsonCodec.Fields.NESTED);
+                }
+                default -> throw new IllegalArgumentException("Unsupported value tag " + tag + " for " + key);
+            }
+        }
+
+        byte[] payload = null;
+        if (VOICE_NOTE_ACTION.equals(action)) {
+            int n = (int) in.varint();
+            if (n <= 0 || n > MAX_AUDIO_BYTES) {
+                throw new IllegalArgumentException("Invalid audio size: " + n);
+            }
+            payload = in.bytes(n);
+        }
+        return new JsonCodec.Request(action, Long.toString(requestId), data, payload);
+    }
+
+    private String symbol(In in) {
+        long v = in.varint();
+        if (v == 0) {
+            String s = in.string();
+            if (!fits(received.size() - STATIC_SYMBOLS.size(), receivedChars, s)) {
+                throw new IllegalArgumentException("Symbol table full or symbol too long");
+            }
+            received.add(s);
+            receivedChars += s.length();
+            return s;
+        }
+        if (v == 1) {
+            return in.string();
+        }
+        long id = v - 2;
+        if (id >= received.size()) {
+            throw new IllegalArgumentException("Unknown symbol " + id);
+        }
+        return received.get((int) id);
+    }
+
+    // ---- Salida ----
+
+    /*
+     * Codifica y entrega a la conexión bajo el monitor del codec: un id
+     * definido en un frame siempre queda en la cola antes que los frames que
+     * lo usan.
+     */
+    synchronized void reply(ClientConnection conn, String requestId, JsonLine response) {
+        out.reset();
+        out.varint(RESPONSE);
+        out.varint(Long.parseLong(requestId));
+        writeMap(out, response, true);
+        conn.sendFrames(new byte[][] { out.frame() }, false);
+    }
+
+    // Push que no se descarta (lotes de pendientes): puede definir ids
+    synchronized void send(ClientConnection conn, JsonLine line) {
+        out.reset();
+        out.varint(PUSH);
+        writeMap(out, line, true);
+        conn.sendFrames(new byte[][] { out.frame() }, false);
+    }
+
+    synchronized void push(ClientConnection conn, JsonLine line) {
+        out.reset();
+        out.varint(PUSH);
+        writeMap(out, line, false);
+        conn.sendFrames(new byte[][] { out.frame() }, true);
+    }
+
+    // El audio va como segundo frame de la cola, compartido entre destinatarios: no se copia por conexión
+    synchronized void pushVoiceNote(ClientConnection conn, JsonLine line, byte[] audio) {
+        out.reset();
+        out.varint(VOICE_NOTE);
+        writeMap(out, line, false);
+        out.varint(audio.length);
+        conn.sendFrames(new byte[][] { out.frame(audio.length), audio }, true);
+    }
+
+    // Aviso de pushes descartados: sale de la cola de salida, así que no toca las tablas
+    static byte[] spillNotice(long lost) {
+        JsonLine notice = new JsonLine().addProperty("type", "historyGap").addProperty("dropped", lost);
+        Out o = new Out();
+        o.varint(PUSH);
+        new BinaryCodec().writeMap(o, notice, false);
+        return o.frame();
+    }
+
+    private void writeMap(Out o, JsonLine line, boolean define) {
+        o.varint(line.size());
+        for (int i = 0; i < line.size(); i++) {
+            String key = line.key(i);
+            writeSymbol(o, key, define);
+            writeValue(o, line.value(i), NAME_KEYS.contains(key), define);
+        }
+    }
+
+    private void writeValue(Out o, Object value, boolean name, boolean define) {
+        if (value == null) {
+            o.u8(NULL);
+        } else if (value instanceof String s) {
+            if (name) {
+                o.u8(SYMBOL);
+                writeSymbol(o, s, define);
+            } else {
+                o.u8(STRING);
+                o.string(s);
+            }
+        } else if (value instanceof Boolean b) {
+            o.u8(b ? TRUE : FALSE);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            o.u8(INT);
+            long v = ((Number) value).longValue();
+            o.varint((v << 1) ^ (v >> 63));
+        } else if (value instanceof Number n) {
+            o.u8(DECIMAL);
+            o.string(n.toString());
+        } else if (value instanceof Collection<?> list) {
+            o.u8(LIST);
+            o.varint(list.size());
+            for (Object item : list) {
+                writeValue(o, item, name, define);
+            }
+        } else if (value instanceof JsonElement element) {
+            o.u8(JSON);
+            o.string(element.toString());
+        } else {
+            // El requestId crudo de JSON no se agrega en binario: va en el encabezado de la respuesta
+            throw new IllegalArgumentException("Tipo no soportado en BinaryCodec: " + value.getClass());
+        }
+    }
+
+    private void writeSymbol(Out o, String s, boolean define) {
+        Integer id = sent.get(s);
+        if (id != null) {
+            o.varint(id + 2L);
+        } else if (define && fits(sent.size() - STATIC_SYMBOLS.size(), sentChars, s)) {
+            sent.put(s, sent.size());
+            sentChars += s.length();
+            o.varint(0);
+            o.string(s);
+        } else {
+            o.varint(1);
+            o.string(s);
+        }
+    }
+
+    // Si un id nuevo para s entra en una tabla con defined ids y chars caracteres ya definidos
+    private static boolean fits(int defined, int chars, String s) {
+        return defined < MAX_SYMBOLS && s.length() <= MAX_SYMBOL_CHARS
+                && chars + s.length() <= MAX_SYMBOL_TABLE_CHARS;
+    }
+
+    private static long zigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static final class In {
+        private final byte[] buf;
+        private int pos;
+
+        In(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int u8() {
+            if (pos >= buf.length) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        long varint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Invalid varint");
+        }
+
+        String string() {
+            int n = (int) varint();
+            if (n < 0 || n > buf.length - pos) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        byte[] bytes(int n) {
+            if (n > buf.length - pos) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return b;
+        }
+    }
+
+    // Cuerpo de un frame; se reserva lugar adelante para el largo, que se conoce al final
+    private static final class Out {
+        private static final int HEADER = 5;
+        private byte[] buf = new byte[256];
+        private int len = HEADER;
+
+        void reset() {
+            len = HEADER;
+            // Un buffer que creció por una respuesta grande no se conserva
+            if (buf.length > 64 * 1024) {
+                buf = new byte[256];
+            }
+        }
+
+        void u8(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void varint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        void string(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+        }
+
+        byte[] frame() {
+            return frame(0);
+        }
+
+        // trailing: bytes del cuerpo que van en un frame aparte a continuación (el audio)
+        byte[] frame(int trailing) {
+            long bodyLength = len - HEADER + (long) trailing;
+            byte[] prefix = new byte[HEADER];
+            int n = 0;
+            long v = bodyLength;
+            while ((v & ~0x7FL) != 0) {
+                prefix[n++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            prefix[n++] = (byte) v;
+            byte[] frame = new byte[n + len - HEADER];
+            System.arraycopy(prefix, 0, frame, 0, n);
+            System.arraycopy(buf, HEADER, frame, n, len - HEADER);
+            return frame;
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caché de conversaciones calientes delante de otro {@link HistoryStore}.
+ *
+ * Por cada conversación leída se guardan en memoria sus últimos
+ * {@code maxMessages} mensajes ya formateados. Cada save los actualiza, así
+ * que la caché nunca queda vieja: una página que cae dentro de esa ventana se
+ * responde sin tocar el backend. El total de memoria está acotado por
+ * {@code maxBytes} y, al pasarse, se desalojan las conversaciones leídas hace
+ * más tiempo (LRU).
+ *
+ * Solo va delante de backends {@link HistoryStore#cacheable() cacheables}
+ * (hoy file, o una combinación que lee de file): la ventana usa los números
+ * de secuencia contiguos del backend. memory ya está en RAM y en postgres los
+ * cursores son ids que asigna la base, así que esos no se cachean.
+ */
+class CachingHistoryStore implements HistoryStore {
+    // Costo aproximado por línea además de sus caracteres (String, array, referencia)
+    private static final int LINE_OVERHEAD = 64;
+    private static final int STRIPES = 256;
+
+    private final HistoryStore delegate;
+    private final long maxBytes;
+    private final int maxMessages;
+    private final Map<String, Conversation> cache = new ConcurrentHashMap<>();
+
+    /*
+     * Anexar y cargar una conversación se serializan con el mismo lock de su
+     * franja: así una carga no puede perderse un mensaje que se está guardando
+     * al mismo tiempo. Las lecturas que aciertan no toman este lock.
+     */
+    private final Object[] stripes = new Object[STRIPES];
+    private final ReentrantLock evicting = new ReentrantLock();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    // Métricas
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    CachingHistoryStore(HistoryStore delegate, long maxBytes, int maxMessages) {
+        if (!delegate.cacheable()) {
+            throw new IllegalArgumentException("El backend " + delegate.name() + " no se puede cachear");
+        }
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        this.maxMessages = Math.max(1, maxMessages);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    @Override
+    public String name() {
+        return delegate.name();
+    }
+
+    // Ya es la caché
+    @Override
+    public boolean cacheable() {
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Void> append(HistoryRecord record) {
+        String key = record.conversation();
+        CompletableFuture<Void> done;
+        synchronized (stripe(key)) {
+            done = delegate.append(record);
+            Conversation c = cache.get(key);
+            if (c != null) {
+                usedBytes.addAndGet(c.add(record.toLine()));
+            }
+        }
+        // Si el backend no lo pudo guardar, la caché no debe mostrarlo
+        done.whenComplete((ok, e) -> {
+            if (e != null) {
+                invalidate(key);
+            }
+        });
+        evictIfNeeded();
+        return done;
+    }
+
+    @Override
+    public HistoryPage read(String conversation, HistoryQuery query) {
+        Conversation c = cache.get(conversation);
+        if (c != null) {
+            HistoryPage page = c.read(query, clock.incrementAndGet());
+            if (page != null) {
+                hits.incrementAndGet();
+                return page;
+            }
+        }
+        misses.incrementAndGet();
+
+        if (c == null) {
+            c = load(conversation);
+            HistoryPage page = c.read(query, clock.incrementAndGet());
+            if (page != null) {
+                return page;
+            }
+        }
+        // Fuera de la ventana cacheada (páginas viejas o el historial completo de una conversación larga)
+        return delegate.read(conversation, query);
+    }
+
+    @Override
+    public boolean clear(String conversation) {
+        synchronized (stripe(conversation)) {
+            invalidate(conversation);
+            return delegate.clear(conversation);
+        }
+    }
+
+    @Override
+    public void addStats(JsonObject stats) {
+        delegate.addStats(stats);
+        stats.addProperty("cacheConversations", cache.size());
+        stats.addProperty("cacheBytes", usedBytes.get());
+        stats.addProperty("cacheMaxBytes", maxBytes);
+        stats.addProperty("cacheHits", hits.get());
+        stats.addProperty("cacheMisses", misses.get());
+        stats.addProperty("cacheEvictions", evictions.get());
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private Object stripe(String conversation) {
+        return stripes[Math.floorMod(conversation.hashCode(), STRIPES)];
+    }
+
+    // Trae la cola de la conversación del backend y la deja en la caché
+    private Conversation load(String conversation) {
+        Conversation c;
+        synchronized (stripe(conversation)) {
+            c = cache.get(conversation);
+            if (c != null) {
+                return c;
+            }
+            HistoryPage tail = delegate.read(conversation, HistoryQuery.latest(maxMessages));
+            c = new Conversation(maxMessages, tail, clock.incrementAndGet());
+            cache.put(conversation, c);
+            usedBytes.addAndGet(c.bytes());
+        }
+        evictIfNeeded();
+        return c;
+    }
+
+    private void invalidate(String conversation) {
+        Conversation c = cache.remove(conversation);
+        if (c != null) {
+            usedBytes.addAndGet(-c.evict());
+        }
+    }
+
+    // Desaloja las conversaciones menos usadas hasta quedar en el 90% del presupuesto
+    private void evictIfNeeded() {
+        if (usedBytes.get() <= maxBytes || !evicting.tryLock()) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, Conversation>> entries = new ArrayList<>(cache.entrySet());
+            entries.sort((a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess));
+            long target = maxBytes - maxBytes / 10;
+            for (Map.Entry<String, Conversation> e : entries) {
+                if (usedBytes.get() <= target) {
+                    break;
+                }
+                if (cache.remove(e.getKey(), e.getValue())) {
+                    usedBytes.addAndGet(-e.getValue().evict());
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    // Ventana de los últimos mensajes de una conversación con sus números de secuencia absolutos
+    private static final class Conversation {
+        private final String[] lines;
+        private long first;
+        private long total;
+        private long bytes;
+        private boolean evicted;
+        private volatile long lastAccess;
+
+        Conversation(int capacity, HistoryPage tail, long now) {
+            lines = new String[capacity];
+            total = tail.total();
+            first = total - tail.messages().size();
+            for (int i = 0; i < tail.messages().size(); i++) {
+                String line = tail.messages().get(i);
+                lines[(int) ((first + i) % capacity)] = line;
+                bytes += cost(line);
+            }
+            lastAccess = now;
+        }
+
+        // Devuelve cuántos bytes cambió el uso
+        synchronized long add(String line) {
+            if (evicted) {
+                return 0;
+            }
+            long delta = cost(line);
+            int slot = (int) (total % lines.length);
+            if (total - first == lines.length) {
+                delta -= cost(lines[slot]);
+                first++;
+            }
+            lines[slot] = line;
+            total++;
+            bytes += delta;
+            return delta;
+        }
+
+        // null si la página pedida no está entera dentro de la ventana
+        synchronized HistoryPage read(HistoryQuery query, long now) {
+            long[] range = query.range(total);
+            long from = range[0];
+            long to = range[1];
+            if (from < first && from < to) {
+                return null;
+            }
+            lastAccess = now;
+            List<String> messages = new ArrayList<>((int) (to - from));
+            for (long seq = from; seq < to; seq++) {
+                messages.add(lines[(int) (seq % lines.length)]);
+            }
+            return HistoryPage.ofRange(messages, from, total);
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        // Marca la entrada como fuera de la caché; devuelve los bytes que libera
+        synchronized long evict() {
+            if (evicted) {
+                return 0;
+            }
+            evicted = true;
+            return bytes;
+        }
+
+        private static long cost(String line) {
+            return LINE_OVERHEAD + 2L * line.length();
+        }
+    }
+}
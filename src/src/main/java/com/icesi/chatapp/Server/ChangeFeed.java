@@ -0,0 +1,72 @@
+package com.icesi.chatapp.Server;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Registro de cambios versionado de usuarios conectados y grupos.
+ *
+ * Cada alta o baja de un usuario y cada grupo creado o borrado suma uno a la
+ * versión y deja su clave en un anillo de las últimas {@code capacity}
+ * entradas. Un cliente que ya tiene la lista en la versión N pide "cambios
+ * desde N" y recibe solo las claves tocadas; el estado de cada una se lee en
+ * el momento de responder, así que aplicar dos veces el mismo cambio o
+ * recibirlos desordenados no deja la lista mal. Si N ya salió del anillo hay
+ * que mandar la lista completa.
+ *
+ * La versión arranca en la hora de inicio × 1000 para que una versión de una
+ * ejecución anterior del servidor nunca se confunda con una de esta (y siga
+ * siendo un entero exacto en JavaScript).
+ */
+final class ChangeFeed {
+    static final byte USER = 1;
+    static final byte GROUP = 2;
+
+    private final byte[] kinds;
+    private final String[] keys;
+    private final long base;
+    private long version;
+
+    ChangeFeed(int capacity) {
+        base = System.currentTimeMillis() * 1000;
+        version = base;
+        int size = Math.max(1, capacity);
+        kinds = new byte[size];
+        keys = new String[size];
+    }
+
+    // Se llama después de aplicar el cambio, para que quien lea esta versión ya lo vea
+    synchronized long record(byte kind, String key) {
+        version++;
+        int slot = (int) (version % keys.length);
+        kinds[slot] = kind;
+        keys[slot] = key;
+        return version;
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    /*
+     * Claves de ese tipo que cambiaron después de since, sin repetir, o null
+     * si el anillo ya no llega tan atrás (o since es de otra ejecución del
+     * servidor).
+     */
+    synchronized Changes since(byte kind, long since) {
+        if (since < base || since > version || version - since > keys.length) {
+            return null;
+        }
+        Set<String> changed = new LinkedHashSet<>();
+        for (long v = since + 1; v <= version; v++) {
+            int slot = (int) (v % keys.length);
+            if (kinds[slot] == kind) {
+                changed.add(keys[slot]);
+            }
+        }
+        return new Changes(version, changed);
+    }
+
+    record Changes(long version, Set<String> keys) {
+    }
+}
@@ -0,0 +1,93 @@
+package com.icesi.chatapp.Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Conexión de un cliente del puerto 12345 (líneas JSON o protocolo binario),
+ * independiente de cómo se haga la E/S (socket bloqueante o canal NIO).
+ * Guarda el estado de sesión de la conexión.
+ */
+public abstract class ClientConnection {
+    // Usuarios registrados por esta conexión (se limpian al cerrarla)
+    final Set<String> sessionUsers = ConcurrentHashMap.newKeySet();
+
+    // true cuando la última petición llegó con requestId (la conexión sigue abierta)
+    volatile boolean sessionMode;
+
+    // Codec del protocolo binario (ver BinaryCodec); null mientras la conexión hable JSON
+    volatile BinaryCodec binary;
+
+    // Línea ya codificada en UTF-8 con su '\n', lista para escribir tal cual
+    static byte[] frame(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Envía una línea (sin salto de línea final) al cliente; las respuestas nunca se descartan
+    public void send(String line) {
+        sendFrame(frame(line), false);
+    }
+
+    // Respuesta ya codificada (ver JsonLine.frame)
+    void send(byte[] frame) {
+        sendFrame(frame, false);
+    }
+
+    // Salida que no se descarta, en el protocolo de la conexión
+    void send(JsonLine line) {
+        BinaryCodec codec = binary;
+        if (codec != null) {
+            codec.send(this, line);
+        } else {
+            sendFrame(line.frame(), false);
+        }
+    }
+
+    /*
+     * Encola un push en vivo ya codificado (ver frame). No bloquea a quien
+     * llama: la escritura la hace el hilo de E/S de la conexión. Si la cola de
+     * salida está llena manda la política de OutboundQueue. El arreglo puede
+     * estar compartido entre varias conexiones, así que nadie lo modifica.
+     */
+    void push(byte[] frame) {
+        sendFrame(frame, true);
+    }
+
+    // Push en el protocolo de la conexión: jsonFrame es line ya codificada, compartida entre las conexiones JSON
+    void push(JsonLine line, byte[] jsonFrame) {
+        BinaryCodec codec = binary;
+        if (codec != null) {
+            codec.push(this, line);
+        } else {
+            sendFrame(jsonFrame, true);
+        }
+    }
+
+    // Nota de voz: en binario va con el audio; a una conexión JSON solo le llega el aviso
+    void pushVoiceNote(JsonLine line, byte[] jsonFrame, byte[] audio) {
+        BinaryCodec codec = binary;
+        if (codec != null) {
+            codec.pushVoiceNote(this, line, audio);
+        } else {
+            sendFrame(jsonFrame, true);
+        }
+    }
+
+    void sendFrame(byte[] frame, boolean push) {
+        sendFrames(new byte[][] { frame }, push);
+    }
+
+    // Varios frames que entran juntos a la cola de salida o se descartan juntos
+    abstract void sendFrames(byte[][] frames, boolean push);
+
+    // Aviso que reemplaza a los pushes descartados por la política spill
+    byte[] spillNotice(long lost) {
+        if (binary != null) {
+            return BinaryCodec.spillNotice(lost);
+        }
+        return frame("{\"type\":\"historyGap\",\"dropped\":" + lost + "}");
+    }
+
+    public abstract void close();
+}
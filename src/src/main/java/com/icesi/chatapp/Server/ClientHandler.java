@@ -2,48 +2,84 @@ package com.icesi.chatapp.Server;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+import org.roaringbitmap.RoaringBitmap;
 
 public class ClientHandler implements Runnable {
     private Socket clientSocket;
     private String clientName;
+    // Id de clientName en la tabla de símbolos (-1 hasta que elige nombre)
+    private int userId = -1;
     private BufferedReader in;
+    // Salida propia del menú; igual que los pushes de otros usuarios pasa por la cola de salida
     private PrintWriter out;
+    private final StreamWriter writer;
+
+    // Señal que precede a los datos binarios de una nota de voz
+    private static final byte[] AUDIO_INCOMING = ClientConnection.frame("AUDIO_INCOMING");
 
     // Usuarios conectados: nombre -> ClientHandler
-    private static final Map<String, ClientHandler> users = Collections.synchronizedMap(new HashMap<>());
+    // (mapas concurrentes sin bloqueos de monitor, para no fijar hilos virtuales)
+    private static final Map<String, ClientHandler> users = new ConcurrentHashMap<>();
+    // Los mismos clientes por id de usuario, para recorrer los miembros de un grupo
+    private static final IdIndex<ClientHandler> usersById = new IdIndex<>();
+    private static final Symbols symbols = MessageHistory.symbols();
+    private static final AudioBlobStore audioBlobs = MessageHistory.audioBlobs();
 
-    // Grupos: nombre grupo -> conjunto de ClientHandler miembros
-    private static final Map<String, Set<ClientHandler>> groups = Collections.synchronizedMap(new HashMap<>());
+    // Grupos por id de Symbols: miembros de cada grupo y grupos de cada usuario
+    private static final GroupMembership groups = new GroupMembership();
 
     private DataInputStream dataIn;
-    private DataOutputStream dataOut;
 
     public ClientHandler(Socket socket) throws IOException {
         this.clientSocket = socket;
         this.in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        this.out = new PrintWriter(clientSocket.getOutputStream(), true);
+        OutboundQueue queue = OutboundQueue.create(() -> "menu " + clientName,
+                lost -> ClientConnection.frame("(Se perdieron " + lost
+                        + " mensajes en vivo por conexión lenta; revisa el historial)"));
+        // Con canal (el servidor de menú acepta con ServerSocketChannel) las notas de voz salen con sendfile
+        this.writer = new StreamWriter(queue, clientSocket.getOutputStream(), clientSocket.getChannel(),
+                this::cerrarConexion) {
+            @Override
+            void afterWrite(byte[] frame) throws IOException {
+                // El cliente lee la señal con un BufferedReader y los datos con otro stream: se le da tiempo
+                if (frame == AUDIO_INCOMING) {
+                    stream().flush();
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        this.out = new PrintWriter(new QueueWriter(writer), true);
         this.dataIn = new DataInputStream(clientSocket.getInputStream());
-        this.dataOut = new DataOutputStream(clientSocket.getOutputStream());
-        
-        // Crear directorio para audios del servidor si no existe
-        new File("server_audios").mkdirs();
     }
 
 @Override
 public void run() {
     try {
         out.println("Ingresa tu nombre:");
-        clientName = in.readLine();
+        String nombre = in.readLine();
+        if (nombre == null) {
+            return;
+        }
 
-        synchronized (users) {
-            if (users.containsKey(clientName)) {
-                out.println("Nombre ya en uso. Conexión terminada.");
-                clientSocket.close();
-                return;
-            }
-            users.put(clientName, this);
+        if (users.putIfAbsent(nombre, this) != null) {
+            out.println("Nombre ya en uso. Conexión terminada.");
+            return;
         }
+        clientName = nombre;
+        userId = symbols.intern(nombre);
+        usersById.set(userId, this);
 
         out.println("¡Hola " + clientName + "!");
 
@@ -109,34 +145,24 @@ public void run() {
     } catch (IOException e) {
         System.out.println("Error con el cliente " + clientName + ": " + e.getMessage());
     } finally {
-        try {
-            // si se desconecta el cliente, eliminar usuario y eliminarlo de grupos
-            synchronized (users) {
-                users.remove(clientName);
-            }
-            synchronized (groups) {
-                for (Set<ClientHandler> grupo : groups.values()) {
-                    grupo.remove(this);
-                }
-            }
-            clientSocket.close();
-            System.out.println("Cliente " + clientName + " desconectado.");
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // si se desconecta el cliente, eliminar usuario y eliminarlo de grupos
+        if (clientName != null) {
+            users.remove(clientName, this);
+        }
+        if (userId >= 0) {
+            usersById.remove(userId, this);
+            // El índice inverso dice en qué grupos estaba: no se recorren todos
+            groups.removeUser(userId);
+        }
+        // Se cierra después de escribir lo que quedó en la cola
+        writer.closeAfterFlush();
+        System.out.println("Cliente " + clientName + " desconectado.");
     }
 }
 
 
     private void enviarPrivado() throws IOException {
-        List<String> disponibles = new ArrayList<>();
-        synchronized (users) {
-            for (String nombre : users.keySet()) {
-                if (!nombre.equals(this.clientName)) {
-                    disponibles.add(nombre);
-                }
-            }
-        }
+        List<String> disponibles = otrosUsuarios();
 
         if (disponibles.isEmpty()) {
             out.println("No hay otros usuarios conectados en este momento.");
@@ -153,16 +179,12 @@ public void run() {
         out.println("Escribe tu mensaje:");
         String mensaje = in.readLine();
 
-        ClientHandler receptor;
-        synchronized (users) {
-            receptor = users.get(destino);
-        }
+        ClientHandler receptor = buscarUsuario(destino);
         if (receptor != null && !destino.equals(clientName)) {
-            receptor.out.println("Mensaje privado de " + clientName + ": " + mensaje);
+            receptor.push("Mensaje privado de " + clientName + ": " + mensaje);
             
             // Guardar en historial
             MessageHistory.savePrivateMessage(clientName, destino, mensaje);
-            //Database.saveTextMessage("private", clientName, destino, false, mensaje);
             
             out.println("Mensaje enviado correctamente.");
         } else {
@@ -173,21 +195,19 @@ public void run() {
     private void crearGrupo() throws IOException {
         out.println("Nombre del grupo:");
         String nombreGrupo = in.readLine();
-
-        synchronized (groups) {
-            groups.putIfAbsent(nombreGrupo, Collections.synchronizedSet(new HashSet<>()));
-            groups.get(nombreGrupo).add(this);
+        if (nombreGrupo == null || nombreGrupo.trim().isEmpty()) {
+            out.println("Nombre de grupo no valido.");
+            return;
         }
 
+        int grupoId = symbols.intern(nombreGrupo);
+        groups.add(grupoId, userId);
+
         out.println("Grupo '" + nombreGrupo + "' creado.");
         out.println("Usuarios disponibles para agregar:");
 
-        synchronized (users) {
-            for (String nombre : users.keySet()) {
-                if (!nombre.equals(this.clientName)) {
-                    out.println(" - " + nombre);
-                }
-            }
+        for (String nombre : otrosUsuarios()) {
+            out.println(" - " + nombre);
         }
 
         out.println("Escribe los nombres de los usuarios a agregar, separados por comas:");
@@ -196,31 +216,24 @@ public void run() {
 
         String[] nombres = linea.split(",");
 
-        synchronized (groups) {
-            for (String nombre : nombres) {
-                String limpio = nombre.trim();
-                if (!limpio.equals(clientName)) {
-                    ClientHandler ch;
-                    synchronized (users) {
-                        ch = users.get(limpio);
-                    }
-                    if (ch != null) {
-                        groups.get(nombreGrupo).add(ch);
-                        ch.out.println("Has sido agregado al grupo '" + nombreGrupo + "' por " + clientName + ".");
-                    } else {
-                        out.println("No se pudo agregar a '" + limpio + "' (no existe).");
-                    }
+        for (String nombre : nombres) {
+            String limpio = nombre.trim();
+            if (!limpio.equals(clientName)) {
+                ClientHandler ch = buscarUsuario(limpio);
+                if (ch != null) {
+                    groups.add(grupoId, ch.userId);
+                    ch.push("Has sido agregado al grupo '" + nombreGrupo + "' por " + clientName + ".");
                 } else {
-                    out.println("No se pudo agregar a '" + limpio + "' (es tu propio nombre).");
+                    out.println("No se pudo agregar a '" + limpio + "' (no existe).");
                 }
+            } else {
+                out.println("No se pudo agregar a '" + limpio + "' (es tu propio nombre).");
             }
         }
 
         out.println("Miembros actuales del grupo '" + nombreGrupo + "':");
-        synchronized (groups) {
-            for (ClientHandler miembro : groups.get(nombreGrupo)) {
-                out.println(" - " + miembro.clientName);
-            }
+        for (int miembro : groups.members(grupoId).toArray()) {
+            out.println(" - " + symbols.name(miembro));
         }
     }
 
@@ -230,51 +243,38 @@ public void run() {
             return;
         }
 
-        out.println("Grupos disponibles:");
-        synchronized (groups) {
-            for (String nombreGrupo : groups.keySet()) {
-                out.println(" - " + nombreGrupo);
-            }
-        }
+        listarGrupos();
 
         out.println("Nombre del grupo al que deseas enviar mensaje:");
         String grupo = in.readLine();
 
-        synchronized (groups) {
-            if (!groups.containsKey(grupo)) {
-                out.println("Grupo no encontrado.");
-                return;
-            }
+        RoaringBitmap miembros = buscarGrupo(grupo);
+        if (miembros == null) {
+            out.println("Grupo no encontrado.");
+            return;
         }
 
         out.println("Escribe tu mensaje para el grupo:");
         String mensaje = in.readLine();
 
-        synchronized (groups) {
-            for (ClientHandler miembro : groups.get(grupo)) {
-                if (!miembro.clientName.equals(this.clientName)) {
-                    miembro.out.println("[" + grupo + "] " + clientName + ": " + mensaje);
-                }
+        // Una sola codificación para todos; cada miembro la encola sin bloquear a este hilo
+        byte[] frame = ClientConnection.frame("[" + grupo + "] " + clientName + ": " + mensaje);
+        for (int id : miembros.toArray()) {
+            ClientHandler miembro = usersById.get(id);
+            if (miembro != null && id != userId) {
+                miembro.writer.push(frame);
             }
         }
         
         // Guardar en historial
         MessageHistory.saveGroupMessage(clientName, grupo, mensaje);
-        //Database.saveTextMessage("group", clientName, grupo, true, mensaje);
         
         out.println("Mensaje enviado al grupo correctamente.");
     }
 
     private void manejarNotaVozPrivada() throws IOException {
         // Mostrar usuarios disponibles
-        List<String> disponibles = new ArrayList<>();
-        synchronized (users) {
-            for (String nombre : users.keySet()) {
-                if (!nombre.equals(this.clientName)) {
-                    disponibles.add(nombre);
-                }
-            }
-        }
+        List<String> disponibles = otrosUsuarios();
 
         if (disponibles.isEmpty()) {
             out.println("No hay otros usuarios conectados.");
@@ -294,10 +294,7 @@ public void run() {
             return;
         }
 
-        ClientHandler receptor;
-        synchronized (users) {
-            receptor = users.get(destino.trim());
-        }
+        ClientHandler receptor = buscarUsuario(destino.trim());
 
         if (receptor == null || destino.equals(clientName)) {
             out.println("Usuario no encontrado o invalido.");
@@ -305,25 +302,20 @@ public void run() {
         }
 
         try {
-            // Recibir audio del cliente
-            File audioRecibido = recibirArchivoAudio();
-            
-            if (audioRecibido == null || audioRecibido.length() == 0) {
-                out.println("Error: Audio no recibido correctamente.");
-                return;
-            }
-
-            // Reenviar audio al destinatario
-            boolean enviado = enviarAudioACliente(receptor, audioRecibido, this.clientName);
-            
-            if (enviado) {
-                // Guardar en historial
-                MessageHistory.savePrivateAudio(this.clientName, destino, audioRecibido);
-                //Database.saveAudioRecord(this.clientName, destino, false, audioRecibido.getAbsolutePath());
-                out.println("Nota de voz enviada correctamente a " + destino);
-                System.out.println("Audio privado enviado de " + clientName + " a " + destino);
-            } else {
-                out.println("Error al enviar la nota de voz.");
+            // Recibir audio del cliente y reenviarlo al destinatario
+            NotaDeVoz audioRecibido = recibirNotaDeVoz(List.of(receptor));
+
+            try {
+                if (audioRecibido.enviados() > 0) {
+                    // Guardar en historial
+                    MessageHistory.savePrivateAudio(this.clientName, destino, audioRecibido.audio());
+                    out.println("Nota de voz enviada correctamente a " + destino);
+                    System.out.println("Audio privado enviado de " + clientName + " a " + destino);
+                } else {
+                    out.println("Error al enviar la nota de voz.");
+                }
+            } finally {
+                audioBlobs.unpin(audioRecibido.audio().id());
             }
 
         } catch (IOException e) {
@@ -339,12 +331,7 @@ public void run() {
         }
 
         // Mostrar grupos disponibles
-        out.println("Grupos disponibles:");
-        synchronized (groups) {
-            for (String nombreGrupo : groups.keySet()) {
-                out.println(" - " + nombreGrupo);
-            }
-        }
+        listarGrupos();
         out.flush(); // Asegurar que se envía inmediatamente
 
         // Esperar a que el cliente envíe el grupo
@@ -354,10 +341,7 @@ public void run() {
             return;
         }
 
-        Set<ClientHandler> miembros;
-        synchronized (groups) {
-            miembros = groups.get(nombreGrupo.trim());
-        }
+        RoaringBitmap miembros = buscarGrupo(nombreGrupo.trim());
 
         if (miembros == null) {
             out.println("Grupo no encontrado.");
@@ -365,32 +349,30 @@ public void run() {
         }
 
         try {
-            // Recibir audio del cliente
-            File audioRecibido = recibirArchivoAudio();
-            
-            if (audioRecibido == null || audioRecibido.length() == 0) {
-                out.println("Error: Audio no recibido correctamente.");
-                return;
-            }
-
-            // Reenviar audio a todos los miembros del grupo
-            int exitosos = 0;
-            for (ClientHandler miembro : miembros) {
-                if (!miembro.clientName.equals(this.clientName)) {
-                    if (enviarAudioACliente(miembro, audioRecibido, this.clientName)) {
-                        exitosos++;
-                    }
+            // Los receptores se fijan antes de la subida: con corte directo reciben mientras llega
+            List<ClientHandler> receptores = new ArrayList<>();
+            for (int id : miembros.toArray()) {
+                ClientHandler miembro = usersById.get(id);
+                if (miembro != null && id != userId) {
+                    receptores.add(miembro);
                 }
             }
 
-            if (exitosos > 0) {
-                // Guardar en historial
-                MessageHistory.saveGroupAudio(this.clientName, nombreGrupo, audioRecibido);
-                //Database.saveAudioRecord(this.clientName, nombreGrupo, true, audioRecibido.getAbsolutePath());
-                out.println("Nota de voz enviada correctamente al grupo " + nombreGrupo + " (" + exitosos + " miembros)");
-                System.out.println("Audio grupal enviado de " + clientName + " al grupo " + nombreGrupo + " (" + exitosos + " receptores)");
-            } else {
-                out.println("No se pudo enviar la nota de voz a ningún miembro del grupo.");
+            // Recibir audio del cliente y reenviarlo a todos los miembros del grupo
+            NotaDeVoz audioRecibido = recibirNotaDeVoz(receptores);
+            int exitosos = audioRecibido.enviados();
+
+            try {
+                if (exitosos > 0) {
+                    // Guardar en historial
+                    MessageHistory.saveGroupAudio(this.clientName, nombreGrupo, audioRecibido.audio());
+                    out.println("Nota de voz enviada correctamente al grupo " + nombreGrupo + " (" + exitosos + " miembros)");
+                    System.out.println("Audio grupal enviado de " + clientName + " al grupo " + nombreGrupo + " (" + exitosos + " receptores)");
+                } else {
+                    out.println("No se pudo enviar la nota de voz a ningún miembro del grupo.");
+                }
+            } finally {
+                audioBlobs.unpin(audioRecibido.audio().id());
             }
 
         } catch (IOException e) {
@@ -399,7 +381,20 @@ public void run() {
         }
     }
 
-    private File recibirArchivoAudio() throws IOException {
+    // Nota de voz recibida: el nombre que le puso el cliente, el audio guardado y a cuántos se encoló
+    private record NotaDeVoz(String nombre, AudioBlobStore.Blob audio, int enviados) {
+    }
+
+    /*
+     * Recibe una nota de voz y la reenvía a los receptores. Con corte directo
+     * (chat.audio.cutThrough) cada receptor la tiene en su cola desde que
+     * llega la cabecera y la va recibiendo a medida que se sube; si no, se
+     * encola cuando ya está completa en el almacén.
+     */
+    private NotaDeVoz recibirNotaDeVoz(List<ClientHandler> receptores) throws IOException {
+        File archivoAudio = null;
+        AudioUpload subida = null;
+        AudioBlobStore.Blob audio = null;
         try {
             // Recibir información del archivo
             String nombreArchivo = dataIn.readUTF();
@@ -411,99 +406,145 @@ public void run() {
                 throw new IOException("Tamaño de archivo inválido: " + tamanoArchivo);
             }
 
-            // Crear archivo en el servidor
-            File carpetaAudios = new File("server_audios");
-            if (!carpetaAudios.exists()) {
-                carpetaAudios.mkdirs();
+            // Se recibe en un temporal del almacén; al terminar pasa a su lugar según el hash
+            archivoAudio = audioBlobs.newUpload();
+            byte[] cabecera = cabeceraAudio(this.clientName, nombreArchivo, tamanoArchivo);
+
+            int enviados = 0;
+            LongConsumer avance = recibidos -> {
+            };
+            if (ServerConfig.AUDIO_CUT_THROUGH) {
+                subida = new AudioUpload(archivoAudio, tamanoArchivo);
+                for (ClientHandler receptor : receptores) {
+                    // Si no se encola, la cola la descarta y eso suelta este retain
+                    if (enviarAudioACliente(receptor, cabecera, subida.retain(), tamanoArchivo)) {
+                        enviados++;
+                    }
+                }
+                avance = subida::progress;
             }
 
-            String nombreUnico = System.currentTimeMillis() + "_" + clientName + "_" + nombreArchivo;
-            File archivoAudio = new File(carpetaAudios, nombreUnico);
-
-            // Recibir datos del archivo
-            try (FileOutputStream fos = new FileOutputStream(archivoAudio);
-                 BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-
-                byte[] buffer = new byte[4096];
-                long bytesRecibidos = 0;
-
-                while (bytesRecibidos < tamanoArchivo) {
-                    int bytesParaLeer = (int) Math.min(buffer.length, tamanoArchivo - bytesRecibidos);
-                    int bytesLeidos = dataIn.read(buffer, 0, bytesParaLeer);
+            SocketChannel canal = clientSocket.getChannel();
+            if (canal != null) {
+                recibirPorCanal(canal, archivoAudio, tamanoArchivo, avance);
+            } else {
+                recibirPorStream(archivoAudio, tamanoArchivo, avance);
+            }
 
-                    if (bytesLeidos == -1) {
-                        throw new IOException("Conexión cerrada inesperadamente");
+            audio = audioBlobs.put(archivoAudio);
+            archivoAudio = null;
+            System.out.println("Audio recibido y guardado: " + audio.file().getPath() + " (" + tamanoArchivo + " bytes)");
+
+            if (subida == null) {
+                /*
+                 * Todos comparten la cabecera y un canal del archivo, abierto
+                 * ahora que el audio está fijado (ver AudioBlobStore.unpin): si
+                 * se borra antes de que un escritor llegue a mandarlo, igual sale.
+                 */
+                subida = AudioUpload.complete(audio.file());
+                for (ClientHandler receptor : receptores) {
+                    if (enviarAudioACliente(receptor, cabecera, subida.retain(), tamanoArchivo)) {
+                        enviados++;
                     }
-
-                    bos.write(buffer, 0, bytesLeidos);
-                    bytesRecibidos += bytesLeidos;
                 }
-                bos.flush();
             }
-
-            System.out.println("Audio recibido y guardado: " + archivoAudio.getPath() + " (" + archivoAudio.length() + " bytes)");
-            return archivoAudio;
+            // Quien llama guarda el historial y después suelta el audio con unpin
+            return new NotaDeVoz(nombreArchivo, audio, enviados);
 
         } catch (IOException e) {
+            if (subida != null) {
+                subida.fail();
+            }
+            if (audio != null) {
+                audioBlobs.unpin(audio.id());
+            }
             System.err.println("Error recibiendo archivo de audio de " + clientName + ": " + e.getMessage());
             throw e;
+        } finally {
+            if (subida != null) {
+                subida.release();
+            }
+            if (archivoAudio != null) {
+                archivoAudio.delete();
+            }
         }
     }
 
-    private boolean enviarAudioACliente(ClientHandler cliente, File audioFile, String emisor) {
-        try {
-            // Verificar que el archivo existe y no está vacío
-            if (!audioFile.exists() || audioFile.length() == 0) {
-                System.err.println("Archivo de audio inválido: " + audioFile.getPath());
-                return false;
+    private void recibirPorStream(File archivoAudio, long tamanoArchivo, LongConsumer avance) throws IOException {
+        // Sin buffer de salida: lo que se avisa como recibido ya está en el archivo
+        try (FileOutputStream fos = new FileOutputStream(archivoAudio)) {
+
+            byte[] buffer = new byte[64 * 1024];
+            long bytesRecibidos = 0;
+
+            while (bytesRecibidos < tamanoArchivo) {
+                int bytesParaLeer = (int) Math.min(buffer.length, tamanoArchivo - bytesRecibidos);
+                int bytesLeidos = dataIn.read(buffer, 0, bytesParaLeer);
+
+                if (bytesLeidos == -1) {
+                    throw new IOException("Conexión cerrada inesperadamente");
+                }
+
+                fos.write(buffer, 0, bytesLeidos);
+                bytesRecibidos += bytesLeidos;
+                avance.accept(bytesRecibidos);
             }
+        }
+    }
 
-            // Enviar señal de audio entrante
-            cliente.out.println("AUDIO_INCOMING");
-            cliente.out.flush();
-
-            // Pequeña pausa para asegurar sincronización
-            Thread.sleep(50);
-
-            // Enviar información del audio
-            cliente.dataOut.writeUTF(emisor);
-            cliente.dataOut.writeUTF(audioFile.getName());
-            cliente.dataOut.writeLong(audioFile.length());
-
-            // Enviar contenido del archivo
-            try (FileInputStream fis = new FileInputStream(audioFile);
-                 BufferedInputStream bis = new BufferedInputStream(fis)) {
-                
-                byte[] buffer = new byte[4096];
-                int bytesLeidos;
-                long totalEnviado = 0;
-                
-                while ((bytesLeidos = bis.read(buffer)) > 0) {
-                    cliente.dataOut.write(buffer, 0, bytesLeidos);
-                    totalEnviado += bytesLeidos;
+    /*
+     * Los bytes del audio van del socket al archivo sin pasar por un arreglo
+     * de Java, de a 64 KB para que el corte directo los reenvíe enseguida. El
+     * socket se lee directo (dataIn tampoco tiene buffer), así que no se salta
+     * nada de lo que venga después.
+     */
+    private static void recibirPorCanal(SocketChannel canal, File archivoAudio, long tamanoArchivo,
+            LongConsumer avance) throws IOException {
+        try (FileChannel destino = FileChannel.open(archivoAudio.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long recibidos = 0;
+            while (recibidos < tamanoArchivo) {
+                long n = destino.transferFrom(canal, recibidos, Math.min(64 * 1024, tamanoArchivo - recibidos));
+                if (n == 0) {
+                    // El canal es bloqueante: 0 solo puede ser fin de stream
+                    throw new IOException("Conexión cerrada inesperadamente");
                 }
-                cliente.dataOut.flush();
-                
-                System.out.println("Audio enviado a " + cliente.clientName + ": " + audioFile.getName() + " (" + totalEnviado + " bytes)");
+                recibidos += n;
+                avance.accept(recibidos);
             }
+        }
+    }
 
-            return true;
+    // Encabezado (emisor, nombre, tamaño) de una nota de voz, tal como lo lee el cliente antes del contenido
+    private static byte[] cabeceraAudio(String emisor, String nombre, long tamano) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream datos = new DataOutputStream(bytes);
+        datos.writeUTF(emisor);
+        datos.writeUTF(nombre);
+        datos.writeLong(tamano);
+        datos.flush();
+        return bytes.toByteArray();
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error enviando audio a " + cliente.clientName + ": " + e.getMessage());
+    /*
+     * Señal, cabecera y audio van juntos a la cola del receptor: nunca se
+     * descarta uno sin los otros. El audio queda a cargo de la cola: si no se
+     * encola (false) ya se descartó.
+     */
+    private static boolean enviarAudioACliente(ClientHandler cliente, byte[] cabecera, FileBody audio, long tamano) {
+        if (cliente.clientSocket.isClosed()) {
+            audio.discard();
+            return false;
+        }
+        if (!cliente.writer.push(audio, AUDIO_INCOMING, cabecera)) {
             return false;
         }
+        System.out.println("Audio encolado para " + cliente.clientName + " (" + tamano + " bytes)");
+        return true;
     }
 
     private void verHistorialPrivado() throws IOException {
-        List<String> disponibles = new ArrayList<>();
-        synchronized (users) {
-            for (String nombre : users.keySet()) {
-                if (!nombre.equals(this.clientName)) {
-                    disponibles.add(nombre);
-                }
-            }
-        }
+        List<String> disponibles = otrosUsuarios();
 
         if (disponibles.isEmpty()) {
             out.println("No hay otros usuarios para ver historial.");
@@ -537,12 +578,7 @@ public void run() {
             return;
         }
 
-        out.println("Grupos disponibles:");
-        synchronized (groups) {
-            for (String nombreGrupo : groups.keySet()) {
-                out.println(" - " + nombreGrupo);
-            }
-        }
+        listarGrupos();
 
         out.println("¿De qué grupo quieres ver el historial?");
         String grupo = in.readLine();
@@ -560,6 +596,69 @@ public void run() {
         }
     }
 
+    // Usuarios conectados distintos de este cliente
+    private List<String> otrosUsuarios() {
+        List<String> disponibles = new ArrayList<>();
+        for (String nombre : users.keySet()) {
+            if (!nombre.equals(this.clientName)) {
+                disponibles.add(nombre);
+            }
+        }
+        return disponibles;
+    }
+
+    private static ClientHandler buscarUsuario(String nombre) {
+        return nombre == null ? null : users.get(nombre);
+    }
+
+    private static RoaringBitmap buscarGrupo(String nombreGrupo) {
+        return nombreGrupo == null ? null : groups.members(symbols.id(nombreGrupo));
+    }
+
+    private void listarGrupos() {
+        out.println("Grupos disponibles:");
+        for (int grupo : groups.groups().toArray()) {
+            out.println(" - " + symbols.name(grupo));
+        }
+    }
+
+    // Línea en vivo de otro usuario: pasa por la cola de salida de este cliente
+    private void push(String linea) {
+        writer.push(ClientConnection.frame(linea));
+    }
+
+    /*
+     * Writer detrás del PrintWriter del menú: junta lo escrito y, en cada
+     * flush (println con autoflush), lo encola como un frame que nunca se
+     * descarta.
+     */
+    private static final class QueueWriter extends Writer {
+        private final StreamWriter writer;
+        private final StringBuilder pending = new StringBuilder();
+
+        QueueWriter(StreamWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            pending.append(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() {
+            if (pending.length() > 0) {
+                writer.send(pending.toString().getBytes(StandardCharsets.UTF_8));
+                pending.setLength(0);
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
     // Métodos getter para acceder al clientName
     public String getClientName() {
         return clientName;
@@ -578,14 +677,7 @@ public void run() {
 
     private void manejarLlamada() throws IOException {
         // Mostrar usuarios disponibles
-        List<String> disponibles = new ArrayList<>();
-        synchronized (users) {
-            for (String nombre : users.keySet()) {
-                if (!nombre.equals(this.clientName)) {
-                    disponibles.add(nombre);
-                }
-            }
-        }
+        List<String> disponibles = otrosUsuarios();
 
         if (disponibles.isEmpty()) {
             out.println("No hay otros usuarios conectados.");
@@ -600,13 +692,12 @@ public void run() {
         out.println("¿A qué usuario deseas llamar?");
         String destinatario = in.readLine();
 
-        if (destinatario == null || !users.containsKey(destinatario)) {
+        ClientHandler receptor = buscarUsuario(destinatario);
+        if (receptor == null) {
             out.println("El usuario no está conectado.");
             return;
         }
 
-        ClientHandler receptor = users.get(destinatario);
-
         try {
             // Informar al llamante
             String ipReceptor = receptor.clientSocket.getInetAddress().getHostAddress();
@@ -618,11 +709,12 @@ public void run() {
 
 
             // Notificar al receptor
-            receptor.out.println("LLAMADA_INCOMING");
-            receptor.dataOut.writeUTF(this.clientName);
-            receptor.dataOut.writeUTF(ipReceptor);
-            receptor.dataOut.writeInt(puertoBase);
-            receptor.dataOut.flush();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream datos = new DataOutputStream(bytes);
+            datos.writeUTF(this.clientName);
+            datos.writeUTF(ipReceptor);
+            datos.writeInt(puertoBase);
+            receptor.writer.push(ClientConnection.frame("LLAMADA_INCOMING"), bytes.toByteArray());
 
             System.out.println("=== LLAMADA INICIADA ===");
             System.out.println("De: " + clientName + " → Para: " + destinatario);
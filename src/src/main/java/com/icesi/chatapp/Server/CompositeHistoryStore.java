@@ -0,0 +1,75 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonObject;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Varios backends en modo write-through: cada registro se escribe en todos y
+ * las lecturas las responde el primero ({@code chat.history.store=file,postgres}
+ * lee del log y deja una copia en PostgreSQL). El futuro de una escritura se
+ * completa cuando todos la guardaron.
+ */
+class CompositeHistoryStore implements HistoryStore {
+    private final List<HistoryStore> stores;
+
+    CompositeHistoryStore(List<HistoryStore> stores) {
+        this.stores = List.copyOf(stores);
+    }
+
+    @Override
+    public String name() {
+        StringBuilder sb = new StringBuilder();
+        for (HistoryStore s : stores) {
+            if (sb.length() > 0) {
+                sb.append('+');
+            }
+            sb.append(s.name());
+        }
+        return sb.toString();
+    }
+
+    // Depende de quién responde las lecturas
+    @Override
+    public boolean cacheable() {
+        return stores.get(0).cacheable();
+    }
+
+    @Override
+    public CompletableFuture<Void> append(HistoryRecord record) {
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[stores.size()];
+        for (int i = 0; i < writes.length; i++) {
+            writes[i] = stores.get(i).append(record);
+        }
+        return CompletableFuture.allOf(writes);
+    }
+
+    @Override
+    public HistoryPage read(String conversation, HistoryQuery query) {
+        return stores.get(0).read(conversation, query);
+    }
+
+    @Override
+    public boolean clear(String conversation) {
+        boolean existed = false;
+        for (HistoryStore s : stores) {
+            existed |= s.clear(conversation);
+        }
+        return existed;
+    }
+
+    @Override
+    public void addStats(JsonObject stats) {
+        for (HistoryStore s : stores) {
+            s.addStats(stats);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (HistoryStore s : stores) {
+            s.close();
+        }
+    }
+}
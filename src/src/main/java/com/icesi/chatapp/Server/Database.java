@@ -3,30 +3,34 @@ package com.icesi.chatapp.Server;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
+import javax.sql.DataSource;
 import java.io.File;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class Database {
-    private static HikariDataSource ds;
+    private static DataSource ds;
+    private static DatabaseBatchWriter writer;
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    private static final String INSERT_MESSAGE = "INSERT INTO messages(created_at, type, sender, target, is_group, conversation_key, content) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_AUDIO = "INSERT INTO audio_files(created_at, sender, target, is_group, blob_id, file_path) VALUES (?, ?, ?, ?, ?, ?)";
+
     /**
-     * Inicializa la conexión con configuración embebida.
-     * No depende de variables de entorno.
+     * Inicializa la conexión con chat.db.url / chat.db.user / chat.db.password
+     * (por defecto, la base de siempre del laboratorio).
      */
     public static synchronized void init() throws SQLException {
         if (ds != null)
             return;
-        String dbHost = "192.168.1.10"; // o "localhost" si es la misma máquina
-        int dbPort = 5432;
-        String dbName = "chatdb";
-        String dbUser = "chat";
-        String dbPassword = "chatpass";
-        String dbUrl = String.format("jdbc:postgresql://%s:%d/%s", dbHost, dbPort, dbName);
+        String dbUrl = ServerConfig.DB_URL;
+        String dbUser = ServerConfig.DB_USER;
+        String dbPassword = ServerConfig.DB_PASSWORD;
 
         // Connection Pool
         HikariConfig config = new HikariConfig();
@@ -36,12 +40,26 @@ public class Database {
         config.setMaximumPoolSize(5);
         config.setMinimumIdle(1);
         config.setPoolName("ChatAppPool");
+        // El driver convierte cada executeBatch en INSERTs de varias filas
+        config.addDataSourceProperty("reWriteBatchedInserts", "true");
+
+        init(new HikariDataSource(config));
+
+        System.out.println("Conexión a PostgreSQL establecida correctamente en: " + dbUrl);
+    }
 
-        ds = new HikariDataSource(config);
+    /**
+     * Inicializa con un DataSource ya construido (otro pool, una base embebida
+     * para pruebas, etc.): crea las tablas y arranca el escritor por lotes.
+     */
+    public static synchronized void init(DataSource dataSource) throws SQLException {
+        if (ds != null)
+            return;
 
         // creacion de tablas si no existen
-        try (Connection conn = ds.getConnection()) {
+        try (Connection conn = dataSource.getConnection()) {
             try (Statement st = conn.createStatement()) {
+                boolean hadMessages = tableExists(conn, "messages");
                 st.execute("""
                         CREATE TABLE IF NOT EXISTS messages (
                             id BIGSERIAL PRIMARY KEY,
@@ -50,10 +68,30 @@ public class Database {
                             sender VARCHAR(255),
                             target VARCHAR(255),
                             is_group BOOLEAN,
+                            conversation_key VARCHAR(520) NOT NULL,
                             content TEXT
                         )
                         """);
 
+                // Tablas creadas antes de conversation_key: se agrega y se rellena una sola vez
+                if (hadMessages && !columnExists(conn, "messages", "conversation_key")) {
+                    st.execute("ALTER TABLE messages ADD COLUMN conversation_key VARCHAR(520)");
+                    st.execute("""
+                            UPDATE messages SET conversation_key = CASE
+                                WHEN is_group THEN 'group_' || target
+                                ELSE 'private_' || LEAST(sender COLLATE "C", target COLLATE "C")
+                                     || '_' || GREATEST(sender COLLATE "C", target COLLATE "C")
+                            END
+                            """);
+                    st.execute("ALTER TABLE messages ALTER COLUMN conversation_key SET NOT NULL");
+                }
+
+                // Historial por conversación: búsqueda por clave y recorrido por id sin ordenar
+                st.execute("""
+                        CREATE INDEX IF NOT EXISTS messages_conversation_id_idx
+                            ON messages (conversation_key, id)
+                        """);
+
                 st.execute("""
                         CREATE TABLE IF NOT EXISTS audio_files (
                             id BIGSERIAL PRIMARY KEY,
@@ -61,13 +99,30 @@ public class Database {
                             sender VARCHAR(255),
                             target VARCHAR(255),
                             is_group BOOLEAN,
+                            -- SHA-256 del audio en el almacén por contenido (null en filas anteriores)
+                            blob_id CHAR(64),
                             file_path TEXT
                         )
                         """);
+                st.execute("ALTER TABLE audio_files ADD COLUMN IF NOT EXISTS blob_id CHAR(64)");
             }
         }
 
-        System.out.println("Conexión a PostgreSQL establecida correctamente en: " + dbUrl);
+        ds = dataSource;
+        writer = new DatabaseBatchWriter(ds, ServerConfig.DB_QUEUE_CAPACITY, ServerConfig.DB_MAX_BATCH,
+                ServerConfig.DB_MAX_LATENCY_MS, ServerConfig.DB_ENQUEUE_TIMEOUT_MS);
+    }
+
+    private static boolean tableExists(Connection conn, String table) throws SQLException {
+        try (ResultSet rs = conn.getMetaData().getTables(null, null, table, null)) {
+            return rs.next();
+        }
+    }
+
+    private static boolean columnExists(Connection conn, String table, String column) throws SQLException {
+        try (ResultSet rs = conn.getMetaData().getColumns(null, null, table, column)) {
+            return rs.next();
+        }
     }
 
     public static Connection getConnection() throws SQLException {
@@ -76,37 +131,42 @@ public class Database {
         return ds.getConnection();
     }
 
-    public static void saveTextMessage(String type, String sender, String target, boolean isGroup, String content) {
-        try (Connection conn = getConnection()) {
-            String sql = "INSERT INTO messages(created_at, type, sender, target, is_group, content) VALUES (?, ?, ?, ?, ?, ?)";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
-                ps.setString(2, type);
-                ps.setString(3, sender);
-                ps.setString(4, target);
-                ps.setBoolean(5, isGroup);
-                ps.setString(6, content);
-                ps.executeUpdate();
-            }
-        } catch (SQLException e) {
-            System.err.println("Error guardando mensaje en DB: " + e.getMessage());
-        }
+    static DatabaseBatchWriter getBatchWriter() {
+        return writer;
     }
 
-    public static void saveAudioRecord(String sender, String target, boolean isGroup, String filePath) {
-        try (Connection conn = getConnection()) {
-            String sql = "INSERT INTO audio_files(created_at, sender, target, is_group, file_path) VALUES (?, ?, ?, ?, ?)";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
-                ps.setString(2, sender);
-                ps.setString(3, target);
-                ps.setBoolean(4, isGroup);
-                ps.setString(5, filePath);
-                ps.executeUpdate();
-            }
-        } catch (SQLException e) {
-            System.err.println("Error guardando audio en DB: " + e.getMessage());
-        }
+    /*
+     * Los save* encolan la fila en el escritor por lotes y vuelven enseguida
+     * (o esperan si la cola está llena). created_at se toma al encolar. El
+     * futuro se completa cuando el lote hizo commit.
+     */
+
+    public static CompletableFuture<Void> saveTextMessage(String type, String sender, String target, boolean isGroup,
+            String content) {
+        String conversation = isGroup ? MessageHistory.groupConversation(target)
+                : MessageHistory.privateConversation(sender, target);
+        return batchWriter().insert(INSERT_MESSAGE,
+                Timestamp.valueOf(LocalDateTime.now()), type, sender, target, isGroup, conversation, content)
+                .whenComplete((ok, e) -> {
+                    if (e != null)
+                        System.err.println("Error guardando mensaje en DB: " + e.getMessage());
+                });
+    }
+
+    public static CompletableFuture<Void> saveAudioRecord(String sender, String target, boolean isGroup,
+            String blobId, String filePath) {
+        return batchWriter().insert(INSERT_AUDIO,
+                Timestamp.valueOf(LocalDateTime.now()), sender, target, isGroup, blobId, filePath)
+                .whenComplete((ok, e) -> {
+                    if (e != null)
+                        System.err.println("Error guardando audio en DB: " + e.getMessage());
+                });
+    }
+
+    private static DatabaseBatchWriter batchWriter() {
+        if (writer == null)
+            throw new IllegalStateException("DataSource no inicializada. Llama a Database.init().");
+        return writer;
     }
 
     /**
@@ -141,67 +201,113 @@ public class Database {
     }
 
     public static List<String> getPrivateHistory(String user1, String user2) {
-        List<String> out = new ArrayList<>();
+        return getPrivateHistoryPage(user1, user2, HistoryQuery.all()).messages();
+    }
+
+    public static List<String> getGroupHistory(String groupName) {
+        return getGroupHistoryPage(groupName, HistoryQuery.all()).messages();
+    }
+
+    public static HistoryPage getPrivateHistoryPage(String user1, String user2, HistoryQuery query) {
+        return getHistoryPage(MessageHistory.privateConversation(user1, user2), query);
+    }
+
+    public static HistoryPage getGroupHistoryPage(String groupName, HistoryQuery query) {
+        return getHistoryPage(MessageHistory.groupConversation(groupName), query);
+    }
+
+    /**
+     * Paginación por clave (keyset) sobre el índice (conversation_key, id):
+     * los cursores before/after son ids de mensaje, así que cada página cuesta
+     * lo mismo sin importar cuántas filas tenga la tabla ni qué tan atrás se
+     * lea. Se pide una fila de más para saber si hay otra página en esa
+     * dirección.
+     */
+    public static HistoryPage getHistoryPage(String conversationKey, HistoryQuery query) {
+        boolean forward = query.after() != null;
+        String sql = forward ? """
+                SELECT id, created_at, sender, target, is_group, content
+                FROM messages
+                WHERE conversation_key = ? AND id > ?
+                ORDER BY id ASC
+                LIMIT ?
+                """ : """
+                SELECT id, created_at, sender, target, is_group, content
+                FROM messages
+                WHERE conversation_key = ? AND id < ?
+                ORDER BY id DESC
+                LIMIT ?
+                """;
+        long cursor = forward ? query.after() : query.before() != null ? query.before() : Long.MAX_VALUE;
+
+        List<Long> ids = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
         try (Connection conn = getConnection()) {
-            String sql = """
-                    SELECT created_at, sender, target, content
-                    FROM messages
-                    WHERE is_group = false
-                    AND ((sender = ? AND target = ?) OR (sender = ? AND target = ?))
-                    ORDER BY created_at ASC
-                    """;
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setString(1, user1);
-                ps.setString(2, user2);
-                ps.setString(3, user2);
-                ps.setString(4, user1);
+                ps.setString(1, conversationKey);
+                ps.setLong(2, cursor);
+                ps.setLong(3, (long) query.limit() + 1);
                 try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next()) {
-                        Timestamp ts = rs.getTimestamp(1);
-                        String sender = rs.getString(2);
-                        String target = rs.getString(3);
-                        String content = rs.getString(4);
-                        out.add(String.format("[%s] %s -> %s: %s", ts.toString(), sender, target, content));
+                        ids.add(rs.getLong(1));
+                        lines.add(formatLine(rs.getTimestamp(2), rs.getString(3), rs.getString(4),
+                                rs.getBoolean(5), rs.getString(6)));
                     }
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error leyendo historial privado desde DB: " + e.getMessage());
+            System.err.println("Error leyendo historial desde DB: " + e.getMessage());
+            return HistoryPage.empty();
+        }
+
+        boolean more = lines.size() > query.limit();
+        if (more) {
+            ids.remove(ids.size() - 1);
+            lines.remove(lines.size() - 1);
         }
-        return out;
+        if (!forward) {
+            Collections.reverse(ids);
+            Collections.reverse(lines);
+        }
+        if (lines.isEmpty()) {
+            return HistoryPage.empty();
+        }
+
+        // En la dirección de lectura el dato es exacto; en la otra basta con que hubiera cursor
+        boolean moreBefore = forward ? query.after() > 0 : more;
+        boolean moreAfter = forward ? more : query.before() != null;
+        return new HistoryPage(lines, ids.get(0), ids.get(ids.size() - 1), -1, moreBefore, moreAfter);
     }
 
-    public static List<String> getGroupHistory(String groupName) {
-        List<String> out = new ArrayList<>();
+    // Borra el historial de una conversación; devuelve las filas borradas
+    public static int deleteConversation(String conversationKey) {
         try (Connection conn = getConnection()) {
-            String sql = """
-                    SELECT created_at, sender, content
-                    FROM messages
-                    WHERE is_group = true AND target = ?
-                    ORDER BY created_at ASC
-                    """;
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setString(1, groupName);
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        Timestamp ts = rs.getTimestamp(1);
-                        String sender = rs.getString(2);
-                        String content = rs.getString(3);
-                        out.add(String.format("[%s] %s en %s: %s", ts.toString(), sender, groupName, content));
-                    }
-                }
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE conversation_key = ?")) {
+                ps.setString(1, conversationKey);
+                return ps.executeUpdate();
             }
         } catch (SQLException e) {
-            System.err.println("Error leyendo historial de grupo desde DB: " + e.getMessage());
+            System.err.println("Error borrando historial en DB: " + e.getMessage());
+            return 0;
         }
-        return out;
+    }
+
+    private static String formatLine(Timestamp ts, String sender, String target, boolean isGroup, String content) {
+        String time = ts.toLocalDateTime().format(formatter);
+        return isGroup
+                ? String.format("[%s] %s en %s: %s", time, sender, target, content)
+                : String.format("[%s] %s -> %s: %s", time, sender, target, content);
     }
 
     // Cerrar datasource
     public static synchronized void shutdown() {
-        if (ds != null) {
-            ds.close();
-            ds = null;
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (ds instanceof HikariDataSource hikari) {
+            hikari.close();
         }
+        ds = null;
     }
 }
@@ -0,0 +1,217 @@
+package com.icesi.chatapp.Server;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ingesta por lotes hacia la base de datos.
+ *
+ * Los INSERT se encolan en una cola acotada y un único hilo los agrupa: toma
+ * una conexión del pool por lote, hace {@code addBatch} por fila y un solo
+ * {@code executeBatch} + commit por sentencia. Un lote se cierra al llegar a
+ * {@code maxBatch} filas o cuando la fila más antigua lleva {@code maxLatency}
+ * esperando.
+ *
+ * Si la cola se llena, quien encola espera hasta {@code enqueueTimeout}
+ * (contrapresión); si aun así no hay lugar, la fila se rechaza y su futuro
+ * falla en vez de crecer la memoria sin límite.
+ */
+class DatabaseBatchWriter {
+    private record Row(String sql, Object[] values, long enqueuedAt, CompletableFuture<Void> done) {
+    }
+
+    private final DataSource dataSource;
+    private final BlockingQueue<Row> queue;
+    private final long maxLatencyNanos;
+    private final int maxBatch;
+    private final long enqueueTimeoutMillis;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    // Métricas
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    DatabaseBatchWriter(DataSource dataSource, int capacity, int maxBatch, long maxLatencyMillis,
+            long enqueueTimeoutMillis) {
+        this.dataSource = dataSource;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLatencyMillis));
+        this.enqueueTimeoutMillis = Math.max(0, enqueueTimeoutMillis);
+        this.flusher = new Thread(this::flushLoop, "db-batch-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Encola un INSERT; el futuro se completa cuando su lote hizo commit
+    CompletableFuture<Void> insert(String sql, Object... values) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (!running) {
+            done.completeExceptionally(new SQLException("Escritor de base de datos cerrado"));
+            return done;
+        }
+        try {
+            if (!queue.offer(new Row(sql, values, System.nanoTime(), done), enqueueTimeoutMillis,
+                    TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                done.completeExceptionally(new SQLException("Cola de base de datos llena"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    // Vacía la cola y detiene el hilo
+    void close() {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    long getRows() {
+        return rows.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    private void flushLoop() {
+        List<Row> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Row first = running ? queue.take() : queue.poll();
+                if (first == null) {
+                    break;
+                }
+                batch.add(first);
+                long deadline = first.enqueuedAt() + maxLatencyNanos;
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Row next = remaining > 0 && running
+                            ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                            : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // close(): se sigue vaciando lo que quede en la cola
+                if (batch.isEmpty()) {
+                    continue;
+                }
+            }
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    /*
+     * Un executeBatch por sentencia y un commit para todo el lote. Si el lote
+     * falla se deshace y se reintenta fila por fila en la misma conexión, cada
+     * una con su commit: una fila inválida (restricción, valor demasiado largo)
+     * hace fallar solo su futuro y no se lleva puestas a las demás. Si no hay
+     * conexión falla todo el lote.
+     */
+    private void flush(List<Row> batch) {
+        Map<String, List<Row>> bySql = new LinkedHashMap<>();
+        for (Row r : batch) {
+            bySql.computeIfAbsent(r.sql(), s -> new ArrayList<>()).add(r);
+        }
+
+        batches.incrementAndGet();
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (Map.Entry<String, List<Row>> group : bySql.entrySet()) {
+                    try (PreparedStatement ps = conn.prepareStatement(group.getKey())) {
+                        for (Row r : group.getValue()) {
+                            bind(ps, r);
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                System.err.println("Error guardando lote en DB (" + batch.size() + " filas), se reintenta fila por fila: "
+                        + e.getMessage());
+                retryRows(conn, bySql);
+                return;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error guardando lote en DB (" + batch.size() + " filas): " + e.getMessage());
+            for (Row r : batch) {
+                if (!r.done().isDone()) {
+                    failed.incrementAndGet();
+                    r.done().completeExceptionally(e);
+                }
+            }
+            return;
+        }
+
+        rows.addAndGet(batch.size());
+        for (Row r : batch) {
+            r.done().complete(null);
+        }
+    }
+
+    // Cada fila con su propio commit; las que fallan se deshacen y fallan solas
+    private void retryRows(Connection conn, Map<String, List<Row>> bySql) throws SQLException {
+        for (Map.Entry<String, List<Row>> group : bySql.entrySet()) {
+            try (PreparedStatement ps = conn.prepareStatement(group.getKey())) {
+                for (Row r : group.getValue()) {
+                    try {
+                        bind(ps, r);
+                        ps.executeUpdate();
+                        conn.commit();
+                        rows.incrementAndGet();
+                        r.done().complete(null);
+                    } catch (SQLException e) {
+                        conn.rollback();
+                        System.err.println("Fila rechazada por la DB: " + e.getMessage());
+                        failed.incrementAndGet();
+                        r.done().completeExceptionally(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void bind(PreparedStatement ps, Row r) throws SQLException {
+        for (int i = 0; i < r.values().length; i++) {
+            ps.setObject(i + 1, r.values()[i]);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonObject;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Backend "postgres": guarda cada mensaje en la tabla messages a través del
+ * escritor por lotes de {@link Database} y lee con la paginación por id.
+ *
+ * Las notas de voz van a messages como {@code [AUDIO: id]} (para que
+ * aparezcan en el historial) y además a audio_files con el id del audio en
+ * {@link AudioBlobStore} y la ruta de su archivo. Como el escritor es
+ * asíncrono, una lectura espera a que termine la última escritura encolada
+ * para esa conversación.
+ */
+class DatabaseHistoryStore implements HistoryStore {
+    // Último futuro encolado por conversación, como en el journal
+    private final Map<String, CompletableFuture<Void>> lastWrite = new ConcurrentHashMap<>();
+
+    DatabaseHistoryStore() throws SQLException {
+        Database.init();
+    }
+
+    @Override
+    public String name() {
+        return "postgres";
+    }
+
+    // Los cursores son ids que asigna la base, no secuencias por conversación
+    @Override
+    public boolean cacheable() {
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Void> append(HistoryRecord r) {
+        boolean isGroup = r.kind() == HistoryRecord.GROUP_TEXT || r.kind() == HistoryRecord.GROUP_AUDIO;
+        CompletableFuture<Void> done = switch (r.kind()) {
+            case HistoryRecord.PRIVATE_AUDIO, HistoryRecord.GROUP_AUDIO -> CompletableFuture.allOf(
+                    Database.saveTextMessage("audio", r.sender(), r.target(), isGroup,
+                            "[AUDIO: " + r.payload() + "]"),
+                    Database.saveAudioRecord(r.sender(), r.target(), isGroup,
+                            AudioBlobStore.isId(r.payload()) ? r.payload() : null,
+                            MessageHistory.audioFile(r.payload()).getPath()));
+            default -> Database.saveTextMessage(isGroup ? "group" : "private", r.sender(), r.target(), isGroup,
+                    r.payload());
+        };
+
+        lastWrite.put(r.conversation(), done);
+        done.whenComplete((ok, e) -> lastWrite.remove(r.conversation(), done));
+        return done;
+    }
+
+    @Override
+    public HistoryPage read(String conversation, HistoryQuery query) {
+        awaitPending(conversation);
+        return Database.getHistoryPage(conversation, query);
+    }
+
+    @Override
+    public boolean clear(String conversation) {
+        awaitPending(conversation);
+        return Database.deleteConversation(conversation) > 0;
+    }
+
+    private void awaitPending(String conversation) {
+        CompletableFuture<Void> last = lastWrite.get(conversation);
+        if (last != null) {
+            try {
+                last.join();
+            } catch (Exception ignore) {
+                // El error ya se registró al guardar
+            }
+        }
+    }
+
+    @Override
+    public void addStats(JsonObject stats) {
+        DatabaseBatchWriter db = Database.getBatchWriter();
+        if (db != null) {
+            stats.addProperty("dbQueueDepth", db.getQueueDepth());
+            stats.addProperty("dbBatches", db.getBatches());
+            stats.addProperty("dbRows", db.getRows());
+            stats.addProperty("dbFailedRows", db.getFailed());
+            stats.addProperty("dbRejectedRows", db.getRejected());
+        }
+    }
+
+    @Override
+    public void close() {
+        Database.shutdown();
+    }
+}
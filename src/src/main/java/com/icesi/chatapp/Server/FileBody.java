@@ -0,0 +1,35 @@
+package com.icesi.chatapp.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Contenido de un frame que no está en memoria: el escritor de la conexión
+ * ({@link StreamWriter}) lo manda directo al socket cuando le toca en la cola.
+ * A cada cuerpo encolado le pasa exactamente una de dos cosas: se escribe con
+ * {@link #transferTo} o se descarta con {@link #discard}.
+ */
+interface FileBody {
+
+    void transferTo(WritableByteChannel target) throws IOException;
+
+    // No se va a escribir nunca (la cola lo descartó o se cerró): suelta lo que tenga abierto
+    default void discard() {
+    }
+
+    // Un archivo completo; se abre recién al escribirlo
+    static FileBody of(File file) {
+        return target -> {
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            }
+        };
+    }
+}
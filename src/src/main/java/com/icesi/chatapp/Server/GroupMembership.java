@@ -0,0 +1,128 @@
+package com.icesi.chatapp.Server;
+
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * Índice de pertenencia a grupos sobre ids de {@link Symbols}: por cada
+ * grupo el bitmap de sus miembros y, al revés, por cada usuario el bitmap de
+ * sus grupos. Con el índice inverso, sacar a un usuario de todo o listar sus
+ * grupos cuesta lo que sus propias membresías y no recorre todos los grupos.
+ *
+ * Los bitmaps son Roaring: comprimidos por bloques de 2^16 ids, así que un
+ * grupo grande ocupa bastante menos que 4 bytes por miembro y las
+ * intersecciones (miembros conectados, ver SessionRegistry.onlineAmong) van
+ * por bloques y no miembro por miembro.
+ *
+ * Un bitmap publicado no se modifica nunca: cada cambio arma uno nuevo bajo
+ * el monitor y lo reemplaza, así que leer no toma locks y quien recibe un
+ * bitmap puede recorrerlo mientras otros cambian el grupo. Los grupos cambian
+ * muy poco comparado con cuántas veces se leen.
+ */
+final class GroupMembership {
+    private final IdIndex<RoaringBitmap> membersByGroup = new IdIndex<>();
+    private final IdIndex<RoaringBitmap> groupsByUser = new IdIndex<>();
+    // Ids de los grupos que existen
+    private volatile RoaringBitmap groups = new RoaringBitmap();
+
+    // false si el grupo ya existía
+    synchronized boolean create(int group, int[] members) {
+        if (groups.contains(group)) {
+            return false;
+        }
+        RoaringBitmap bitmap = RoaringBitmap.bitmapOf(members);
+        bitmap.runOptimize();
+        membersByGroup.set(group, bitmap);
+        for (int user : members) {
+            groupsByUser.set(user, with(groupsByUser.get(user), group));
+        }
+        groups = with(groups, group);
+        return true;
+    }
+
+    // Agrega al usuario y crea el grupo si no existía; false si ya era miembro
+    synchronized boolean add(int group, int user) {
+        RoaringBitmap members = membersByGroup.get(group);
+        if (members != null && members.contains(user)) {
+            return false;
+        }
+        if (!groups.contains(group)) {
+            groups = with(groups, group);
+        }
+        membersByGroup.set(group, with(members, user));
+        groupsByUser.set(user, with(groupsByUser.get(user), group));
+        return true;
+    }
+
+    // Borra el grupo; false si no existía
+    synchronized boolean delete(int group) {
+        RoaringBitmap members = membersByGroup.get(group);
+        if (!groups.contains(group)) {
+            return false;
+        }
+        if (members != null) {
+            for (int user : members.toArray()) {
+                groupsByUser.set(user, without(groupsByUser.get(user), group));
+            }
+        }
+        membersByGroup.set(group, null);
+        RoaringBitmap remaining = groups.clone();
+        remaining.remove(group);
+        groups = remaining;
+        return true;
+    }
+
+    // Saca al usuario de todos sus grupos (los grupos siguen existiendo aunque queden vacíos)
+    synchronized void removeUser(int user) {
+        RoaringBitmap mine = groupsByUser.get(user);
+        if (mine == null) {
+            return;
+        }
+        for (int group : mine.toArray()) {
+            membersByGroup.set(group, without(membersByGroup.get(group), user));
+        }
+        groupsByUser.set(user, null);
+    }
+
+    boolean exists(int group) {
+        return group >= 0 && groups.contains(group);
+    }
+
+    // Miembros del grupo o null si no existe; no se modifica
+    RoaringBitmap members(int group) {
+        if (!exists(group)) {
+            return null;
+        }
+        RoaringBitmap members = membersByGroup.get(group);
+        return members == null ? new RoaringBitmap() : members;
+    }
+
+    // Grupos del usuario (vacío si no tiene); no se modifica
+    RoaringBitmap groupsOf(int user) {
+        RoaringBitmap mine = groupsByUser.get(user);
+        return mine == null ? new RoaringBitmap() : mine;
+    }
+
+    // Ids de todos los grupos; no se modifica
+    RoaringBitmap groups() {
+        return groups;
+    }
+
+    boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    private static RoaringBitmap with(RoaringBitmap bitmap, int id) {
+        RoaringBitmap copy = bitmap == null ? new RoaringBitmap() : bitmap.clone();
+        copy.add(id);
+        return copy;
+    }
+
+    private static RoaringBitmap without(RoaringBitmap bitmap, int id) {
+        if (bitmap == null) {
+            return null;
+        }
+        RoaringBitmap copy = bitmap.clone();
+        copy.remove(id);
+        return copy.isEmpty() ? null : copy;
+    }
+}
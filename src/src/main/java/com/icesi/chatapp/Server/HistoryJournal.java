@@ -0,0 +1,231 @@
+package com.icesi.chatapp.Server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Journal de escritura diferida sobre el log de historial.
+ *
+ * Hay un carril (lane) por partición del {@link HistoryLog}: cada
+ * conversación cae siempre en la misma partición, así que sus escrituras
+ * quedan serializadas sin locks y las de conversaciones distintas avanzan en
+ * paralelo. Cada carril tiene su propia cola sin bloqueos y su propio hilo
+ * escritor.
+ *
+ * El escritor de cada carril agrupa las entradas en lotes: las anexa al log y
+ * hace un solo force (msync) por lote. Un lote se cierra al llegar a
+ * {@code maxBatch} entradas o cuando la entrada más antigua lleva
+ * {@code maxLatency} esperando. Cada entrada devuelve un futuro que se
+ * completa cuando el registro ya está en disco, y recién entonces es visible
+ * para las lecturas.
+ */
+class HistoryJournal {
+    private record Entry(HistoryRecord record, long enqueuedAt, CompletableFuture<Void> done) {
+    }
+
+    private final HistoryLog log;
+    private final Lane[] lanes;
+
+    // Último futuro encolado por conversación: lecturas y borrados esperan a que sus escrituras sean durables
+    private final Map<String, CompletableFuture<Void>> lastWrite = new ConcurrentHashMap<>();
+
+    private final long maxLatencyNanos;
+    private final int maxBatch;
+    private volatile boolean running = true;
+
+    // Métricas
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    HistoryJournal(HistoryLog log, long maxLatencyMillis, int maxBatch) {
+        this.log = log;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLatencyMillis));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lanes = new Lane[log.getPartitionCount()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    // Encola un registro (también los CLEAR de borrado); el futuro se completa tras el force
+    CompletableFuture<Void> append(HistoryRecord record) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (!running) {
+            done.completeExceptionally(new IOException("Journal cerrado"));
+            return done;
+        }
+        // Encolar dentro del compute: el orden en la cola es el mismo en que se anota lastWrite
+        Lane lane = lanes[log.partitionFor(record.conversation())];
+        lastWrite.compute(record.conversation(), (k, previous) -> {
+            lane.add(new Entry(record, System.nanoTime(), done));
+            return done;
+        });
+        return done;
+    }
+
+    // Espera a que todo lo encolado para la conversación esté en disco (no bloquea a otros escritores)
+    void awaitPending(String conversation) {
+        CompletableFuture<Void> last = lastWrite.get(conversation);
+        if (last != null) {
+            try {
+                last.join();
+            } catch (Exception ignore) {
+                // El error ya se registró al escribir; la lectura sigue con lo que haya en disco
+            }
+        }
+    }
+
+    // Vacía las colas y detiene los escritores
+    void close() {
+        running = false;
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.writer);
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.writer.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    int getLaneCount() {
+        return lanes.length;
+    }
+
+    int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queued.get();
+        }
+        return depth;
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    long getEntries() {
+        return entries.get();
+    }
+
+    long getSyncs() {
+        return syncs.get();
+    }
+
+    private class Lane {
+        private final int partition;
+        private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final Thread writer;
+        private volatile boolean idle;
+
+        Lane(int partition) {
+            this.partition = partition;
+            writer = new Thread(this::writeLoop, "history-journal-" + partition);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void add(Entry entry) {
+            queue.add(entry);
+            queued.incrementAndGet();
+            if (idle) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        private void writeLoop() {
+            List<Entry> batch = new ArrayList<>(maxBatch);
+            while (running || !queue.isEmpty()) {
+                Entry first = queue.poll();
+                if (first == null) {
+                    idle = true;
+                    // Volver a mirar tras marcar idle para no perder un unpark
+                    if (queue.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = first.enqueuedAt() + maxLatencyNanos;
+                while (batch.size() < maxBatch) {
+                    Entry next = queue.poll();
+                    if (next != null) {
+                        batch.add(next);
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !running) {
+                        break;
+                    }
+                    idle = true;
+                    if (queue.isEmpty()) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    idle = false;
+                }
+
+                queued.addAndGet(-batch.size());
+                commit(partition, batch);
+                batch.clear();
+            }
+        }
+    }
+
+    // Anexa el lote a la partición del carril con un solo force al final
+    private void commit(int partition, List<Entry> batch) {
+        long[] positions = new long[batch.size()];
+        IOException[] errors = new IOException[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                positions[i] = log.append(partition, batch.get(i).record());
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Error al guardar en historial: " + e.getMessage());
+                errors[i] = e instanceof IOException io ? io : new IOException(e.getMessage(), e);
+            }
+        }
+
+        IOException syncError = null;
+        try {
+            log.force(partition);
+            syncs.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("Error al sincronizar historial: " + e.getMessage());
+            syncError = e;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Entry e = batch.get(i);
+            IOException error = errors[i] != null ? errors[i] : syncError;
+            if (error == null) {
+                log.publish(e.record(), positions[i]);
+            }
+            finish(e, error);
+        }
+
+        batches.incrementAndGet();
+        entries.addAndGet(batch.size());
+    }
+
+    private void finish(Entry e, IOException error) {
+        if (error == null) {
+            e.done().complete(null);
+        } else {
+            e.done().completeExceptionally(error);
+        }
+        lastWrite.remove(e.record().conversation(), e.done());
+    }
+}
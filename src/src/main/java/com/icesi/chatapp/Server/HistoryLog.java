@@ -0,0 +1,628 @@
+package com.icesi.chatapp.Server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Log de historial de solo-anexar, segmentado y mapeado en memoria.
+ *
+ * Todas las conversaciones comparten unas pocas particiones
+ * ({@code chat_log/p-N/}), cada una una secuencia de segmentos de tamaño fijo
+ * ({@code 0000000000.seg}, ...). Cada segmento se mapea una vez y su canal se
+ * cierra enseguida, así que no hay un descriptor abierto por conversación. Una
+ * conversación vive siempre en la misma partición y cada partición la escribe
+ * un único carril del journal, sin locks.
+ *
+ * Índice por conversación: las posiciones de sus registros en el segmento
+ * activo de cada partición están en memoria. Cuando la partición pasa al
+ * segmento siguiente, las del que se cerró se escriben al lado
+ * ({@code 0000000000.idx}: por conversación, los offsets de sus registros en
+ * ese segmento) y en memoria queda solo dónde empiezan en el .idx, una
+ * entrada por segmento. Leer una página es tomar esos offsets del .idx
+ * mapeado e ir directo a los registros, sin importar el largo del historial.
+ *
+ * Al arrancar se leen los .idx de los segmentos cerrados y se recorre solo el
+ * activo. Un segmento cerrado sin .idx válido (log de una versión anterior,
+ * caída justo al cerrarlo) se recorre y se le escribe el suyo. Un registro
+ * cortado (CRC incorrecto) marca el final de lo escrito.
+ *
+ * Un log nuevo guarda los nombres (remitente, destino, conversación) como ids
+ * de {@link Symbols}; uno creado antes sigue con los nombres como texto. Lo
+ * dice {@code names} en log.properties.
+ */
+final class HistoryLog {
+    private static final String META_FILE = "log.properties";
+    private static final int INDEX_MAGIC = 0x48495831; // "HIX1"
+
+    private final int segmentBytes;
+    // null: nombres como texto en los registros
+    private final Symbols symbols;
+    private final Partition[] partitions;
+    private final Map<String, Conversation> conversations = new ConcurrentHashMap<>();
+
+    private HistoryLog(File dir, int partitionCount, int segmentBytes, Symbols symbols) {
+        this.segmentBytes = segmentBytes;
+        this.symbols = symbols;
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(new File(dir, "p-" + i));
+        }
+    }
+
+    /*
+     * Abre el log en dir. Si todavía no existe (no hay log.properties), se
+     * crea con los valores dados y se importan los archivos .txt de legacyDir;
+     * si existe, manda lo que diga log.properties.
+     */
+    static HistoryLog open(File dir, File legacyDir, int partitionCount, int segmentBytes, Symbols symbols)
+            throws IOException {
+        dir.mkdirs();
+        File meta = new File(dir, META_FILE);
+        Properties props = new Properties();
+
+        if (meta.exists()) {
+            try (InputStream in = new FileInputStream(meta)) {
+                props.load(in);
+            }
+            HistoryLog log = new HistoryLog(dir,
+                    Integer.parseInt(props.getProperty("partitions")),
+                    Integer.parseInt(props.getProperty("segmentBytes")),
+                    "symbols".equals(props.getProperty("names")) ? symbols : null);
+            log.recover();
+            return log;
+        }
+
+        // Log nuevo (o una importación que no terminó): se empieza de cero
+        HistoryLog log = new HistoryLog(dir, Math.max(1, partitionCount), segmentBytes, symbols);
+        for (Partition p : log.partitions) {
+            p.wipe();
+        }
+        log.importLegacy(legacyDir);
+
+        props.setProperty("partitions", String.valueOf(log.partitions.length));
+        props.setProperty("segmentBytes", String.valueOf(segmentBytes));
+        props.setProperty("names", "symbols");
+        try (OutputStream out = new FileOutputStream(meta)) {
+            props.store(out, "Log de historial: no cambiar a mano");
+        }
+        return log;
+    }
+
+    int getPartitionCount() {
+        return partitions.length;
+    }
+
+    int partitionFor(String conversation) {
+        return Math.floorMod(conversation.hashCode(), partitions.length);
+    }
+
+    int getSegmentCount() {
+        int count = 0;
+        for (Partition p : partitions) {
+            count += p.segments.length;
+        }
+        return count;
+    }
+
+    int getConversationCount() {
+        return conversations.size();
+    }
+
+    /*
+     * Escritura: solo el carril dueño de la partición llama a append, force y
+     * publish. Un registro no es visible para los lectores hasta publish, que
+     * el journal llama después del force.
+     */
+
+    long append(int partition, HistoryRecord record) throws IOException {
+        return partitions[partition].append(record.encode(symbols));
+    }
+
+    void force(int partition) throws IOException {
+        partitions[partition].force();
+    }
+
+    void publish(HistoryRecord record, long position) {
+        String key = record.conversation();
+        Partition partition = partitions[partitionFor(key)];
+        partition.advance((int) (position / segmentBytes));
+        if (record.kind() == HistoryRecord.CLEAR) {
+            conversations.remove(key);
+            partition.cleared(key);
+        } else {
+            Conversation c = conversations.computeIfAbsent(key, k -> new Conversation());
+            c.add(position);
+            partition.touched(key, c);
+        }
+    }
+
+    long messageCount(String conversation) {
+        Conversation c = conversations.get(conversation);
+        return c == null ? 0 : c.snapshot.count();
+    }
+
+    // Lectura sin locks: instantánea del índice y lectura directa de los segmentos mapeados
+    HistoryPage read(String conversation, HistoryQuery query) {
+        Conversation c = conversations.get(conversation);
+        if (c == null) {
+            return HistoryPage.empty();
+        }
+
+        Positions s = c.snapshot;
+        long[] range = query.range(s.count());
+        long from = range[0];
+        long to = range[1];
+        Partition partition = partitions[partitionFor(conversation)];
+
+        List<String> messages = new ArrayList<>((int) (to - from));
+        for (long i = from; i < to; i++) {
+            messages.add(partition.read(partition.position(s, i)).toLine());
+        }
+        return HistoryPage.ofRange(messages, from, s.count());
+    }
+
+    // Carga los .idx de los segmentos cerrados y recorre lo demás
+    private void recover() throws IOException {
+        int scanned = 0;
+        for (Partition p : partitions) {
+            scanned += p.recover();
+        }
+        System.out.println("Log de historial: " + conversations.size() + " conversaciones en "
+                + getSegmentCount() + " segmentos (" + scanned + " recorridos)");
+    }
+
+    // Importa private_a_b.txt / group_x.txt; la clave de la conversación es el nombre sin .txt
+    private void importLegacy(File legacyDir) throws IOException {
+        File[] files = legacyDir.listFiles((d, name) -> name.endsWith(".txt"));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Arrays.sort(files);
+
+        int imported = 0;
+        for (File file : files) {
+            String conversation = file.getName().substring(0, file.getName().length() - ".txt".length());
+            int partition = partitionFor(conversation);
+            try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    HistoryRecord record = new HistoryRecord(legacyTimestamp(line), HistoryRecord.LEGACY,
+                            "", "", conversation, line);
+                    publish(record, append(partition, record));
+                    imported++;
+                }
+            }
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            force(i);
+        }
+        System.out.println("Log de historial: importados " + imported + " mensajes de " + files.length
+                + " archivos de " + legacyDir.getPath());
+    }
+
+    private static long legacyTimestamp(String line) {
+        try {
+            return HistoryRecord.parseTimestamp(line.substring(1, 20));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // Registros first, first + 1, ... de una conversación en un segmento cerrado: sus offsets están en el .idx desde offset
+    private record Chunk(int segment, long first, int offset) {
+    }
+
+    // Una conversación en el .idx de un segmento: sus offsets empiezan en offset
+    private record IndexEntry(String conversation, boolean cleared, int count, int offset) {
+    }
+
+    /*
+     * Dónde están los registros de una conversación: primero los de segmentos
+     * cerrados (sealedCount en total) y después los del segmento activo, con
+     * su posición. Un solo escritor, lectores sobre instantáneas.
+     */
+    private record Positions(Chunk[] sealed, long sealedCount, long[] active, int activeCount) {
+        long count() {
+            return sealedCount + activeCount;
+        }
+    }
+
+    private static final class Conversation {
+        private volatile Positions snapshot = new Positions(new Chunk[0], 0, new long[8], 0);
+
+        void add(long position) {
+            Positions s = snapshot;
+            long[] active = s.active();
+            if (s.activeCount() == active.length) {
+                active = Arrays.copyOf(active, active.length * 2);
+            }
+            active[s.activeCount()] = position;
+            snapshot = new Positions(s.sealed(), s.sealedCount(), active, s.activeCount() + 1);
+        }
+
+        // Los count registros que tenía en el segmento (todos los activos) pasan a leerse del .idx
+        void seal(int segment, int count, int offset) {
+            Positions s = snapshot;
+            Chunk[] sealed = Arrays.copyOf(s.sealed(), s.sealed().length + 1);
+            sealed[sealed.length - 1] = new Chunk(segment, s.sealedCount(), offset);
+            snapshot = new Positions(sealed, s.sealedCount() + count, new long[8], 0);
+        }
+    }
+
+    /*
+     * Una partición: segmentos de segmentBytes bytes. La posición de un
+     * registro es global dentro de la partición (segmento * segmentBytes +
+     * offset). Un registro nunca cruza segmentos; si no cabe, el resto del
+     * segmento queda en ceros y se pasa al siguiente.
+     */
+    private final class Partition {
+        private final File dir;
+        private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+        // .idx mapeados de los segmentos cerrados (null: el segmento no tiene)
+        private volatile MappedByteBuffer[] indexes = new MappedByteBuffer[0];
+        private long writePos;
+        private long dirtyFrom;
+        private final CRC32C crc = new CRC32C();
+
+        /*
+         * Lo que se publicó en activeSegment y todavía no tiene .idx: las
+         * conversaciones con registros ahí y las que se borraron. Solo lo
+         * toca el carril de la partición (o el arranque).
+         */
+        private int activeSegment = -1;
+        private final Map<String, Conversation> touched = new LinkedHashMap<>();
+        private final Set<String> cleared = new LinkedHashSet<>();
+        // Si un .idx no se pudo escribir, las posiciones quedan en memoria hasta reiniciar
+        private boolean indexFailed;
+
+        Partition(File dir) {
+            this.dir = dir;
+        }
+
+        long append(byte[] body) throws IOException {
+            int size = HistoryRecord.HEADER_BYTES + body.length;
+            if (size > segmentBytes) {
+                throw new IOException("Mensaje demasiado grande para un segmento del historial: " + size + " bytes");
+            }
+
+            int segment = (int) (writePos / segmentBytes);
+            int offset = (int) (writePos % segmentBytes);
+            if (segment >= segments.length || offset + size > segmentBytes) {
+                if (segment < segments.length) {
+                    segment++;
+                }
+                addSegment(segment);
+                offset = 0;
+            }
+
+            crc.reset();
+            crc.update(body);
+            MappedByteBuffer buf = segments[segment];
+            buf.put(offset + HistoryRecord.HEADER_BYTES, body);
+            buf.putInt(offset + Integer.BYTES, (int) crc.getValue());
+            buf.putInt(offset, body.length);
+
+            long position = (long) segment * segmentBytes + offset;
+            writePos = position + size;
+            return position;
+        }
+
+        // Un msync por segmento tocado desde el último force
+        void force() throws IOException {
+            if (dirtyFrom >= writePos) {
+                return;
+            }
+            int first = (int) (dirtyFrom / segmentBytes);
+            int last = (int) ((writePos - 1) / segmentBytes);
+            MappedByteBuffer[] segs = segments;
+            try {
+                for (int s = first; s <= last; s++) {
+                    int from = s == first ? (int) (dirtyFrom % segmentBytes) : 0;
+                    int to = s == last ? (int) (writePos - (long) s * segmentBytes) : segmentBytes;
+                    segs[s].force(from, to - from);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            dirtyFrom = writePos;
+        }
+
+        // Posición del registro i de la conversación: del .idx si su segmento está cerrado
+        long position(Positions s, long i) {
+            if (i >= s.sealedCount()) {
+                return s.active()[(int) (i - s.sealedCount())];
+            }
+            Chunk[] chunks = s.sealed();
+            int lo = 0;
+            int hi = chunks.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (chunks[mid].first() <= i) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            Chunk chunk = chunks[lo];
+            int offset = indexes[chunk.segment()].getInt(chunk.offset() + Integer.BYTES * (int) (i - chunk.first()));
+            return (long) chunk.segment() * segmentBytes + offset;
+        }
+
+        // Antes de publicar un registro del segmento: si es uno nuevo, cierra el anterior con su .idx
+        void advance(int segment) {
+            if (segment != activeSegment) {
+                if (activeSegment >= 0) {
+                    seal(activeSegment);
+                }
+                activeSegment = segment;
+            }
+        }
+
+        void touched(String conversation, Conversation c) {
+            touched.put(conversation, c);
+        }
+
+        void cleared(String conversation) {
+            touched.remove(conversation);
+            cleared.add(conversation);
+        }
+
+        /*
+         * Escribe el .idx del segmento con lo publicado en él y pasa las
+         * posiciones de memoria a ese archivo. Formato: int magic, int
+         * cantidad de conversaciones y por cada una int largo + nombre UTF-8,
+         * byte borrada, int cantidad de registros y sus offsets (int) en el
+         * segmento; al final el CRC32C de todo lo anterior.
+         */
+        private void seal(int segment) {
+            if (indexFailed) {
+                touched.clear();
+                cleared.clear();
+                return;
+            }
+            Set<String> keys = new LinkedHashSet<>(cleared);
+            keys.addAll(touched.keySet());
+            Map<String, Integer> offsets = new HashMap<>();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            long base = (long) segment * segmentBytes;
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(keys.size());
+                for (String key : keys) {
+                    byte[] name = key.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                    out.writeBoolean(cleared.contains(key));
+                    Conversation c = touched.get(key);
+                    Positions s = c == null ? null : c.snapshot;
+                    int count = s == null ? 0 : s.activeCount();
+                    out.writeInt(count);
+                    offsets.put(key, out.size());
+                    for (int i = 0; i < count; i++) {
+                        out.writeInt((int) (s.active()[i] - base));
+                    }
+                }
+                CRC32C sum = new CRC32C();
+                sum.update(bytes.toByteArray());
+                out.writeInt((int) sum.getValue());
+
+                File file = indexFile(segment);
+                File tmp = new File(dir, file.getName() + ".tmp");
+                try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                    bytes.writeTo(fos);
+                    fos.getFD().sync();
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                setIndex(segment, mapIndex(file));
+            } catch (IOException e) {
+                System.err.println("Log de historial " + dir.getName() + ": no se pudo escribir el índice del segmento "
+                        + segment + " (" + e.getMessage() + "), las posiciones quedan en memoria");
+                indexFailed = true;
+                touched.clear();
+                cleared.clear();
+                return;
+            }
+            for (Map.Entry<String, Conversation> e : touched.entrySet()) {
+                Positions s = e.getValue().snapshot;
+                e.getValue().seal(segment, s.activeCount(), offsets.get(e.getKey()));
+            }
+            touched.clear();
+            cleared.clear();
+        }
+
+        /*
+         * Aplica el .idx de un segmento cerrado en vez de recorrerlo. false si
+         * no existe o no es válido (falta, quedó cortado o es de otro
+         * formato): entonces hay que recorrer el segmento.
+         */
+        private boolean loadIndex(int segment) {
+            File file = indexFile(segment);
+            if (!file.exists()) {
+                return false;
+            }
+            MappedByteBuffer buf;
+            try {
+                buf = mapIndex(file);
+            } catch (IOException e) {
+                System.err.println("Log de historial " + dir.getName() + ": no se pudo leer " + file.getName()
+                        + " (" + e.getMessage() + ")");
+                return false;
+            }
+            List<IndexEntry> entries = parseIndex(buf);
+            if (entries == null) {
+                System.err.println("Log de historial " + dir.getName() + ": " + file.getName()
+                        + " no es válido, se recorre el segmento");
+                return false;
+            }
+
+            if (activeSegment >= 0) {
+                seal(activeSegment);
+            }
+            activeSegment = -1;
+            setIndex(segment, buf);
+            for (IndexEntry entry : entries) {
+                if (entry.cleared()) {
+                    conversations.remove(entry.conversation());
+                }
+                if (entry.count() > 0) {
+                    conversations.computeIfAbsent(entry.conversation(), k -> new Conversation())
+                            .seal(segment, entry.count(), entry.offset());
+                }
+            }
+            return true;
+        }
+
+        // null si el archivo no cierra
+        private List<IndexEntry> parseIndex(MappedByteBuffer buf) {
+            int size = buf.capacity();
+            if (size < 3 * Integer.BYTES || buf.getInt(0) != INDEX_MAGIC) {
+                return null;
+            }
+            CRC32C sum = new CRC32C();
+            sum.update(buf.slice(0, size - Integer.BYTES));
+            if ((int) sum.getValue() != buf.getInt(size - Integer.BYTES)) {
+                return null;
+            }
+            int end = size - Integer.BYTES;
+            int n = buf.getInt(Integer.BYTES);
+            int pos = 2 * Integer.BYTES;
+            List<IndexEntry> entries = new ArrayList<>();
+            for (int e = 0; e < n; e++) {
+                if (pos + Integer.BYTES > end) {
+                    return null;
+                }
+                int len = buf.getInt(pos);
+                pos += Integer.BYTES;
+                if (len < 0 || len > end - pos - 1 - Integer.BYTES) {
+                    return null;
+                }
+                byte[] name = new byte[len];
+                buf.get(pos, name);
+                pos += len;
+                boolean wasCleared = buf.get(pos) != 0;
+                int count = buf.getInt(pos + 1);
+                pos += 1 + Integer.BYTES;
+                if (count < 0 || count > (end - pos) / Integer.BYTES) {
+                    return null;
+                }
+                entries.add(new IndexEntry(new String(name, StandardCharsets.UTF_8), wasCleared, count, pos));
+                pos += Integer.BYTES * count;
+            }
+            return pos == end ? entries : null;
+        }
+
+        private File indexFile(int segment) {
+            return new File(dir, String.format("%010d.idx", segment));
+        }
+
+        private MappedByteBuffer mapIndex(File file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+        }
+
+        private void setIndex(int segment, MappedByteBuffer buf) {
+            MappedByteBuffer[] grown = Arrays.copyOf(indexes, Math.max(indexes.length, segment + 1));
+            grown[segment] = buf;
+            indexes = grown;
+        }
+
+        HistoryRecord read(long position) {
+            MappedByteBuffer buf = segments[(int) (position / segmentBytes)];
+            return HistoryRecord.decode(buf, (int) (position % segmentBytes) + HistoryRecord.HEADER_BYTES, symbols);
+        }
+
+        private void addSegment(int index) throws IOException {
+            MappedByteBuffer[] grown = Arrays.copyOf(segments, index + 1);
+            grown[index] = map(index);
+            segments = grown;
+        }
+
+        private MappedByteBuffer map(int index) throws IOException {
+            dir.mkdirs();
+            File file = new File(dir, String.format("%010d.seg", index));
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // El mapeo sigue válido después de cerrar el canal
+                return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+        }
+
+        void wipe() {
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".seg") || name.contains(".idx"));
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+        }
+
+        // Devuelve cuántos segmentos tuvo que recorrer: el activo y los cerrados sin .idx válido
+        int recover() throws IOException {
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+            int count = files == null ? 0 : files.length;
+            int scanned = 0;
+            for (int s = 0; s < count; s++) {
+                addSegment(s);
+                if (s < count - 1 && loadIndex(s)) {
+                    continue;
+                }
+                int end = scan(s);
+                writePos = (long) s * segmentBytes + end;
+                scanned++;
+            }
+            dirtyFrom = writePos;
+            return scanned;
+        }
+
+        // Publica los registros válidos del segmento y devuelve dónde termina lo escrito
+        private int scan(int segment) {
+            MappedByteBuffer buf = segments[segment];
+            int offset = 0;
+            while (offset + HistoryRecord.HEADER_BYTES <= segmentBytes) {
+                int len = buf.getInt(offset);
+                if (len == 0) {
+                    return offset;
+                }
+                int start = offset + HistoryRecord.HEADER_BYTES;
+                boolean valid = len > 0 && len <= segmentBytes - start;
+                if (valid) {
+                    crc.reset();
+                    crc.update(buf.slice(start, len));
+                    valid = (int) crc.getValue() == buf.getInt(offset + Integer.BYTES);
+                }
+                if (!valid) {
+                    // Escritura cortada por una caída: se limpia para que nada viejo reaparezca detrás
+                    System.err.println("Log de historial " + dir.getName() + ": registro incompleto en "
+                            + offset + ", se descarta el resto del segmento");
+                    zero(buf, offset);
+                    return offset;
+                }
+                HistoryRecord record = HistoryRecord.decode(buf, start, symbols);
+                publish(record, (long) segment * segmentBytes + offset);
+                offset = start + len;
+            }
+            return offset;
+        }
+
+        private void zero(MappedByteBuffer buf, int from) {
+            byte[] zeros = new byte[64 * 1024];
+            for (int pos = from; pos < segmentBytes; pos += zeros.length) {
+                buf.put(pos, zeros, 0, Math.min(zeros.length, segmentBytes - pos));
+            }
+            buf.force();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.icesi.chatapp.Server;
+
+import java.util.List;
+
+/**
+ * Resultado de una lectura paginada. {@code firstSeq} y {@code lastSeq} son
+ * los cursores del primer y último mensaje (para pedir la página anterior con
+ * {@code before = firstSeq} o la siguiente con {@code after = lastSeq}): en el
+ * log son números de secuencia, en la base de datos son ids. {@code total} es
+ * -1 cuando el origen no lo conoce sin contar.
+ */
+public record HistoryPage(List<String> messages, long firstSeq, long lastSeq, long total,
+        boolean hasMoreBefore, boolean hasMoreAfter) {
+
+    public static HistoryPage empty() {
+        return new HistoryPage(List.of(), 0, -1, 0, false, false);
+    }
+
+    // Página de un origen con números de secuencia contiguos desde 0
+    public static HistoryPage ofRange(List<String> messages, long firstSeq, long total) {
+        long end = firstSeq + messages.size();
+        return new HistoryPage(messages, firstSeq, end - 1, total, firstSeq > 0, end < total);
+    }
+}
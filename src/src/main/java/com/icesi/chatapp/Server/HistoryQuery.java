@@ -0,0 +1,34 @@
+package com.icesi.chatapp.Server;
+
+/**
+ * Página pedida de un historial. Los cursores son números de secuencia de
+ * mensaje dentro de la conversación (0 = el más antiguo) y son exclusivos:
+ * {@code before} pide mensajes anteriores a ese número y {@code after}
+ * posteriores. Sin cursores se devuelven los últimos {@code limit} mensajes.
+ */
+public record HistoryQuery(Long before, Long after, int limit) {
+    // Sin límite: todo el historial (comportamiento original de las acciones 7 y 8)
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    public static HistoryQuery all() {
+        return new HistoryQuery(null, null, NO_LIMIT);
+    }
+
+    public static HistoryQuery latest(int limit) {
+        return new HistoryQuery(null, null, limit);
+    }
+
+    // Rango [desde, hasta) de números de secuencia que cubre esta consulta
+    long[] range(long total) {
+        long from;
+        long to;
+        if (after != null) {
+            from = Math.max(0, after + 1);
+            to = Math.min(total, from + limit);
+        } else {
+            to = before != null ? Math.min(total, Math.max(0, before)) : total;
+            from = Math.max(0, to - limit);
+        }
+        return new long[] { Math.min(from, to), to };
+    }
+}
@@ -0,0 +1,126 @@
+package com.icesi.chatapp.Server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Un mensaje del log de historial.
+ *
+ * En disco cada registro va precedido por {@code [int longitud][int crc32c]} y
+ * el cuerpo es (big-endian):
+ * {@code long timestamp | byte kind | str sender | str target | str conversation | payload},
+ * donde {@code str} es un short con la longitud más los bytes UTF-8 y
+ * {@code payload} lo mismo con un int. En un log con tabla de símbolos (ver
+ * HistoryLog) cada {@code str} es en cambio el int de su id en
+ * {@link Symbols} (-1 = vacío). La línea de texto que devuelven las acciones
+ * de historial se arma al leer con {@link #toLine()}.
+ */
+record HistoryRecord(long timestamp, byte kind, String sender, String target, String conversation,
+        String payload) {
+
+    static final byte PRIVATE_TEXT = 1;
+    static final byte GROUP_TEXT = 2;
+    static final byte PRIVATE_AUDIO = 3;
+    static final byte GROUP_AUDIO = 4;
+    // Línea importada de los archivos .txt anteriores: el payload ya es la línea completa
+    static final byte LEGACY = 5;
+    // Borra la conversación: lo anterior deja de leerse
+    static final byte CLEAR = 6;
+
+    static final int HEADER_BYTES = 8;
+
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    static String formatTimestamp(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).format(formatter);
+    }
+
+    static long parseTimestamp(String text) {
+        return LocalDateTime.parse(text, formatter).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    // Mismo formato que escribían los archivos de texto
+    String toLine() {
+        String ts = formatTimestamp(timestamp);
+        return switch (kind) {
+            case PRIVATE_TEXT -> "[" + ts + "] " + sender + " -> " + target + ": " + payload;
+            case GROUP_TEXT -> "[" + ts + "] " + sender + " en " + target + ": " + payload;
+            case PRIVATE_AUDIO -> "[" + ts + "] " + sender + " -> " + target + ": [AUDIO: " + payload + "]";
+            case GROUP_AUDIO -> "[" + ts + "] " + sender + " en " + target + ": [AUDIO: " + payload + "]";
+            default -> payload;
+        };
+    }
+
+    // symbols == null: nombres como texto (logs creados antes de la tabla de símbolos)
+    byte[] encode(Symbols symbols) {
+        if (symbols != null) {
+            byte[] p = payload.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buf = ByteBuffer.allocate(Long.BYTES + 1 + 4 * Integer.BYTES + p.length);
+            buf.putLong(timestamp).put(kind);
+            buf.putInt(symbolId(symbols, sender)).putInt(symbolId(symbols, target))
+                    .putInt(symbolId(symbols, conversation));
+            buf.putInt(p.length).put(p);
+            return buf.array();
+        }
+        return encode();
+    }
+
+    private static int symbolId(Symbols symbols, String name) {
+        return name.isEmpty() ? -1 : symbols.intern(name);
+    }
+
+    private byte[] encode() {
+        byte[] s = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] t = target.getBytes(StandardCharsets.UTF_8);
+        byte[] c = conversation.getBytes(StandardCharsets.UTF_8);
+        byte[] p = payload.getBytes(StandardCharsets.UTF_8);
+        if (s.length > 0xFFFF || t.length > 0xFFFF || c.length > 0xFFFF) {
+            throw new IllegalArgumentException("Nombre demasiado largo para el historial");
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES + 1 + 3 * Short.BYTES + Integer.BYTES
+                + s.length + t.length + c.length + p.length);
+        buf.putLong(timestamp).put(kind);
+        buf.putShort((short) s.length).put(s);
+        buf.putShort((short) t.length).put(t);
+        buf.putShort((short) c.length).put(c);
+        buf.putInt(p.length).put(p);
+        return buf.array();
+    }
+
+    // Lee el cuerpo desde una posición absoluta sin mover el buffer (seguro entre hilos)
+    static HistoryRecord decode(ByteBuffer buf, int offset, Symbols symbols) {
+        int pos = offset;
+        long timestamp = buf.getLong(pos);
+        pos += Long.BYTES;
+        byte kind = buf.get(pos++);
+
+        String[] names = new String[3];
+        for (int i = 0; i < names.length; i++) {
+            if (symbols != null) {
+                int id = buf.getInt(pos);
+                pos += Integer.BYTES;
+                names[i] = id < 0 ? "" : symbols.name(id);
+                continue;
+            }
+            int len = Short.toUnsignedInt(buf.getShort(pos));
+            pos += Short.BYTES;
+            names[i] = string(buf, pos, len);
+            pos += len;
+        }
+
+        int len = buf.getInt(pos);
+        pos += Integer.BYTES;
+        return new HistoryRecord(timestamp, kind, names[0], names[1], names[2], string(buf, pos, len));
+    }
+
+    private static String string(ByteBuffer buf, int offset, int len) {
+        byte[] bytes = new byte[len];
+        buf.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
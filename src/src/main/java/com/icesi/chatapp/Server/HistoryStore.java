@@ -0,0 +1,39 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Backend del historial de mensajes. {@link MessageHistory} crea uno al
+ * arrancar según {@code chat.history.store} y todo el servidor pasa por él.
+ *
+ * Los registros llegan ya armados (clave de conversación, remitente, destino,
+ * contenido); cada backend decide cómo guardarlos y devuelve las líneas con el
+ * mismo formato de siempre.
+ */
+interface HistoryStore {
+
+    // Nombre para métricas y logs ("file", "postgres", "memory", "memory+file", ...)
+    String name();
+
+    /*
+     * true si vale la pena poner un CachingHistoryStore delante: las páginas
+     * usan números de secuencia contiguos desde 0 (total es la cantidad de
+     * mensajes de la conversación) y leer cuesta E/S.
+     */
+    boolean cacheable();
+
+    // El futuro se completa cuando el registro quedó guardado en este backend
+    CompletableFuture<Void> append(HistoryRecord record);
+
+    // Incluye todo lo anexado antes de la llamada
+    HistoryPage read(String conversation, HistoryQuery query);
+
+    // Borra la conversación después de sus escrituras pendientes; true si tenía mensajes
+    boolean clear(String conversation);
+
+    void addStats(JsonObject stats);
+
+    void close();
+}
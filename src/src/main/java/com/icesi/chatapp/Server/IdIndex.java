@@ -0,0 +1,52 @@
+package com.icesi.chatapp.Server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Valor por id de {@link Symbols} (la sesión o el cliente de cada usuario)
+ * en un arreglo: buscar es leer una posición, sin hashear el nombre. Los ids
+ * son densos, así que el arreglo mide lo mismo que la tabla de símbolos.
+ *
+ * Leer no toma locks. Las escrituras sobre posiciones existentes son
+ * atómicas; solo crecer el arreglo pasa por el monitor, y copia las
+ * posiciones bajo el mismo monitor que cualquier escritura concurrente.
+ */
+final class IdIndex<T> {
+    private volatile AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(256);
+
+    T get(int id) {
+        AtomicReferenceArray<T> s = slots;
+        return id >= 0 && id < s.length() ? s.get(id) : null;
+    }
+
+    synchronized void set(int id, T value) {
+        slotsFor(id).set(id, value);
+    }
+
+    // Pone value solo si la posición está vacía; false si ya tenía otro
+    synchronized boolean putIfAbsent(int id, T value) {
+        return slotsFor(id).compareAndSet(id, null, value);
+    }
+
+    // Vacía la posición solo si sigue teniendo value
+    synchronized boolean remove(int id, T value) {
+        return get(id) == value && slots.compareAndSet(id, value, null);
+    }
+
+    private AtomicReferenceArray<T> slotsFor(int id) {
+        AtomicReferenceArray<T> s = slots;
+        if (id < s.length()) {
+            return s;
+        }
+        int length = s.length();
+        while (length <= id) {
+            length *= 2;
+        }
+        AtomicReferenceArray<T> grown = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < s.length(); i++) {
+            grown.set(i, s.get(i));
+        }
+        slots = grown;
+        return grown;
+    }
+}
@@ -0,0 +1,405 @@
+package com.icesi.chatapp.Server;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Lector de las peticiones del protocolo JSON en una sola pasada.
+ *
+ * Una petición es {@code {"action", "requestId", "data": {...}}} y los campos
+ * de {@code data} son todos escalares, así que no hace falta un árbol: se
+ * recorre la línea una vez y quedan la acción, el requestId tal como vino
+ * (para devolverlo igual) y los campos de data en dos arreglos. Lo único que
+ * se reserva por petición son esos arreglos y los strings de los valores.
+ * Objetos o arreglos anidados se saltan sin construirlos.
+ *
+ * Los errores de sintaxis se informan con {@link IllegalArgumentException}.
+ */
+final class JsonCodec {
+    private static final int MAX_DEPTH = 64;
+
+    // payload: los bytes que acompañan a una nota de voz del protocolo binario; null en JSON
+    record Request(String action, String requestId, Fields data, byte[] payload) {
+    }
+
+    private JsonCodec() {
+    }
+
+    static Request decode(String line) {
+        return new Parser(line).request();
+    }
+
+    /**
+     * Campos de {@code data}. Igual que con un JsonObject, un número se puede
+     * leer como string y un string numérico como número; si una clave se
+     * repite, vale la última.
+     */
+    static final class Fields {
+        static final Fields EMPTY = new Fields();
+
+        static final byte STRING = 1;
+        static final byte NUMBER = 2;
+        static final byte BOOLEAN = 3;
+        static final byte NULL = 4;
+        // Objeto o arreglo: se saltó al leer
+        static final byte NESTED = 5;
+
+        private String[] keys = new String[8];
+        private String[] values = new String[8];
+        private byte[] types = new byte[8];
+        private int size;
+
+        void put(String key, String value, byte type) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                types = Arrays.copyOf(types, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            types[size] = type;
+            size++;
+        }
+
+        private int indexOf(String key) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean has(String key) {
+            return indexOf(key) >= 0;
+        }
+
+        // Presente con valor null
+        boolean isNull(String key) {
+            int i = indexOf(key);
+            return i >= 0 && types[i] == NULL;
+        }
+
+        String getString(String key) {
+            int i = indexOf(key);
+            if (i < 0 || types[i] == NULL) {
+                throw new IllegalArgumentException("Missing field: " + key);
+            }
+            if (types[i] == NESTED) {
+                throw new IllegalArgumentException("Field is not a value: " + key);
+            }
+            return values[i];
+        }
+
+        long getLong(String key) {
+            String v = getString(key);
+            try {
+                return Long.parseLong(v);
+            } catch (NumberFormatException e) {
+                return new BigDecimal(v).longValue();
+            }
+        }
+
+        int getInt(String key) {
+            String v = getString(key);
+            try {
+                return Integer.parseInt(v);
+            } catch (NumberFormatException e) {
+                return new BigDecimal(v).intValue();
+            }
+        }
+
+        boolean getBoolean(String key) {
+            return Boolean.parseBoolean(getString(key));
+        }
+    }
+
+    private static final class Parser {
+        private final String s;
+        private int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        Request request() {
+            String action = null;
+            String requestId = null;
+            Fields data = Fields.EMPTY;
+
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    String key = string();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    switch (key) {
+                        case "action" -> action = scalar();
+                        case "requestId" -> requestId = raw();
+                        case "data" -> data = fields();
+                        default -> skipValue(0);
+                    }
+                    if (endOfObject()) {
+                        break;
+                    }
+                }
+            }
+            skipWhitespace();
+            if (pos < s.length()) {
+                throw error("unexpected content after the request");
+            }
+            return new Request(action, requestId, data, null);
+        }
+
+        private Fields fields() {
+            if (peek() == 'n') {
+                word("null");
+                return Fields.EMPTY;
+            }
+            expect('{');
+            Fields fields = new Fields();
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return fields;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = string();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                char c = peek();
+                if (c == '"') {
+                    fields.put(key, string(), Fields.STRING);
+                } else if (c == '{' || c == '[') {
+                    skipValue(1);
+                    fields.put(key, null, Fields.NESTED);
+                } else if (c == 't' || c == 'f') {
+                    fields.put(key, c == 't' ? word("true") : word("false"), Fields.BOOLEAN);
+                } else if (c == 'n') {
+                    word("null");
+                    fields.put(key, null, Fields.NULL);
+                } else {
+                    fields.put(key, number(), Fields.NUMBER);
+                }
+                if (endOfObject()) {
+                    return fields;
+                }
+            }
+        }
+
+        // Valor escalar como texto (el contenido si es string); null si es null
+        private String scalar() {
+            char c = peek();
+            if (c == '"') {
+                return string();
+            }
+            if (c == 't') {
+                return word("true");
+            }
+            if (c == 'f') {
+                return word("false");
+            }
+            if (c == 'n') {
+                word("null");
+                return null;
+            }
+            if (c == '{' || c == '[') {
+                throw error("expected a value");
+            }
+            return number();
+        }
+
+        // El valor tal como está en la línea (ya es JSON válido)
+        private String raw() {
+            int start = pos;
+            skipValue(0);
+            return s.substring(start, pos);
+        }
+
+        private boolean endOfObject() {
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return true;
+            }
+            if (c != ',') {
+                throw error("expected ',' or '}'");
+            }
+            return false;
+        }
+
+        private void skipValue(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw error("nesting too deep");
+            }
+            char c = peek();
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                char close = c == '{' ? '}' : ']';
+                pos++;
+                skipWhitespace();
+                if (peek() == close) {
+                    pos++;
+                    return;
+                }
+                while (true) {
+                    skipWhitespace();
+                    if (close == '}') {
+                        skipString();
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                    }
+                    skipValue(depth + 1);
+                    skipWhitespace();
+                    char n = next();
+                    if (n == close) {
+                        return;
+                    }
+                    if (n != ',') {
+                        throw error("expected ',' or '" + close + "'");
+                    }
+                }
+            } else {
+                scalar();
+            }
+        }
+
+        private String string() {
+            expect('"');
+            int start = pos;
+            // Sin escapes (lo normal) el valor es un substring de la línea
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '"') {
+                    return s.substring(start, pos++);
+                }
+                if (c == '\\') {
+                    return escapedString(start);
+                }
+                pos++;
+            }
+            throw error("unterminated string");
+        }
+
+        private void skipString() {
+            expect('"');
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return;
+                }
+                if (c == '\\') {
+                    pos++;
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private String escapedString(int start) {
+            StringBuilder sb = new StringBuilder(pos - start + 16);
+            sb.append(s, start, pos);
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) {
+                    break;
+                }
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case 'n' -> sb.append('\n');
+                    case 't' -> sb.append('\t');
+                    case 'r' -> sb.append('\r');
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case 'u' -> {
+                        if (pos + 4 > s.length()) {
+                            throw error("bad unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(s, pos, pos + 4, 16));
+                        } catch (NumberFormatException ex) {
+                            throw error("bad unicode escape");
+                        }
+                        pos += 4;
+                    }
+                    default -> sb.append(e);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private String number() {
+            int start = pos;
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (pos == start) {
+                throw error("unexpected character '" + peek() + "'");
+            }
+            return s.substring(start, pos);
+        }
+
+        private String word(String w) {
+            if (!s.startsWith(w, pos)) {
+                throw error("expected " + w);
+            }
+            pos += w.length();
+            return w;
+        }
+
+        private void skipWhitespace() {
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        private char peek() {
+            if (pos >= s.length()) {
+                throw error("unexpected end of input");
+            }
+            return s.charAt(pos);
+        }
+
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char c) {
+            if (next() != c) {
+                pos--;
+                throw error("expected '" + c + "'");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at column " + (pos + 1));
+        }
+    }
+}
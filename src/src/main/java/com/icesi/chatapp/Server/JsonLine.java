@@ -0,0 +1,304 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Una línea JSON de salida (respuesta o push), con la misma forma de uso que
+ * un JsonObject: {@code addProperty} y {@code add}, y una clave repetida
+ * reemplaza a la anterior.
+ *
+ * Los valores se guardan tal cual en dos arreglos, sin un JsonPrimitive por
+ * campo, y {@link #frame()} los escribe directo en UTF-8 sobre un buffer
+ * reutilizado por hilo; lo único que se reserva al codificar es el arreglo
+ * final que va a la cola de la conexión. Los valores anidados (métricas,
+ * grupos con miembros) siguen siendo JsonElement y se escriben con el mismo
+ * codificador.
+ */
+final class JsonLine {
+    // Un buffer que creció por una respuesta grande (historial completo) no se conserva
+    private static final int KEEP_BUFFER_BYTES = 64 * 1024;
+    private static final ThreadLocal<Utf8Buffer> buffers = ThreadLocal.withInitial(() -> new Utf8Buffer(1024));
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // JSON ya armado (el requestId tal como vino en la petición)
+    private record Raw(String json) {
+    }
+
+    private String[] keys = new String[8];
+    private Object[] values = new Object[8];
+    private int size;
+
+    JsonLine addProperty(String key, String value) {
+        return put(key, value);
+    }
+
+    JsonLine addProperty(String key, Number value) {
+        return put(key, value);
+    }
+
+    JsonLine addProperty(String key, Boolean value) {
+        return put(key, value);
+    }
+
+    JsonLine add(String key, JsonElement value) {
+        return put(key, value);
+    }
+
+    // Arreglo de strings sin pasar por JsonArray
+    JsonLine add(String key, Collection<String> values) {
+        return put(key, values);
+    }
+
+    JsonLine addRaw(String key, String json) {
+        return put(key, json == null ? null : new Raw(json));
+    }
+
+    private JsonLine put(String key, Object value) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                values[i] = value;
+                return this;
+            }
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        return this;
+    }
+
+    // Acceso a los campos para BinaryCodec, que los codifica en su propio formato
+    int size() {
+        return size;
+    }
+
+    String key(int i) {
+        return keys[i];
+    }
+
+    Object value(int i) {
+        return values[i];
+    }
+
+    // La línea codificada en UTF-8 con su '\n', lista para ClientConnection
+    byte[] frame() {
+        Utf8Buffer out = buffers.get();
+        out.reset();
+        writeTo(out);
+        out.write('\n');
+        byte[] frame = out.toByteArray();
+        if (out.capacity() > KEEP_BUFFER_BYTES) {
+            buffers.remove();
+        }
+        return frame;
+    }
+
+    // Texto de una línea ya codificada, sin el '\n' (para el log)
+    static String text(byte[] frame) {
+        return new String(frame, 0, frame.length - 1, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return text(frame());
+    }
+
+    private void writeTo(Utf8Buffer out) {
+        out.write('{');
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.writeString(keys[i]);
+            out.write(':');
+            writeValue(out, values[i]);
+        }
+        out.write('}');
+    }
+
+    private static void writeValue(Utf8Buffer out, Object value) {
+        if (value == null) {
+            out.writeAscii("null");
+        } else if (value instanceof String s) {
+            out.writeString(s);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.writeAscii(value.toString());
+        } else if (value instanceof Raw raw) {
+            out.writeString(raw.json(), false);
+        } else if (value instanceof JsonElement element) {
+            writeElement(out, element);
+        } else if (value instanceof Collection<?> strings) {
+            out.write('[');
+            boolean first = true;
+            for (Object s : strings) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeValue(out, s);
+            }
+            out.write(']');
+        } else {
+            throw new IllegalArgumentException("Tipo no soportado en JsonLine: " + value.getClass());
+        }
+    }
+
+    private static void writeElement(Utf8Buffer out, JsonElement element) {
+        if (element.isJsonNull()) {
+            out.writeAscii("null");
+        } else if (element instanceof JsonPrimitive p) {
+            if (p.isString()) {
+                out.writeString(p.getAsString());
+            } else {
+                out.writeAscii(p.isNumber() ? p.getAsNumber().toString() : p.getAsString());
+            }
+        } else if (element instanceof JsonArray array) {
+            out.write('[');
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeElement(out, array.get(i));
+            }
+            out.write(']');
+        } else {
+            out.write('{');
+            boolean first = true;
+            for (Map.Entry<String, JsonElement> e : ((JsonObject) element).entrySet()) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                out.writeString(e.getKey());
+                out.write(':');
+                writeElement(out, e.getValue());
+            }
+            out.write('}');
+        }
+    }
+
+    // Bytes UTF-8 con el escape de strings de Gson (comillas, barra, controles, U+2028/2029)
+    private static final class Utf8Buffer {
+        private byte[] buf;
+        private int len;
+
+        Utf8Buffer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void reset() {
+            len = 0;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+
+        void write(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void writeAscii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buf[len++] = (byte) s.charAt(i);
+            }
+        }
+
+        void writeString(String s) {
+            writeString(s, true);
+        }
+
+        // quote = false: s ya es JSON y solo se pasa a UTF-8
+        void writeString(String s, boolean quote) {
+            ensure(s.length() + 2);
+            if (quote) {
+                buf[len++] = '"';
+            }
+            for (int i = 0; i < s.length(); i++) {
+                // Lo más que ocupa un carácter es un escape de 6 bytes, más la comilla final
+                ensure(7);
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (quote && (c < 0x20 || c == '"' || c == '\\')) {
+                        escape(c);
+                    } else {
+                        buf[len++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    buf[len++] = (byte) (0xC0 | (c >> 6));
+                    buf[len++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[len++] = (byte) (0xF0 | (cp >> 18));
+                    buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[len++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Surrogate suelto: lo mismo que hace String.getBytes
+                    buf[len++] = '?';
+                } else if (quote && (c == '\u2028' || c == '\u2029')) {
+                    unicodeEscape(c);
+                } else {
+                    buf[len++] = (byte) (0xE0 | (c >> 12));
+                    buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[len++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            if (quote) {
+                buf[len++] = '"';
+            }
+        }
+
+        private void escape(char c) {
+            char e = switch (c) {
+                case '"' -> '"';
+                case '\\' -> '\\';
+                case '\n' -> 'n';
+                case '\r' -> 'r';
+                case '\t' -> 't';
+                case '\b' -> 'b';
+                case '\f' -> 'f';
+                default -> 0;
+            };
+            if (e == 0) {
+                unicodeEscape(c);
+            } else {
+                buf[len++] = '\\';
+                buf[len++] = (byte) e;
+            }
+        }
+
+        private void unicodeEscape(char c) {
+            buf[len++] = '\\';
+            buf[len++] = 'u';
+            buf[len++] = HEX[(c >> 12) & 0xF];
+            buf[len++] = HEX[(c >> 8) & 0xF];
+            buf[len++] = HEX[(c >> 4) & 0xF];
+            buf[len++] = HEX[c & 0xF];
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+            }
+        }
+    }
+}
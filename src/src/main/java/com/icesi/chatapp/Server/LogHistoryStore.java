@@ -0,0 +1,69 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Backend "file": el log segmentado y mapeado en memoria ({@link HistoryLog})
+ * con el journal que agrupa las escrituras por partición.
+ */
+class LogHistoryStore implements HistoryStore {
+    private final HistoryLog log;
+    private final HistoryJournal journal;
+
+    LogHistoryStore(File logDir, File legacyDir, Symbols symbols) throws IOException {
+        log = HistoryLog.open(logDir, legacyDir, ServerConfig.JOURNAL_LANES, ServerConfig.LOG_SEGMENT_BYTES, symbols);
+        journal = new HistoryJournal(log, ServerConfig.JOURNAL_MAX_LATENCY_MS, ServerConfig.JOURNAL_MAX_BATCH);
+    }
+
+    @Override
+    public String name() {
+        return "file";
+    }
+
+    @Override
+    public boolean cacheable() {
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> append(HistoryRecord record) {
+        return journal.append(record);
+    }
+
+    // Lee sin bloquear al escritor: el log solo muestra registros ya confirmados en disco
+    @Override
+    public HistoryPage read(String conversation, HistoryQuery query) {
+        journal.awaitPending(conversation);
+        return log.read(conversation, query);
+    }
+
+    // El borrado es un registro CLEAR en el carril de la conversación
+    @Override
+    public boolean clear(String conversation) {
+        journal.awaitPending(conversation);
+        boolean existed = log.messageCount(conversation) > 0;
+        journal.append(new HistoryRecord(System.currentTimeMillis(), HistoryRecord.CLEAR,
+                "", "", conversation, "")).join();
+        return existed;
+    }
+
+    @Override
+    public void addStats(JsonObject stats) {
+        stats.addProperty("journalLanes", journal.getLaneCount());
+        stats.addProperty("journalQueueDepth", journal.getQueueDepth());
+        stats.addProperty("journalBatches", journal.getBatches());
+        stats.addProperty("journalEntries", journal.getEntries());
+        stats.addProperty("journalSyncs", journal.getSyncs());
+        stats.addProperty("logSegments", log.getSegmentCount());
+        stats.addProperty("logConversations", log.getConversationCount());
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+    }
+}
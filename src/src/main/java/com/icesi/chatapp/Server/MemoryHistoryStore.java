@@ -0,0 +1,97 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Backend "memory": un anillo por conversación con los últimos
+ * {@code capacity} mensajes ya formateados. No persiste nada: sirve para
+ * pruebas de carga y para comparar los otros backends contra un piso sin E/S.
+ *
+ * Los números de secuencia siguen contando desde el primer mensaje, así que
+ * los cursores de paginación valen igual que en el log; lo que ya salió del
+ * anillo simplemente no se devuelve.
+ */
+class MemoryHistoryStore implements HistoryStore {
+    private final int capacity;
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+    MemoryHistoryStore(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    @Override
+    public String name() {
+        return "memory";
+    }
+
+    // Ya está en RAM
+    @Override
+    public boolean cacheable() {
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Void> append(HistoryRecord record) {
+        rings.computeIfAbsent(record.conversation(), k -> new Ring(capacity)).add(record.toLine());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public HistoryPage read(String conversation, HistoryQuery query) {
+        Ring ring = rings.get(conversation);
+        return ring == null ? HistoryPage.empty() : ring.read(query);
+    }
+
+    @Override
+    public boolean clear(String conversation) {
+        Ring ring = rings.remove(conversation);
+        return ring != null && ring.total() > 0;
+    }
+
+    @Override
+    public void addStats(JsonObject stats) {
+        stats.addProperty("memoryConversations", rings.size());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    // Escrituras y lecturas de una misma conversación son cortas: basta con el monitor del anillo
+    private static final class Ring {
+        private final String[] lines;
+        private long total;
+
+        Ring(int capacity) {
+            lines = new String[capacity];
+        }
+
+        synchronized void add(String line) {
+            lines[(int) (total % lines.length)] = line;
+            total++;
+        }
+
+        synchronized long total() {
+            return total;
+        }
+
+        synchronized HistoryPage read(HistoryQuery query) {
+            long first = Math.max(0, total - lines.length);
+            long[] range = query.range(total);
+            long from = Math.max(first, range[0]);
+            long to = Math.max(from, range[1]);
+
+            List<String> messages = new ArrayList<>((int) (to - from));
+            for (long seq = from; seq < to; seq++) {
+                messages.add(lines[(int) (seq % lines.length)]);
+            }
+            return new HistoryPage(messages, from, to - 1, total, from > first, to < total);
+        }
+    }
+}
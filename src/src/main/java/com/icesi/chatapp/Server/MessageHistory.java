@@ -1,151 +1,211 @@
 package com.icesi.chatapp.Server;
 
 import java.io.*;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class MessageHistory {
+    // Archivos .txt del formato anterior: se importan al log la primera vez
     private static final String HISTORY_DIR = "src/chat_history";
+    private static final String LOG_DIR = "src/chat_log";
+    // Audios de historiales anteriores al almacén por contenido (el registro trae el nombre del archivo)
     private static final String AUDIO_HISTORY_DIR = "src/audio_history";
-    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String AUDIO_BLOB_DIR = "src/audio_blobs";
+    // Cursores de las entregas pendientes a usuarios desconectados
+    private static final String PENDING_DIR = "src/chat_pending";
+
+    /*
+     * Fachada estática sobre el backend elegido con chat.history.store (ver
+     * HistoryStore). Aquí se arman los registros y se cuentan las
+     * referencias a los audios; el backend decide cómo guardarlos y leerlos.
+     */
+    private static final Symbols symbols = openSymbols(ServerConfig.HISTORY_STORE);
+    private static final HistoryStore store = createStore(ServerConfig.HISTORY_STORE);
+    private static final AudioBlobStore audioBlobs = openAudioBlobs();
 
-    // Inicializar directorios
     static {
-        new File(HISTORY_DIR).mkdirs();
-        new File(AUDIO_HISTORY_DIR).mkdirs();
+        Runtime.getRuntime().addShutdownHook(new Thread(store::close, "history-store-shutdown"));
+        System.out.println("Historial: backend " + store.name());
     }
 
-    // Guardar mensaje de texto privado
-    public static synchronized void savePrivateMessage(String sender, String receiver, String message) {
-        String timestamp = LocalDateTime.now().format(formatter);
-        String logEntry = String.format("[%s] %s -> %s: %s%n", timestamp, sender, receiver, message);
-
-        // Guardar en archivo del emisor
-        appendToFile(getPrivateHistoryFile(sender, receiver), logEntry);
+    /*
+     * Ids de usuarios, grupos y conversaciones. Viven junto al log de
+     * historial, que los usa en sus registros; sin backend file no hace
+     * falta guardarlos.
+     */
+    private static Symbols openSymbols(String spec) {
+        boolean file = false;
+        for (String name : spec.split(",")) {
+            file |= name.trim().equalsIgnoreCase("file");
+        }
+        try {
+            return Symbols.open(file ? new File(LOG_DIR) : null);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo abrir la tabla de símbolos: " + e.getMessage(), e);
+        }
     }
 
-    // Guardar mensaje de texto grupal
-    public static synchronized void saveGroupMessage(String sender, String groupName, String message) {
-        String timestamp = LocalDateTime.now().format(formatter);
-        String logEntry = String.format("[%s] %s en %s: %s%n", timestamp, sender, groupName, message);
+    private static HistoryStore createStore(String spec) {
+        List<HistoryStore> stores = new ArrayList<>();
+        try {
+            for (String name : spec.split(",")) {
+                stores.add(switch (name.trim().toLowerCase()) {
+                    case "file" -> new LogHistoryStore(new File(LOG_DIR), new File(HISTORY_DIR), symbols);
+                    case "postgres" -> new DatabaseHistoryStore();
+                    case "memory" -> new MemoryHistoryStore(ServerConfig.HISTORY_MEMORY_MESSAGES);
+                    default -> throw new IllegalArgumentException("chat.history.store desconocido: " + name);
+                });
+            }
+        } catch (IOException | SQLException e) {
+            throw new IllegalStateException("No se pudo abrir el historial (" + spec + "): " + e.getMessage(), e);
+        }
+        HistoryStore base = stores.size() == 1 ? stores.get(0) : new CompositeHistoryStore(stores);
 
-        appendToFile(getGroupHistoryFile(groupName), logEntry);
+        if (ServerConfig.HISTORY_CACHE_BYTES <= 0 || !base.cacheable()) {
+            return base;
+        }
+        return new CachingHistoryStore(base, ServerConfig.HISTORY_CACHE_BYTES, ServerConfig.HISTORY_CACHE_MESSAGES);
     }
 
-    // Guardar nota de voz privada
-    public static synchronized void savePrivateAudio(String sender, String receiver, File audioFile) {
-        String timestamp = LocalDateTime.now().format(formatter);
-
-        // Copiar archivo de audio al historial
-        File audioHistoryFile = copyAudioToHistory(audioFile, sender, receiver, timestamp, false);
+    /*
+     * Los métodos save* entregan el registro al backend y vuelven enseguida.
+     * El futuro devuelto se completa cuando el registro está guardado; quien
+     * necesite un ack durable lo espera, el resto lo puede ignorar.
+     */
 
-        // Registrar en historial de texto
-        String logEntry = String.format("[%s] %s -> %s: [AUDIO: %s]%n",
-                timestamp, sender, receiver, audioHistoryFile.getName());
-
-        appendToFile(getPrivateHistoryFile(sender, receiver), logEntry);
+    // Guardar mensaje de texto privado
+    public static CompletableFuture<Void> savePrivateMessage(String sender, String receiver, String message) {
+        return store.append(new HistoryRecord(System.currentTimeMillis(), HistoryRecord.PRIVATE_TEXT,
+                sender, receiver, privateConversation(sender, receiver), message));
     }
 
-    // Guardar nota de voz grupal
-    public static synchronized void saveGroupAudio(String sender, String groupName, File audioFile) {
-        String timestamp = LocalDateTime.now().format(formatter);
+    // Guardar mensaje de texto grupal
+    public static CompletableFuture<Void> saveGroupMessage(String sender, String groupName, String message) {
+        return store.append(new HistoryRecord(System.currentTimeMillis(), HistoryRecord.GROUP_TEXT,
+                sender, groupName, groupConversation(groupName), message));
+    }
 
-        // Copiar archivo de audio al historial
-        File audioHistoryFile = copyAudioToHistory(audioFile, sender, groupName, timestamp, true);
+    /*
+     * Las notas de voz ya están en el almacén de audios (ver AudioBlobStore):
+     * el registro guarda el id y suma una referencia de la conversación, así
+     * que el mismo clip en varias conversaciones no se copia.
+     */
 
-        // Registrar en historial de texto
-        String logEntry = String.format("[%s] %s en %s: [AUDIO: %s]%n",
-                timestamp, sender, groupName, audioHistoryFile.getName());
+    // Guardar nota de voz privada
+    public static CompletableFuture<Void> savePrivateAudio(String sender, String receiver, AudioBlobStore.Blob audio) {
+        String conversation = privateConversation(sender, receiver);
+        try {
+            audioBlobs.ref(audio.id(), conversation);
+        } catch (IOException e) {
+            // Sin la referencia en disco el audio se podría borrar al reiniciar: no se guarda el registro
+            return CompletableFuture.failedFuture(e);
+        }
+        return store.append(new HistoryRecord(System.currentTimeMillis(), HistoryRecord.PRIVATE_AUDIO,
+                sender, receiver, conversation, audio.id()));
+    }
 
-        appendToFile(getGroupHistoryFile(groupName), logEntry);
+    // Guardar nota de voz grupal
+    public static CompletableFuture<Void> saveGroupAudio(String sender, String groupName, AudioBlobStore.Blob audio) {
+        String conversation = groupConversation(groupName);
+        try {
+            audioBlobs.ref(audio.id(), conversation);
+        } catch (IOException e) {
+            // Sin la referencia en disco el audio se podría borrar al reiniciar: no se guarda el registro
+            return CompletableFuture.failedFuture(e);
+        }
+        return store.append(new HistoryRecord(System.currentTimeMillis(), HistoryRecord.GROUP_AUDIO,
+                sender, groupName, conversation, audio.id()));
     }
 
     // Obtener historial de conversación privada
-    public static synchronized List<String> getPrivateHistory(String user1, String user2) {
-        File historyFile = getPrivateHistoryFile(user1, user2);
-        return readHistoryFromFile(historyFile);
+    public static List<String> getPrivateHistory(String user1, String user2) {
+        return getPrivateHistoryPage(user1, user2, HistoryQuery.all()).messages();
     }
 
     // Obtener historial de grupo
-    public static synchronized List<String> getGroupHistory(String groupName) {
-        File historyFile = getGroupHistoryFile(groupName);
-        return readHistoryFromFile(historyFile);
+    public static List<String> getGroupHistory(String groupName) {
+        return getGroupHistoryPage(groupName, HistoryQuery.all()).messages();
     }
 
-    // Métodos auxiliares
-    private static synchronized File getPrivateHistoryFile(String user1, String user2) {
-        // Crear nombre consistente para la conversación (orden alfabético)
-        List<String> users = Arrays.asList(user1, user2);
-        Collections.sort(users);
-        String fileName = "private_" + users.get(0) + "_" + users.get(1) + ".txt";
-        return new File(HISTORY_DIR, fileName);
+    // Página de una conversación privada: solo se leen las líneas pedidas
+    public static HistoryPage getPrivateHistoryPage(String user1, String user2, HistoryQuery query) {
+        return store.read(privateConversation(user1, user2), query);
     }
 
-    private static synchronized File getGroupHistoryFile(String groupName) {
-        String fileName = "group_" + groupName + ".txt";
-        return new File(HISTORY_DIR, fileName);
+    // Página del historial de un grupo
+    public static HistoryPage getGroupHistoryPage(String groupName, HistoryQuery query) {
+        return store.read(groupConversation(groupName), query);
     }
 
-    private static synchronized void appendToFile(File file, String content) {
-        try (FileOutputStream fos = new FileOutputStream(file, true);
-                BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos))) {
-            bw.write(content);
-            bw.flush();
+    static Symbols symbols() {
+        return symbols;
+    }
 
-            fos.getFD().sync();
-        } catch (IOException e) {
-            System.err.println("Error al guardar en historial: " + e.getMessage());
-        }
+    static HistoryStore getStore() {
+        return store;
     }
 
-    private static synchronized List<String> readHistoryFromFile(File file) {
-        List<String> history = new ArrayList<>();
-        if (!file.exists())
-            return history;
+    // Número de secuencia del último mensaje de la conversación (-1 si no tiene)
+    static long lastSeq(String conversation) {
+        return store.read(conversation, HistoryQuery.latest(1)).lastSeq();
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                history.add(line);
-            }
+    // Con el backend memory las referencias no se guardan, igual que los cursores de pendientes
+    private static AudioBlobStore openAudioBlobs() {
+        try {
+            return AudioBlobStore.open(new File(AUDIO_BLOB_DIR), !(store instanceof MemoryHistoryStore));
         } catch (IOException e) {
-            System.err.println("Error al leer historial: " + e.getMessage());
+            throw new IllegalStateException("No se pudo abrir el almacén de audios: " + e.getMessage(), e);
         }
-        return history;
     }
 
-    private static synchronized File copyAudioToHistory(File sourceAudio, String sender, String destination,
-            String timestamp, boolean isGroup) {
-        String cleanTimestamp = timestamp.replace(":", "-").replace(" ", "_");
-        String prefix = isGroup ? "group_" + destination : "private_" + sender + "_" + destination;
-        String fileName = prefix + "_" + cleanTimestamp + "_" + sourceAudio.getName();
-
-        File destFile = new File(AUDIO_HISTORY_DIR, fileName);
-
-        try (FileInputStream fis = new FileInputStream(sourceAudio);
-                FileOutputStream fos = new FileOutputStream(destFile)) {
+    static AudioBlobStore audioBlobs() {
+        return audioBlobs;
+    }
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
-            }
+    // Hasta limit mensajes posteriores al cursor, para las entregas pendientes
+    static HistoryPage readAfter(String conversation, long cursor, int limit) {
+        return store.read(conversation, new HistoryQuery(null, cursor, limit));
+    }
 
+    // Con el backend memory los cursores no se guardan: el historial tampoco sobrevive al reinicio
+    static PendingDeliveries openPendingDeliveries() {
+        try {
+            return PendingDeliveries.open(store instanceof MemoryHistoryStore ? null : new File(PENDING_DIR));
         } catch (IOException e) {
-            System.err.println("Error al copiar audio al historial: " + e.getMessage());
+            throw new IllegalStateException("No se pudieron abrir las entregas pendientes: " + e.getMessage(), e);
         }
+    }
+
+    // Métodos auxiliares
+    // Clave de la conversación: el mismo nombre que tenía su archivo .txt
+    static String privateConversation(String user1, String user2) {
+        // Crear nombre consistente para la conversación (orden alfabético)
+        List<String> users = Arrays.asList(user1, user2);
+        Collections.sort(users);
+        return "private_" + users.get(0) + "_" + users.get(1);
+    }
+
+    static String groupConversation(String groupName) {
+        return "group_" + groupName;
+    }
 
-        return destFile;
+    // Archivo del audio de un registro: un id del almacén o el nombre en la carpeta de antes
+    static File audioFile(String payload) {
+        return AudioBlobStore.isId(payload) ? audioBlobs.file(payload) : new File(AUDIO_HISTORY_DIR, payload);
     }
 
-    public static synchronized boolean deleteGroupHistory(String groupName) {
+    // El borrado pasa por el backend, después de las escrituras pendientes de la conversación
+    public static boolean deleteGroupHistory(String groupName) {
         try {
-            File f = getGroupHistoryFile(groupName);
-            return f.exists() && f.delete();
-        } catch (Exception e) {
+            boolean existed = store.clear(groupConversation(groupName));
+            audioBlobs.release(groupConversation(groupName));
+            return existed;
+        } catch (CompletionException e) {
             System.err.println("Error borrando historial de grupo: " + e.getMessage());
             return false;
         }
     }
-}
\ No newline at end of file
+}
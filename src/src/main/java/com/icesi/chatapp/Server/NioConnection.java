@@ -0,0 +1,264 @@
+package com.icesi.chatapp.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Conexión NIO. El loop de E/S lee y separa las líneas JSON (o los frames del
+ * protocolo binario, según el primer byte); se procesan en orden en el pool
+ * de workers (nunca dos a la vez para la misma conexión) y las respuestas se
+ * encolan hasta que el canal acepta escritura.
+ *
+ * Si el cliente manda peticiones más rápido de lo que se procesan, o no lee
+ * las respuestas, la conexión deja de leer (sin OP_READ) mientras haya
+ * {@code chat.io.maxInbound} peticiones sin procesar o más de
+ * {@code chat.outbound.maxBytes} en la cola de salida, y vuelve a leer cuando
+ * bajan: el socket se llena y el cliente espera, en vez de crecer la memoria
+ * del servidor.
+ */
+class NioConnection extends ClientConnection {
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final Executor workers;
+    private SelectionKey key;
+
+    // Trozo de línea recibido sin '\n' todavía; solo existe mientras hay datos parciales
+    private ByteArrayOutputStream partialLine;
+
+    // Con el primer byte se sabe si el cliente habla binario; solo lo usa el hilo del loop
+    private boolean firstByteSeen;
+    private BinaryCodec.FrameReader frameReader;
+
+    // Líneas JSON (String) o cuerpos de frames binarios (byte[])
+    private final Queue<Object> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboundDepth = new AtomicInteger();
+    private final AtomicBoolean processing = new AtomicBoolean();
+    // El loop sacó OP_READ por exceso de trabajo pendiente (lo escribe solo el hilo del loop)
+    private volatile boolean readPaused;
+
+    private final OutboundQueue outbound;
+    // Frame que se está escribiendo (solo el hilo del loop); cada conexión envuelve el arreglo compartido en el suyo
+    private ByteBuffer head;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closeAfterFlush;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioConnection(SocketChannel channel, NioEventLoop loop, Executor workers) {
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.outbound = OutboundQueue.create(() -> "json " + remoteAddress() + " " + sessionUsers,
+                this::spillNotice);
+    }
+
+    private String remoteAddress() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    // Solo desde el hilo del loop
+    void onReadable(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        if (read == -1) {
+            close();
+            return;
+        }
+        buffer.flip();
+
+        if (!firstByteSeen && buffer.hasRemaining()) {
+            firstByteSeen = true;
+            if (BinaryCodec.isHello(buffer.get(buffer.position()))) {
+                frameReader = new BinaryCodec.FrameReader();
+            }
+        }
+        if (frameReader != null) {
+            readFrames(buffer);
+            return;
+        }
+
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                String line = partialLine == null ? "" : partialLine.toString(StandardCharsets.UTF_8);
+                partialLine = null;
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                inbound.add(line);
+                inboundDepth.incrementAndGet();
+            } else {
+                if (partialLine == null) {
+                    partialLine = new ByteArrayOutputStream(256);
+                }
+                partialLine.write(b);
+                if (partialLine.size() > ServerConfig.MAX_LINE_BYTES) {
+                    System.err.println("Línea demasiado larga, cerrando conexión");
+                    close();
+                    return;
+                }
+            }
+        }
+        scheduleProcessing();
+        updateInterest();
+    }
+
+    private void readFrames(ByteBuffer buffer) {
+        List<byte[]> bodies = new ArrayList<>();
+        try {
+            if (frameReader.feed(buffer, bodies) && !Server.startBinary(this, frameReader.helloAccepted())) {
+                closeAfterFlush = true;
+                requestFlush();
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Frame binario inválido, cerrando conexión: " + e.getMessage());
+            close();
+            return;
+        }
+        inbound.addAll(bodies);
+        inboundDepth.addAndGet(bodies.size());
+        scheduleProcessing();
+        updateInterest();
+    }
+
+    private void scheduleProcessing() {
+        if (!inbound.isEmpty() && !closeAfterFlush && processing.compareAndSet(false, true)) {
+            workers.execute(this::processInbound);
+        }
+    }
+
+    // En un worker: procesa en orden las líneas pendientes de esta conexión
+    private void processInbound() {
+        try {
+            Object next;
+            while (!closeAfterFlush && (next = inbound.poll()) != null) {
+                inboundDepth.decrementAndGet();
+                boolean keepOpen = next instanceof byte[] body ? Server.handleBinary(this, body)
+                        : Server.handleLine(this, (String) next);
+                if (!keepOpen) {
+                    closeAfterFlush = true;
+                    requestFlush();
+                }
+            }
+        } finally {
+            processing.set(false);
+        }
+        scheduleProcessing();
+        if (readPaused) {
+            // El loop decide si ya puede volver a leer
+            requestFlush();
+        }
+    }
+
+    @Override
+    void sendFrames(byte[][] frames, boolean push) {
+        if (closed.get()) {
+            return;
+        }
+        if (outbound.offer(frames, push) == OutboundQueue.Offer.DISCONNECT) {
+            System.err.println("Cola de salida llena, se desconecta al cliente lento");
+            close();
+            return;
+        }
+        requestFlush();
+    }
+
+    private void requestFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+    }
+
+    // Solo desde el hilo del loop: escribe lo que el canal acepte y ajusta el interés en OP_WRITE
+    void flush() throws IOException {
+        if (closed.get()) {
+            return;
+        }
+        while (true) {
+            if (head == null) {
+                byte[] frame = outbound.poll();
+                if (frame == null) {
+                    break;
+                }
+                head = ByteBuffer.wrap(frame);
+            }
+            channel.write(head);
+            if (head.hasRemaining()) {
+                break;
+            }
+            head = null;
+        }
+        if (head == null && outbound.isEmpty() && closeAfterFlush) {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    // Solo desde el hilo del loop: OP_WRITE si hay algo por escribir, OP_READ si no hay demasiado pendiente
+    private void updateInterest() {
+        if (closed.get() || !key.isValid()) {
+            return;
+        }
+        boolean paused = backlogged();
+        readPaused = paused;
+        // Un worker pudo vaciar inbound justo antes de ver readPaused: se mira otra vez después de publicarlo
+        if (paused && !backlogged()) {
+            paused = false;
+            readPaused = false;
+        }
+        int ops = paused ? 0 : SelectionKey.OP_READ;
+        if (head != null || !outbound.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private boolean backlogged() {
+        return inboundDepth.get() >= ServerConfig.NIO_MAX_INBOUND
+                || outbound.bytes() >= ServerConfig.OUTBOUND_MAX_BYTES;
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        outbound.close();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+        loop.connectionClosed();
+        Server.connectionClosed(this);
+    }
+}
@@ -0,0 +1,146 @@
+package com.icesi.chatapp.Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hilo de E/S: un selector que lee, enmarca líneas y escribe para sus conexiones
+class NioEventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final Executor workers;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // Buffer de lectura compartido por todas las conexiones del loop (solo lo usa este hilo)
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    private NioServer acceptorOwner;
+
+    // Latencia de cada vuelta del loop (procesado de eventos y tareas)
+    private volatile long avgLoopNanos;
+    private volatile long maxLoopNanos;
+
+    NioEventLoop(String name, Executor workers) throws IOException {
+        this.name = name;
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // Ejecuta una tarea en el hilo del loop
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void registerAcceptor(ServerSocketChannel serverChannel, NioServer owner) {
+        try {
+            acceptorOwner = owner;
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (ClosedChannelException e) {
+            System.err.println("No se pudo registrar el acceptor: " + e.getMessage());
+        }
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioConnection conn = new NioConnection(channel, this, workers);
+                conn.setKey(channel.register(selector, SelectionKey.OP_READ, conn));
+                connections.incrementAndGet();
+                Server.connectionOpened(conn);
+            } catch (IOException e) {
+                System.err.println("Error registrando conexión: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignore) {
+                }
+            }
+        });
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    int getConnectionCount() {
+        return connections.get();
+    }
+
+    long getAvgLoopNanos() {
+        return avgLoopNanos;
+    }
+
+    long getMaxLoopNanos() {
+        return maxLoopNanos;
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                long start = System.nanoTime();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handleKey(key);
+                }
+
+                long elapsed = System.nanoTime() - start;
+                // Media móvil exponencial (1/16) para no guardar históricos
+                avgLoopNanos += (elapsed - avgLoopNanos) >> 4;
+                if (elapsed > maxLoopNanos) {
+                    maxLoopNanos = elapsed;
+                }
+            } catch (IOException e) {
+                System.err.println("Error en el loop " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            acceptorOwner.acceptPending();
+            return;
+        }
+
+        NioConnection conn = (NioConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                conn.onReadable(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                conn.flush();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Front end no bloqueante del protocolo JSON. Unos pocos hilos de E/S
+ * ({@link NioEventLoop}) atienden todos los sockets con selectores y las
+ * acciones se ejecutan en un pool de workers aparte, así una conexión inactiva
+ * no ocupa ningún hilo.
+ */
+public class NioServer {
+    private final int port;
+    private final NioEventLoop[] loops;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    public NioServer(int port, int ioThreads, int workerThreads) throws IOException {
+        this.port = port;
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "nio-worker-" + workerIds.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.loops = new NioEventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("nio-io-" + i, workers);
+        }
+    }
+
+    // Arranca los hilos de E/S y registra el socket de escucha en el primer loop
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+
+        for (NioEventLoop loop : loops) {
+            Thread t = new Thread(loop, loop.getName());
+            t.start();
+        }
+        loops[0].execute(() -> loops[0].registerAcceptor(serverChannel, this));
+    }
+
+    // Llamado por el loop del acceptor cuando hay conexiones pendientes
+    void acceptPending() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                NioEventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                loop.register(channel);
+            }
+        } catch (IOException e) {
+            System.err.println("Error aceptando conexión: " + e.getMessage());
+        }
+    }
+
+    // Métricas: conexiones abiertas, latencia por vuelta de cada loop y cola de workers
+    public void addStats(JsonObject stats) {
+        int connections = 0;
+        JsonArray loopStats = new JsonArray();
+        for (NioEventLoop loop : loops) {
+            connections += loop.getConnectionCount();
+            JsonObject l = new JsonObject();
+            l.addProperty("name", loop.getName());
+            l.addProperty("connections", loop.getConnectionCount());
+            l.addProperty("avgLoopMicros", loop.getAvgLoopNanos() / 1000);
+            l.addProperty("maxLoopMicros", loop.getMaxLoopNanos() / 1000);
+            loopStats.add(l);
+        }
+        stats.addProperty("nioConnections", connections);
+        stats.add("ioLoops", loopStats);
+        stats.addProperty("workerThreads", workers.getPoolSize());
+        stats.addProperty("workerActive", workers.getActiveCount());
+        stats.addProperty("workerQueueDepth", workers.getQueue().size());
+    }
+}
@@ -0,0 +1,316 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * Cola de salida acotada de una conexión: líneas ya codificadas que esperan a
+ * su hilo escritor (o al loop NIO).
+ *
+ * Las respuestas a las peticiones de la propia conexión siempre entran. Los
+ * pushes en vivo que llegan con la cola llena (por frames o por bytes)
+ * siguen la política configurada:
+ * <ul>
+ * <li>{@code drop-oldest}: se descarta el push más viejo todavía sin enviar;</li>
+ * <li>{@code disconnect}: se avisa que hay que cerrar la conexión;</li>
+ * <li>{@code spill}: el push se descarta (el mensaje ya está en el historial) y,
+ * cuando la cola se vacía, se encola un aviso con cuántos se perdieron para que
+ * el cliente relea el historial.</li>
+ * </ul>
+ */
+final class OutboundQueue {
+
+    enum Policy {
+        DROP_OLDEST, DISCONNECT, SPILL;
+
+        static Policy parse(String name) {
+            return switch (name.trim().toLowerCase()) {
+                case "drop-oldest" -> DROP_OLDEST;
+                case "disconnect" -> DISCONNECT;
+                case "spill" -> SPILL;
+                default -> throw new IllegalArgumentException("Política de cola de salida desconocida: " + name);
+            };
+        }
+    }
+
+    // Resultado de offer: DISCONNECT pide a la conexión que se cierre
+    enum Offer {
+        QUEUED, DROPPED, DISCONNECT
+    }
+
+    /*
+     * Un frame de la cola: bytes en memoria o, si file no es null, contenido
+     * que el escritor manda directo del disco al socket (ver StreamWriter). continued: el frame siguiente es parte del
+     * mismo mensaje y se descarta junto con este.
+     */
+    record Entry(byte[] frame, FileBody file, boolean push, boolean continued) {
+        // Lo que ocupa en memoria: un archivo no cuenta contra maxBytes
+        int size() {
+            return frame == null ? 0 : frame.length;
+        }
+    }
+
+    // Colas vivas, para las métricas de la acción 12
+    private static final Set<OutboundQueue> live = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong totalDropped = new AtomicLong();
+    private static final AtomicLong totalSpilled = new AtomicLong();
+    private static final AtomicLong totalDisconnects = new AtomicLong();
+
+    private final Supplier<String> owner;
+    private final int maxFrames;
+    private final long maxBytes;
+    private final Policy policy;
+    private final LongFunction<byte[]> spillNotice;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Entry> frames = new ArrayDeque<>();
+    private long bytes;
+    private long pendingSpill;
+    private boolean closed;
+    // El último frame entregado a poll tiene continuación todavía en la cola
+    private boolean midGroup;
+
+    // Métricas de esta conexión
+    private volatile int maxDepth;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /*
+     * spillNotice arma el aviso que se encola después de descartar pushes con
+     * la política spill (recibe cuántos); owner describe la conexión en las
+     * métricas y se evalúa al pedirlas (los usuarios se registran después).
+     */
+    OutboundQueue(Supplier<String> owner, int maxFrames, long maxBytes, Policy policy, LongFunction<byte[]> spillNotice) {
+        this.owner = owner;
+        this.maxFrames = Math.max(1, maxFrames);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.policy = policy;
+        this.spillNotice = spillNotice;
+        live.add(this);
+    }
+
+    // Con los valores de ServerConfig
+    static OutboundQueue create(Supplier<String> owner, LongFunction<byte[]> spillNotice) {
+        return new OutboundQueue(owner, ServerConfig.OUTBOUND_MAX_FRAMES, ServerConfig.OUTBOUND_MAX_BYTES,
+                Policy.parse(ServerConfig.OUTBOUND_POLICY), spillNotice);
+    }
+
+    // push = false para respuestas y salida propia de la conexión: esas nunca se descartan
+    Offer offer(byte[] frame, boolean push) {
+        return offer(new byte[][] { frame }, push);
+    }
+
+    // Varios frames que van juntos (señal + datos binarios): entran o se descartan todos
+    Offer offer(byte[][] group, boolean push) {
+        return offer(group, null, push);
+    }
+
+    /*
+     * Lo mismo terminado con contenido desde disco (solo lo escribe
+     * StreamWriter). Si no se encola, la cola descarta tail; si se encola, la
+     * descarta ella si después lo saca sin entregarlo.
+     */
+    Offer offer(byte[][] group, FileBody tail, boolean push) {
+        int size = 0;
+        for (byte[] frame : group) {
+            size += frame.length;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                // La conexión ya se cerró: nadie va a vaciar la cola
+                discard(tail);
+                return Offer.DROPPED;
+            }
+            if (push && isFull(size)) {
+                switch (policy) {
+                    case DISCONNECT:
+                        totalDisconnects.incrementAndGet();
+                        discard(tail);
+                        return Offer.DISCONNECT;
+                    case SPILL:
+                        discard(tail);
+                        pendingSpill++;
+                        dropped.incrementAndGet();
+                        totalSpilled.incrementAndGet();
+                        return Offer.DROPPED;
+                    case DROP_OLDEST:
+                        while (isFull(size) && dropOldestPush()) {
+                            dropped.incrementAndGet();
+                            totalDropped.incrementAndGet();
+                        }
+                        break;
+                }
+            }
+            for (int i = 0; i < group.length; i++) {
+                frames.add(new Entry(group[i], null, push, i < group.length - 1 || tail != null));
+            }
+            if (tail != null) {
+                frames.add(new Entry(null, tail, push, false));
+            }
+            bytes += size;
+            if (frames.size() > maxDepth) {
+                maxDepth = frames.size();
+            }
+            return Offer.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Siguiente línea a escribir o null si no hay nada (para colas sin archivos)
+    byte[] poll() {
+        Entry e = next();
+        if (e != null && e.file() != null) {
+            throw new IllegalStateException("Frame de archivo en una cola sin soporte de archivos");
+        }
+        return e == null ? null : e.frame();
+    }
+
+    // Siguiente frame a escribir, de bytes o de archivo, o null si no hay nada
+    Entry next() {
+        lock.lock();
+        try {
+            Entry e = frames.poll();
+            if (e != null) {
+                midGroup = e.continued();
+                bytes -= e.size();
+                sent.incrementAndGet();
+                return e;
+            }
+            if (pendingSpill > 0 && spillNotice != null) {
+                long lost = pendingSpill;
+                pendingSpill = 0;
+                sent.incrementAndGet();
+                return new Entry(spillNotice.apply(lost), null, false, false);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Bytes en memoria esperando (las respuestas cuentan aunque no tengan tope)
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty() && (pendingSpill == 0 || spillNotice == null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // La conexión se cerró: suelta lo pendiente y deja de aparecer en las métricas
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Entry e : frames) {
+                discard(e.file());
+            }
+            frames.clear();
+            bytes = 0;
+            pendingSpill = 0;
+        } finally {
+            lock.unlock();
+        }
+        live.remove(this);
+    }
+
+    private boolean isFull(int incoming) {
+        return frames.size() >= maxFrames || bytes + incoming > maxBytes;
+    }
+
+    private boolean dropOldestPush() {
+        Iterator<Entry> it = frames.iterator();
+        boolean afterContinued = midGroup;
+        while (it.hasNext()) {
+            Entry e = it.next();
+            // La continuación de un grupo ya empezado no se descarta sola
+            if (e.push() && !afterContinued) {
+                it.remove();
+                bytes -= e.size();
+                discard(e.file());
+                while (e.continued() && it.hasNext()) {
+                    e = it.next();
+                    it.remove();
+                    bytes -= e.size();
+                    discard(e.file());
+                }
+                return true;
+            }
+            afterContinued = e.continued();
+        }
+        return false;
+    }
+
+    private static void discard(FileBody file) {
+        if (file != null) {
+            file.discard();
+        }
+    }
+
+    private JsonObject toJson() {
+        JsonObject q = new JsonObject();
+        q.addProperty("owner", owner.get());
+        lock.lock();
+        try {
+            q.addProperty("depth", frames.size());
+            q.addProperty("bytes", bytes);
+        } finally {
+            lock.unlock();
+        }
+        q.addProperty("maxDepth", maxDepth);
+        q.addProperty("sent", sent.get());
+        q.addProperty("dropped", dropped.get());
+        return q;
+    }
+
+    // Totales y las conexiones con más frames esperando
+    static void addStats(JsonObject stats, int top) {
+        // Se toma una foto de cada cola antes de ordenar: las profundidades cambian mientras tanto
+        List<JsonObject> queues = new ArrayList<>();
+        long queuedFrames = 0;
+        long queuedBytes = 0;
+        for (OutboundQueue q : live) {
+            JsonObject snapshot = q.toJson();
+            queuedFrames += snapshot.get("depth").getAsLong();
+            queuedBytes += snapshot.get("bytes").getAsLong();
+            queues.add(snapshot);
+        }
+        stats.addProperty("outboundPolicy", ServerConfig.OUTBOUND_POLICY);
+        stats.addProperty("outboundQueues", queues.size());
+        stats.addProperty("outboundQueuedFrames", queuedFrames);
+        stats.addProperty("outboundQueuedBytes", queuedBytes);
+        stats.addProperty("outboundDropped", totalDropped.get());
+        stats.addProperty("outboundSpilled", totalSpilled.get());
+        stats.addProperty("outboundDisconnects", totalDisconnects.get());
+
+        queues.sort((a, b) -> Long.compare(b.get("depth").getAsLong(), a.get("depth").getAsLong()));
+        JsonArray slowest = new JsonArray();
+        for (int i = 0; i < Math.min(top, queues.size()); i++) {
+            slowest.add(queues.get(i));
+        }
+        stats.add("outboundSlowest", slowest);
+    }
+}
@@ -0,0 +1,195 @@
+package com.icesi.chatapp.Server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entregas pendientes de usuarios sin conexión en vivo.
+ *
+ * No se copia ningún mensaje: por cada usuario y conversación se guarda solo
+ * un cursor, el número de secuencia del historial ya leído. Lo pendiente es lo
+ * que el historial tenga después del cursor, así que un usuario con mil
+ * mensajes esperando ocupa lo mismo que uno con uno. El cursor se crea con el
+ * primer mensaje que llega mientras el usuario no está, avanza con cada ack
+ * del cliente y la entrada desaparece cuando no queda nada después de él.
+ *
+ * Los cambios se anexan a {@code cursors.log} (un registro por cambio) y al
+ * abrir se reproduce el archivo y se reescribe compacto. Un registro cortado
+ * al final marca el fin de lo escrito. Sin archivo (backend memory) todo
+ * queda en memoria.
+ */
+final class PendingDeliveries {
+    private static final String FILE_NAME = "cursors.log";
+    private static final byte SET = 1;
+    private static final byte REMOVE = 2;
+
+    // usuario -> (conversación -> cursor)
+    private final Map<String, Map<String, Long>> cursors = new ConcurrentHashMap<>();
+    private final File file;
+    private DataOutputStream out;
+    private long records;
+
+    private PendingDeliveries(File file) {
+        this.file = file;
+    }
+
+    // dir == null: sin persistencia
+    static PendingDeliveries open(File dir) throws IOException {
+        if (dir == null) {
+            return new PendingDeliveries(null);
+        }
+        dir.mkdirs();
+        PendingDeliveries pending = new PendingDeliveries(new File(dir, FILE_NAME));
+        pending.recover();
+        pending.compact();
+        return pending;
+    }
+
+    boolean isPending(String user, String conversation) {
+        Map<String, Long> byConversation = cursors.get(user);
+        return byConversation != null && byConversation.containsKey(conversation);
+    }
+
+    /*
+     * Hay mensajes para user en la conversación después de cursor. Si ya había
+     * una entrada se queda el cursor menor: dos remitentes a la vez nunca
+     * saltan el mensaje del otro.
+     */
+    synchronized void mark(String user, String conversation, long cursor) {
+        Map<String, Long> byConversation = cursors.computeIfAbsent(user, k -> new ConcurrentHashMap<>());
+        Long current = byConversation.get(conversation);
+        if (current == null || cursor < current) {
+            byConversation.put(conversation, cursor);
+            write(SET, user, conversation, cursor);
+        }
+    }
+
+    // Ack del cliente: todo hasta seq ya lo tiene. Devuelve el cursor vigente o null si no había entrada
+    synchronized Long ack(String user, String conversation, long seq) {
+        Map<String, Long> byConversation = cursors.get(user);
+        Long current = byConversation == null ? null : byConversation.get(conversation);
+        if (current == null) {
+            return null;
+        }
+        if (seq > current) {
+            byConversation.put(conversation, seq);
+            write(SET, user, conversation, seq);
+            return seq;
+        }
+        return current;
+    }
+
+    // No queda nada después del cursor
+    synchronized void remove(String user, String conversation) {
+        Map<String, Long> byConversation = cursors.get(user);
+        if (byConversation != null && byConversation.remove(conversation) != null) {
+            if (byConversation.isEmpty()) {
+                cursors.remove(user, byConversation);
+            }
+            write(REMOVE, user, conversation, 0);
+        }
+    }
+
+    // La conversación se borró (grupo eliminado): sus números de secuencia vuelven a empezar
+    synchronized void forget(String conversation) {
+        for (Map.Entry<String, Map<String, Long>> e : cursors.entrySet()) {
+            if (e.getValue().containsKey(conversation)) {
+                remove(e.getKey(), conversation);
+            }
+        }
+    }
+
+    // Copia de las conversaciones pendientes del usuario con su cursor
+    Map<String, Long> pendingFor(String user) {
+        Map<String, Long> byConversation = cursors.get(user);
+        return byConversation == null ? Map.of() : Map.copyOf(byConversation);
+    }
+
+    int size() {
+        int n = 0;
+        for (Map<String, Long> byConversation : cursors.values()) {
+            n += byConversation.size();
+        }
+        return n;
+    }
+
+    private void write(byte op, String user, String conversation, long cursor) {
+        if (out == null) {
+            return;
+        }
+        try {
+            writeRecord(out, op, user, conversation, cursor);
+            out.flush();
+            records++;
+            // El archivo crece con cada ack: se reescribe cuando ya es mucho más grande que el estado
+            if (records > 4L * size() + 1024) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("Error guardando entregas pendientes: " + e.getMessage());
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, String user, String conversation, long cursor)
+            throws IOException {
+        out.writeByte(op);
+        out.writeUTF(user);
+        out.writeUTF(conversation);
+        if (op == SET) {
+            out.writeLong(cursor);
+        }
+    }
+
+    private void recover() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte op = in.readByte();
+                String user = in.readUTF();
+                String conversation = in.readUTF();
+                if (op == SET) {
+                    cursors.computeIfAbsent(user, k -> new ConcurrentHashMap<>()).put(conversation, in.readLong());
+                } else if (op == REMOVE) {
+                    Map<String, Long> byConversation = cursors.get(user);
+                    if (byConversation != null) {
+                        byConversation.remove(conversation);
+                        if (byConversation.isEmpty()) {
+                            cursors.remove(user);
+                        }
+                    }
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // Fin del archivo o registro cortado: lo anterior es el estado
+        }
+    }
+
+    // Escribe solo el estado vigente en un temporal y lo pone en lugar del log
+    private void compact() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        records = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(fos))) {
+            for (Map.Entry<String, Map<String, Long>> user : cursors.entrySet()) {
+                for (Map.Entry<String, Long> c : user.getValue().entrySet()) {
+                    writeRecord(tmpOut, SET, user.getKey(), c.getKey(), c.getValue());
+                    records++;
+                }
+            }
+            tmpOut.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+}
@@ -2,33 +2,96 @@ package com.icesi.chatapp.Server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.google.gson.*;
 
+import org.roaringbitmap.RoaringBitmap;
+
 public class Server {
     private static final int PORT = 12345;
 
-    // Mantener registro de usuarios conectados por sesión
-    private static final Map<String, String> userSessions = Collections.synchronizedMap(new HashMap<>());
+    // Versión y cambios recientes de usuarios y grupos (acciones 9 y 10 con "since")
+    private static final ChangeFeed changes = new ChangeFeed(ServerConfig.CHANGE_FEED_CAPACITY);
+
+    // Ids enteros de usuarios, grupos y conversaciones (compartidos con el historial)
+    private static final Symbols symbols = MessageHistory.symbols();
+
+    // Sesiones registradas (sessionId <-> username) y la conexión en vivo de cada usuario
+    private static final SessionRegistry sessions = new SessionRegistry(symbols, ServerConfig.SESSION_TIMEOUT_MS,
+            ServerConfig.SESSION_TICK_MS, Server::presenceChanged);
+
+    // Lo que llegó a usuarios sin conexión en vivo: se entrega al registrarse (acción 0) y avanza con acks (acción 14)
+    private static final PendingDeliveries pending = MessageHistory.openPendingDeliveries();
 
-    // Usuarios conectados (simulado)
-    private static final Set<String> connectedUsers = Collections.synchronizedSet(new HashSet<>());
+    // Grupos creados: nombre -> ids de los miembros
+    private static final GroupMembership groups = new GroupMembership();
 
-    // Flujos de salida activos (para enviar mensajes en vivo)
-    private static final Map<String, PrintWriter> activeConnections = Collections.synchronizedMap(new HashMap<>());
+    // Conexiones JSON abiertas (modo bloqueante y nio)
+    private static final AtomicInteger openConnections = new AtomicInteger();
 
-    // Grupos creados
-    private static final Map<String, Set<String>> groups = Collections.synchronizedMap(new HashMap<>());
+    private static NioServer nioServer;
 
     public static void main(String[] args) {
-        System.out.println("Servidor TCP iniciado en el puerto " + PORT + "...");
+        ExecutorService executor = ServerConfig.newConnectionExecutor("client-");
+        startMenuServer(executor);
+
+        if ("nio".equalsIgnoreCase(ServerConfig.IO_MODE)) {
+            startNio();
+            return;
+        }
+
+        System.out.println("Servidor TCP iniciado en el puerto " + PORT + " (hilos "
+                + ServerConfig.THREAD_MODE + ")...");
 
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             while (true) {
                 Socket socket = serverSocket.accept();
                 System.out.println("Nueva conexión desde: " + socket.getInetAddress());
-                new Thread(() -> handleClient(socket)).start();
+                executor.execute(() -> handleClient(socket));
+            }
+        } catch (IOException e) {
+            System.err.println("Error en el servidor: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Protocolo de menú del cliente de consola: un ClientHandler por conexión
+    private static void startMenuServer(ExecutorService executor) {
+        Thread acceptor = new Thread(() -> {
+            // Se acepta por canal (en modo bloqueante) para que ClientHandler pueda mandar y recibir audios con
+            // transferTo/transferFrom; los streams del socket funcionan igual
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                serverChannel.bind(new InetSocketAddress(ServerConfig.MENU_PORT));
+                System.out.println("Servidor de menú iniciado en el puerto " + ServerConfig.MENU_PORT + "...");
+                while (true) {
+                    Socket socket = serverChannel.accept().socket();
+                    System.out.println("Nuevo cliente de consola desde: " + socket.getInetAddress());
+                    try {
+                        executor.execute(new ClientHandler(socket));
+                    } catch (IOException e) {
+                        System.err.println("Error creando ClientHandler: " + e.getMessage());
+                        socket.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error en el servidor de menú: " + e.getMessage());
             }
+        }, "menu-acceptor");
+        acceptor.start();
+    }
+
+    private static void startNio() {
+        try {
+            nioServer = new NioServer(PORT, ServerConfig.IO_THREADS, ServerConfig.WORKER_THREADS);
+            nioServer.start();
+            System.out.println("Servidor TCP (nio) iniciado en el puerto " + PORT + " con "
+                    + ServerConfig.IO_THREADS + " hilos de E/S y " + ServerConfig.WORKER_THREADS + " workers...");
         } catch (IOException e) {
             System.err.println("Error en el servidor: " + e.getMessage());
             e.printStackTrace();
@@ -36,88 +99,230 @@ public class Server {
     }
 
     private static void handleClient(Socket socket) {
-        try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            String currentUser = null;
-            String input = in.readLine();
-            if (input == null || input.trim().isEmpty()) {
-                System.err.println("Petición vacía recibida");
+        SocketConnection conn = null;
+        try {
+            InputStream raw = new BufferedInputStream(socket.getInputStream());
+            conn = new SocketConnection(socket);
+            connectionOpened(conn);
+
+            // El primer byte dice el protocolo: 0x00 abre el saludo binario, una línea JSON empieza con texto
+            raw.mark(1);
+            int first = raw.read();
+            raw.reset();
+            if (first != -1 && BinaryCodec.isHello(first)) {
+                readBinary(conn, raw);
                 return;
             }
 
-            System.out.println("Petición recibida: " + input);
+            BufferedReader in = new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8));
+            String input;
+            while ((input = in.readLine()) != null) {
+                if (!handleLine(conn, input)) {
+                    break;
+                }
+            }
 
-            JsonObject request = JsonParser.parseString(input).getAsJsonObject();
-            String action = request.get("action").getAsString();
-            JsonObject data = request.getAsJsonObject("data");
-            JsonObject response = new JsonObject();
+        } catch (Exception e) {
+            System.err.println("Error manejando cliente: " + e.getMessage());
+            // Un socket que ya cerramos nosotros (cliente lento desconectado) no es un error inesperado
+            if (!socket.isClosed()) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (conn != null) {
+                connectionClosed(conn);
+                // El socket se cierra cuando el hilo escritor termine con lo encolado
+                conn.closeAfterFlush();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
 
-            switch (action) {
-                case "0": // Register user session
-                    handleRegisterUser(data, response);
-                    currentUser = data.get("username").getAsString();
-                    activeConnections.put(currentUser, out);
-                    break;
-                case "1": // Private message
-                    handlePrivateMessage(data, response);
-                    break;
-                case "2": // Create group
-                    handleCreateGroup(data, response);
-                    break;
-                case "3": // Group message
-                    handleGroupMessage(data, response);
-                    break;
-                case "7": // Get private history
-                    handleGetPrivateHistory(data, response);
-                    break;
-                case "8": // Get group history
-                    handleGetGroupHistory(data, response);
-                    break;
-                case "9": // Get connected users
-                    handleGetConnectedUsers(response);
-                    break;
-                case "10": // Get all groups
-                    handleGetAllGroups(response);
-                    break;
-                case "11": // Delete group
-                    handleDeleteGroup(data, response);
-                    break;
-                default:
-                    response.addProperty("status", "error");
-                    response.addProperty("message", "Unknown action: " + action);
+    private static void readBinary(ClientConnection conn, InputStream in) throws IOException {
+        if (!startBinary(conn, BinaryCodec.readHello(in))) {
+            return;
+        }
+        byte[] body;
+        while ((body = BinaryCodec.readFrame(in)) != null) {
+            if (!handleBinary(conn, body)) {
+                break;
             }
+        }
+    }
 
-            String responseStr = response.toString();
-            System.out.println("Respuesta enviada: " + responseStr);
-            out.println(responseStr);
+    /*
+     * Contesta el saludo binario. Con una versión conocida la conexión queda
+     * en modo binario y en modo sesión (cada frame lleva su requestId); si no,
+     * se avisa y hay que cerrarla (devuelve false).
+     */
+    static boolean startBinary(ClientConnection conn, boolean accepted) {
+        if (!accepted) {
+            System.err.println("Saludo binario con versión desconocida");
+            conn.send(BinaryCodec.HELLO_REJECTED);
+            return false;
+        }
+        conn.binary = new BinaryCodec();
+        conn.sessionMode = true;
+        conn.send(BinaryCodec.HELLO);
+        return true;
+    }
 
-            if (currentUser != null) {
-                activeConnections.remove(currentUser);
+    static void connectionOpened(ClientConnection conn) {
+        openConnections.incrementAndGet();
+    }
+
+    static void connectionClosed(ClientConnection conn) {
+        openConnections.decrementAndGet();
+        // Solo se quitan las conexiones que siguen apuntando a este cliente
+        for (String user : conn.sessionUsers) {
+            sessions.unbind(user, conn);
+        }
+    }
+
+    /**
+     * Procesa una línea del protocolo JSON y envía la respuesta por la conexión.
+     * Devuelve false cuando la conexión debe cerrarse (modo clásico, sin requestId).
+     */
+    static boolean handleLine(ClientConnection conn, String input) {
+        if (input.trim().isEmpty()) {
+            if (!conn.sessionMode) {
+                System.err.println("Petición vacía recibida");
+                return false;
             }
+            return true;
+        }
 
+        System.out.println("Petición recibida: " + input);
+
+        // Se lee directo a una petición con sus campos, sin armar un árbol JSON
+        JsonCodec.Request request;
+        try {
+            request = JsonCodec.decode(input);
+        } catch (IllegalArgumentException e) {
+            JsonLine error = new JsonLine();
+            error.addProperty("status", "error");
+            error.addProperty("message", "Invalid request: " + e.getMessage());
+            conn.send(error.frame());
+            return conn.sessionMode;
+        }
+
+        // Modo sesión: las peticiones llevan requestId y la conexión se mantiene abierta
+        conn.sessionMode = request.requestId() != null;
+
+        JsonLine response = execute(request, conn);
+        if (conn.sessionMode) {
+            response.addRaw("requestId", request.requestId());
+        }
+
+        byte[] frame = response.frame();
+        System.out.println("Respuesta enviada: " + JsonLine.text(frame));
+        conn.send(frame);
+
+        return conn.sessionMode;
+    }
+
+    /**
+     * Procesa un frame del protocolo binario y envía la respuesta. Un frame
+     * que no se puede leer deja las tablas de símbolos desincronizadas, así
+     * que en ese caso se responde el error y se pide cerrar (false).
+     */
+    static boolean handleBinary(ClientConnection conn, byte[] body) {
+        BinaryCodec codec = conn.binary;
+        JsonCodec.Request request;
+        try {
+            request = codec.decode(body);
+        } catch (IllegalArgumentException e) {
+            JsonLine error = new JsonLine();
+            error.addProperty("status", "error");
+            error.addProperty("message", "Invalid request: " + e.getMessage());
+            codec.reply(conn, "0", error);
+            return false;
+        }
+
+        System.out.println("Petición binaria recibida: acción " + request.action() + " (" + body.length + " bytes)");
+
+        JsonLine response = execute(request, conn);
+        System.out.println("Respuesta enviada: " + response);
+        codec.reply(conn, request.requestId(), response);
+        return true;
+    }
+
+    // Igual en los dos protocolos: un error al procesar también es una respuesta
+    private static JsonLine execute(JsonCodec.Request request, ClientConnection conn) {
+        try {
+            return processRequest(request, conn);
         } catch (Exception e) {
-            System.err.println("Error manejando cliente: " + e.getMessage());
-            e.printStackTrace();
+            JsonLine response = new JsonLine();
+            response.addProperty("status", "error");
+            response.addProperty("message", "Invalid request: " + e.getMessage());
+            return response;
         }
     }
 
-    // Ayudante para encontrar la sessionId actual de un usuario
-    private static String findSessionIdByUsername(String username) {
-        synchronized (userSessions) {
-            for (Map.Entry<String, String> e : userSessions.entrySet()) {
-                if (username.equals(e.getValue())) {
-                    return e.getKey(); // sessionId
-                }
-            }
+    // Ejecuta una petición y devuelve la respuesta para el cliente
+    private static JsonLine processRequest(JsonCodec.Request request, ClientConnection conn) {
+        String action = request.action();
+        if (action == null) {
+            throw new IllegalArgumentException("Missing field: action");
+        }
+        JsonCodec.Fields data = request.data();
+        JsonLine response = new JsonLine();
+
+        switch (action) {
+            case "0": // Register user session
+                handleRegisterUser(data, response, conn);
+                break;
+            case "1": // Private message
+                handlePrivateMessage(data, response);
+                break;
+            case "2": // Create group
+                handleCreateGroup(data, response);
+                break;
+            case "3": // Group message
+                handleGroupMessage(data, response);
+                break;
+            case "7": // Get private history
+                handleGetPrivateHistory(data, response);
+                break;
+            case "8": // Get group history
+                handleGetGroupHistory(data, response);
+                break;
+            case "9": // Get connected users
+                handleGetConnectedUsers(data, response);
+                break;
+            case "10": // Get all groups
+                handleGetAllGroups(data, response);
+                break;
+            case "11": // Delete group
+                handleDeleteGroup(data, response);
+                break;
+            case "12": // Server stats
+                handleGetStats(response);
+                break;
+            case "13": // Heartbeat
+                handleHeartbeat(data, response);
+                break;
+            case "14": // Ack of pending messages
+                handleAckPending(data, response, conn);
+                break;
+            case "15": // Voice note (solo protocolo binario)
+                handleVoiceNote(data, request.payload(), response);
+                break;
+            default:
+                response.addProperty("status", "error");
+                response.addProperty("message", "Unknown action: " + action);
         }
-        return null;
+        return response;
     }
 
-    private static void handleRegisterUser(JsonObject data, JsonObject response) {
+    private static void handleRegisterUser(JsonCodec.Fields data, JsonLine response, ClientConnection conn) {
         try {
-            String username = data.get("username").getAsString().trim();
-            String sessionId = data.get("sessionId").getAsString().trim();
+            String username = data.getString("username").trim();
+            String sessionId = data.getString("sessionId").trim();
 
             if (username.isEmpty() || sessionId.isEmpty()) {
                 response.addProperty("status", "error");
@@ -125,54 +330,172 @@ public class Server {
                 return;
             }
 
-            // ¿Ya hay una sesión asociada a este username?
-            String existingSession = findSessionIdByUsername(username);
-
-            // Si existe y es diferente a la que llega → nombre en uso
-            if (existingSession != null && !existingSession.equals(sessionId)) {
+            // Reclamo atómico: si otra sesión ya tiene este username → nombre en uso
+            if (sessions.claim(sessionId, username, conn) == null) {
                 response.addProperty("status", "error");
                 response.addProperty("message", "Username already in use");
                 return;
             }
-
-            // Registrar/actualizar la sesión
-            userSessions.put(sessionId, username);
-            connectedUsers.add(username);
+            conn.sessionUsers.add(username);
 
             response.addProperty("status", "ok");
             response.addProperty("message", "User registered: " + username);
             System.out.println("Usuario registrado: " + username + " (session: " + sessionId + ")");
 
+            deliverPending(username, conn);
+
         } catch (Exception e) {
             response.addProperty("status", "error");
             response.addProperty("message", "Error registering user: " + e.getMessage());
         }
     }
 
-    private static void handlePrivateMessage(JsonObject data, JsonObject response) {
+    // Mantiene viva la sesión; si ya venció el cliente debe registrarse de nuevo (acción 0)
+    private static void handleHeartbeat(JsonCodec.Fields data, JsonLine response) {
+        String sessionId = data.has("sessionId") ? data.getString("sessionId").trim() : "";
+        if (!sessions.touch(sessionId)) {
+            response.addProperty("status", "error");
+            response.addProperty("message", "Session not registered or expired");
+            return;
+        }
+        response.addProperty("status", "ok");
+        response.addProperty("timeoutMs", sessions.getTimeoutMillis());
+    }
+
+    // Aviso en vivo de que un usuario entró o salió, para no tener que volver a pedir la lista (acción 9)
+    private static void presenceChanged(String username, boolean online) {
+        changes.record(ChangeFeed.USER, username);
+
+        JsonLine event = new JsonLine();
+        event.addProperty("type", "presence");
+        event.addProperty("user", username);
+        event.addProperty("status", online ? "online" : "offline");
+        byte[] frame = event.frame();
+        for (ClientConnection conn : sessions.connections()) {
+            conn.push(event, frame);
+        }
+    }
+
+    /*
+     * Primer lote de cada conversación con mensajes pendientes para el
+     * usuario, todos juntos antes de la respuesta del registro. El siguiente
+     * lote de una conversación sale cuando el cliente confirma el anterior.
+     */
+    private static void deliverPending(String username, ClientConnection conn) {
+        if (conn == null) {
+            return;
+        }
+        int conversations = 0;
+        for (Map.Entry<String, Long> entry : pending.pendingFor(username).entrySet()) {
+            if (sendPendingBatch(username, entry.getKey(), entry.getValue(), conn)) {
+                conversations++;
+            }
+        }
+        if (conversations > 0) {
+            System.out.println("Entregas pendientes para " + username + ": " + conversations + " conversaciones");
+        }
+    }
+
+    // false si ya no queda nada después del cursor (y la entrada se borra)
+    private static boolean sendPendingBatch(String username, String conversation, long cursor,
+            ClientConnection conn) {
+        HistoryPage page = MessageHistory.readAfter(conversation, cursor, ServerConfig.PENDING_BATCH);
+        if (page.messages().isEmpty()) {
+            pending.remove(username, conversation);
+            return false;
+        }
+
+        JsonLine batch = new JsonLine();
+        batch.addProperty("type", "pendingMessages");
+        batch.addProperty("user", username);
+        batch.addProperty("conversation", conversation);
+        batch.addProperty("firstSeq", page.firstSeq());
+        batch.addProperty("lastSeq", page.lastSeq());
+        batch.addProperty("hasMore", page.hasMoreAfter());
+        batch.add("messages", page.messages());
+        // Es la respuesta a un registro o a un ack: no se descarta aunque el cliente vaya lento
+        conn.send(batch);
+        return true;
+    }
+
+    // El cliente ya tiene hasta seq de esa conversación: avanza el cursor y manda el lote siguiente
+    private static void handleAckPending(JsonCodec.Fields data, JsonLine response, ClientConnection conn) {
         try {
-            String recipient = data.get("recipient").getAsString();
-            String message = data.get("message").getAsString();
-            String sessionId = data.has("sessionId") ? data.get("sessionId").getAsString() : null;
+            String sessionId = data.has("sessionId") ? data.getString("sessionId") : null;
+            String username = sessions.usernameFor(sessionId);
+            if (username == null) {
+                response.addProperty("status", "error");
+                response.addProperty("message", "Session not registered or expired");
+                return;
+            }
+            String conversation = data.getString("conversation");
+            long seq = data.getLong("seq");
+
+            Long cursor = pending.ack(username, conversation, seq);
+            boolean more = cursor != null && sendPendingBatch(username, conversation, cursor, conn);
+
+            response.addProperty("status", "ok");
+            response.addProperty("more", more);
+
+        } catch (Exception e) {
+            response.addProperty("status", "error");
+            response.addProperty("message", "Error acknowledging messages: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Se llama antes de guardar el mensaje: el cursor es el último número de
+     * secuencia ya escrito, así que el mensaje nuevo queda después de él. Solo
+     * se lee el historial si alguno de los usuarios todavía no tenía pendientes
+     * en esa conversación.
+     */
+    private static void markPending(List<String> users, String conversation) {
+        long cursor = Long.MIN_VALUE;
+        for (String user : users) {
+            if (pending.isPending(user, conversation)) {
+                continue;
+            }
+            if (cursor == Long.MIN_VALUE) {
+                cursor = MessageHistory.lastSeq(conversation);
+            }
+            pending.mark(user, conversation, cursor);
+        }
+    }
+
+    private static void handlePrivateMessage(JsonCodec.Fields data, JsonLine response) {
+        try {
+            String recipient = data.getString("recipient");
+            String message = data.getString("message");
+            String sessionId = data.has("sessionId") ? data.getString("sessionId") : null;
 
             // Obtener remitente real desde sessionId o 'sender'
-            String sender = (sessionId != null && userSessions.containsKey(sessionId))
-                    ? userSessions.get(sessionId)
-                    : (data.has("sender") ? data.get("sender").getAsString() : "unknown");
+            String sender = sessions.usernameFor(sessionId);
+            if (sender == null) {
+                sender = data.has("sender") ? data.getString("sender") : "unknown";
+            }
+
+            boolean recipientOnline = sessions.isRegistered(recipient);
 
-            boolean recipientOnline = connectedUsers.contains(recipient);
+            // Sin conexión en vivo: queda pendiente y se le entrega cuando se registre
+            if (sessions.connection(recipient) == null) {
+                markPending(List.of(recipient), MessageHistory.privateConversation(sender, recipient));
+            }
 
             // 1) Guardar SIEMPRE el historial (una sola vez)
-            MessageHistory.savePrivateMessage(sender, recipient, message);
+            CompletableFuture<Void> saved = MessageHistory.savePrivateMessage(sender, recipient, message);
+            if (wantsDurableAck(data) && !awaitDurable(saved, response)) {
+                return;
+            }
 
             // 2) Push en vivo SOLO una vez si el destinatario está online
-            if (recipientOnline && activeConnections.containsKey(recipient)) {
-                JsonObject push = new JsonObject();
+            ClientConnection recipientConn = sessions.connection(recipient);
+            if (recipientOnline && recipientConn != null) {
+                JsonLine push = new JsonLine();
                 push.addProperty("type", "privateMessage");
                 push.addProperty("sender", sender);
                 push.addProperty("recipient", recipient);
                 push.addProperty("message", message);
-                activeConnections.get(recipient).println(push.toString());
+                recipientConn.push(push, push.frame());
             }
 
             // 3) ÚNICA respuesta al remitente
@@ -191,10 +514,26 @@ public class Server {
         }
     }
 
-    private static void handleCreateGroup(JsonObject data, JsonObject response) {
+    // El ack espera al disco si lo pide la petición o la configuración del servidor
+    private static boolean wantsDurableAck(JsonCodec.Fields data) {
+        return ServerConfig.DURABLE_ACKS || (data.has("durable") && data.getBoolean("durable"));
+    }
+
+    private static boolean awaitDurable(CompletableFuture<Void> saved, JsonLine response) {
         try {
-            String rawGroupName = data.get("groupName").getAsString();
-            String rawUsersStr = data.get("users").getAsString();
+            saved.join();
+            return true;
+        } catch (CompletionException e) {
+            response.addProperty("status", "error");
+            response.addProperty("message", "Message could not be persisted: " + e.getCause().getMessage());
+            return false;
+        }
+    }
+
+    private static void handleCreateGroup(JsonCodec.Fields data, JsonLine response) {
+        try {
+            String rawGroupName = data.getString("groupName");
+            String rawUsersStr = data.getString("users");
 
             String groupName = (rawGroupName == null) ? "" : rawGroupName.trim();
             if (groupName.isEmpty()) {
@@ -203,8 +542,8 @@ public class Server {
                 return;
             }
 
-            // Evita sobreescribir un grupo existente
-            if (groups.containsKey(groupName)) {
+            // Evita sobreescribir un grupo existente (comprobación rápida; create decide al final)
+            if (groups.exists(symbols.id(groupName))) {
                 response.addProperty("status", "error");
                 response.addProperty("message", "Group already exists: " + groupName);
                 return;
@@ -219,7 +558,7 @@ public class Server {
                 if (user.isEmpty())
                     continue;
 
-                if (connectedUsers.contains(user)) {
+                if (sessions.isRegistered(user)) {
                     groupUsers.add(user);
                 } else {
                     invalidUsers.add(user);
@@ -237,7 +576,7 @@ public class Server {
                 response.add("invalidUsers", invalid);
 
                 JsonArray availableUsers = new JsonArray();
-                for (String user : connectedUsers)
+                for (String user : sessions.users())
                     availableUsers.add(user);
                 response.add("availableUsers", availableUsers);
                 return;
@@ -257,7 +596,20 @@ public class Server {
                 return;
             }
 
-            groups.put(groupName, groupUsers);
+            int[] memberIds = new int[groupUsers.size()];
+            int n = 0;
+            for (String user : groupUsers) {
+                memberIds[n++] = symbols.intern(user);
+            }
+            if (!groups.create(symbols.intern(groupName), memberIds)) {
+                response.addProperty("status", "error");
+                response.addProperty("message", "Group already exists: " + groupName);
+                return;
+            }
+
+            changes.record(ChangeFeed.GROUP, groupName);
+            // El id de la conversación se asigna ahora y no con el primer mensaje, en el hilo del journal
+            symbols.intern(MessageHistory.groupConversation(groupName));
 
             response.addProperty("status", "ok");
             response.addProperty("message", "Group '" + groupName + "' created with " + groupUsers.size() + " members");
@@ -276,32 +628,57 @@ public class Server {
         }
     }
 
-    private static void handleGroupMessage(JsonObject data, JsonObject response) {
+    private static void handleGroupMessage(JsonCodec.Fields data, JsonLine response) {
         try {
-            String groupName = data.get("groupName").getAsString();
-            String message = data.get("message").getAsString();
-            String sessionId = data.has("sessionId") ? data.get("sessionId").getAsString() : null;
+            String groupName = data.getString("groupName");
+            String message = data.getString("message");
+            String sessionId = data.has("sessionId") ? data.getString("sessionId") : null;
 
-            String sender = (sessionId != null && userSessions.containsKey(sessionId))
-                    ? userSessions.get(sessionId)
-                    : data.has("sender") ? data.get("sender").getAsString() : "unknown";
+            String sender = sessions.usernameFor(sessionId);
+            if (sender == null) {
+                sender = data.has("sender") ? data.getString("sender") : "unknown";
+            }
 
-            if (!groups.containsKey(groupName)) {
+            RoaringBitmap members = groups.members(symbols.id(groupName));
+            if (members == null) {
                 response.addProperty("status", "error");
                 response.addProperty("message", "Group not found: " + groupName);
                 return;
             }
 
-            MessageHistory.saveGroupMessage(sender, groupName, message);
+            // Conectados y desconectados salen de cruzar el bitmap del grupo con el de usuarios en vivo
+            int senderId = symbols.id(sender);
+            RoaringBitmap online = sessions.onlineAmong(members);
+            RoaringBitmap absent = RoaringBitmap.andNot(members, online);
+            List<String> offline = new ArrayList<>();
+            for (int member : absent.toArray()) {
+                if (member != senderId) {
+                    offline.add(symbols.name(member));
+                }
+            }
+            if (!offline.isEmpty()) {
+                markPending(offline, MessageHistory.groupConversation(groupName));
+            }
 
-            for (String member : groups.get(groupName)) {
-                if (activeConnections.containsKey(member) && !member.equals(sender)) {
-                    JsonObject msg = new JsonObject();
-                    msg.addProperty("type", "groupMessage");
-                    msg.addProperty("sender", sender);
-                    msg.addProperty("group", groupName);
-                    msg.addProperty("message", message);
-                    activeConnections.get(member).println(msg.toString());
+            CompletableFuture<Void> saved = MessageHistory.saveGroupMessage(sender, groupName, message);
+            if (wantsDurableAck(data) && !awaitDurable(saved, response)) {
+                return;
+            }
+
+            // El push es igual para todos: se serializa una vez y cada conexión recibe el mismo arreglo,
+            // una sola vez aunque registre a varios miembros (el proxy los registra a todos por una)
+            JsonLine msg = new JsonLine();
+            msg.addProperty("type", "groupMessage");
+            msg.addProperty("sender", sender);
+            msg.addProperty("group", groupName);
+            msg.addProperty("message", message);
+            byte[] frame = msg.frame();
+
+            Set<ClientConnection> delivered = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int member : online.toArray()) {
+                ClientConnection memberConn = sessions.connection(member);
+                if (memberConn != null && member != senderId && delivered.add(memberConn)) {
+                    memberConn.push(msg, frame);
                 }
             }
 
@@ -318,10 +695,111 @@ public class Server {
         }
     }
 
-    private static void handleGetPrivateHistory(JsonObject data, JsonObject response) {
+    /*
+     * Nota de voz del protocolo binario: el audio llega en el mismo frame que
+     * la petición, con "recipient" o "groupName" y "fileName". Se guarda igual
+     * que las del cliente de consola (almacén por contenido y el historial) y
+     * se reenvía a los destinatarios conectados.
+     */
+    private static void handleVoiceNote(JsonCodec.Fields data, byte[] audio, JsonLine response) {
+        if (audio == null) {
+            response.addProperty("status", "error");
+            response.addProperty("message", "Voice notes require the binary protocol");
+            return;
+        }
+        try {
+            String sessionId = data.has("sessionId") ? data.getString("sessionId") : null;
+            String sender = sessions.usernameFor(sessionId);
+            if (sender == null) {
+                sender = data.has("sender") ? data.getString("sender") : "unknown";
+            }
+            // Solo el nombre: el cliente no elige la carpeta
+            String fileName = new File(data.getString("fileName")).getName();
+            boolean toGroup = data.has("groupName");
+            String destination = toGroup ? data.getString("groupName") : data.getString("recipient");
+
+            List<String> recipients = new ArrayList<>();
+            if (toGroup) {
+                RoaringBitmap members = groups.members(symbols.id(destination));
+                if (members == null) {
+                    response.addProperty("status", "error");
+                    response.addProperty("message", "Group not found: " + destination);
+                    return;
+                }
+                for (int member : members.toArray()) {
+                    String name = symbols.name(member);
+                    if (!name.equals(sender)) {
+                        recipients.add(name);
+                    }
+                }
+            } else {
+                recipients.add(destination);
+            }
+
+            // Si el mismo audio ya está guardado no se vuelve a escribir
+            AudioBlobStore.Blob stored = MessageHistory.audioBlobs().put(audio);
+
+            CompletableFuture<Void> saved;
+            try {
+                String conversation = toGroup ? MessageHistory.groupConversation(destination)
+                        : MessageHistory.privateConversation(sender, destination);
+                List<String> offline = new ArrayList<>();
+                for (String user : recipients) {
+                    if (sessions.connection(user) == null) {
+                        offline.add(user);
+                    }
+                }
+                if (!offline.isEmpty()) {
+                    markPending(offline, conversation);
+                }
+
+                saved = toGroup ? MessageHistory.saveGroupAudio(sender, destination, stored)
+                        : MessageHistory.savePrivateAudio(sender, destination, stored);
+            } finally {
+                // Desde acá lo protege la referencia del historial (o no llegó a guardarse y se borra)
+                MessageHistory.audioBlobs().unpin(stored.id());
+            }
+            if (wantsDurableAck(data) && !awaitDurable(saved, response)) {
+                return;
+            }
+
+            JsonLine push = new JsonLine();
+            push.addProperty("type", "voiceNote");
+            push.addProperty("sender", sender);
+            push.addProperty(toGroup ? "group" : "recipient", destination);
+            push.addProperty("fileName", fileName);
+            push.addProperty("audioId", stored.id());
+            push.addProperty("size", audio.length);
+            byte[] frame = push.frame();
+
+            int delivered = 0;
+            Set<ClientConnection> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (String user : recipients) {
+                ClientConnection userConn = sessions.connection(user);
+                if (userConn != null && seen.add(userConn)) {
+                    userConn.pushVoiceNote(push, frame, audio);
+                    delivered++;
+                }
+            }
+
+            response.addProperty("status", "ok");
+            response.addProperty("message", "Voice note sent to " + delivered + " connections");
+            response.addProperty("fileName", fileName);
+            response.addProperty("audioId", stored.id());
+
+            System.out.println("Nota de voz: " + sender + " -> " + destination + " (" + audio.length + " bytes)");
+
+        } catch (Exception e) {
+            response.addProperty("status", "error");
+            response.addProperty("message", "Error sending voice note: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static void handleGetPrivateHistory(JsonCodec.Fields data, JsonLine response) {
         try {
-            String user = data.get("user").getAsString();
-            String currentUser = data.has("currentUser") ? data.get("currentUser").getAsString() : null;
+            String user = data.getString("user");
+            String currentUser = data.has("currentUser") ? data.getString("currentUser") : null;
 
             if (currentUser == null) {
                 response.addProperty("status", "error");
@@ -329,18 +807,13 @@ public class Server {
                 return;
             }
 
-            List<String> history = MessageHistory.getPrivateHistory(currentUser, user);
+            HistoryPage page = MessageHistory.getPrivateHistoryPage(currentUser, user, parseHistoryQuery(data));
 
             response.addProperty("status", "ok");
+            addHistoryPage(page, response);
 
-            JsonArray historyArray = new JsonArray();
-            for (String line : history) {
-                historyArray.add(line);
-            }
-            response.add("history", historyArray);
-
-            System.out.println("Historial privado recuperado: " + currentUser + " <-> " + user + " (" + history.size()
-                    + " mensajes)");
+            System.out.println("Historial privado recuperado: " + currentUser + " <-> " + user + " ("
+                    + page.messages().size() + " mensajes)");
 
         } catch (Exception e) {
             response.addProperty("status", "error");
@@ -349,21 +822,17 @@ public class Server {
         }
     }
 
-    private static void handleGetGroupHistory(JsonObject data, JsonObject response) {
+    private static void handleGetGroupHistory(JsonCodec.Fields data, JsonLine response) {
         try {
-            String groupName = data.get("groupName").getAsString();
+            String groupName = data.getString("groupName");
 
-            List<String> history = MessageHistory.getGroupHistory(groupName);
+            HistoryPage page = MessageHistory.getGroupHistoryPage(groupName, parseHistoryQuery(data));
 
             response.addProperty("status", "ok");
+            addHistoryPage(page, response);
 
-            JsonArray historyArray = new JsonArray();
-            for (String line : history) {
-                historyArray.add(line);
-            }
-            response.add("history", historyArray);
-
-            System.out.println("Historial de grupo recuperado: " + groupName + " (" + history.size() + " mensajes)");
+            System.out.println("Historial de grupo recuperado: " + groupName + " (" + page.messages().size()
+                    + " mensajes)");
 
         } catch (Exception e) {
             response.addProperty("status", "error");
@@ -372,17 +841,63 @@ public class Server {
         }
     }
 
-    private static void handleGetConnectedUsers(JsonObject response) {
+    // Paginación opcional de las acciones 7 y 8: "limit" y un cursor "before" o "after" (número de secuencia)
+    private static HistoryQuery parseHistoryQuery(JsonCodec.Fields data) {
+        Long before = data.has("before") && !data.isNull("before") ? data.getLong("before") : null;
+        Long after = data.has("after") && !data.isNull("after") ? data.getLong("after") : null;
+        int limit = data.has("limit") && !data.isNull("limit") ? data.getInt("limit")
+                : HistoryQuery.NO_LIMIT;
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        return new HistoryQuery(before, after, limit);
+    }
+
+    // "history" sigue siendo el arreglo de líneas; el resto permite pedir la página siguiente
+    private static void addHistoryPage(HistoryPage page, JsonLine response) {
+        response.add("history", page.messages());
+        response.addProperty("firstSeq", page.firstSeq());
+        response.addProperty("lastSeq", page.lastSeq());
+        if (page.total() >= 0) {
+            response.addProperty("total", page.total());
+        }
+        response.addProperty("hasMoreBefore", page.hasMoreBefore());
+        response.addProperty("hasMoreAfter", page.hasMoreAfter());
+    }
+
+    private static void handleGetConnectedUsers(JsonCodec.Fields data, JsonLine response) {
         try {
+            ChangeFeed.Changes delta = parseSince(data, ChangeFeed.USER);
+            if (delta != null) {
+                JsonArray online = new JsonArray();
+                JsonArray offline = new JsonArray();
+                for (String user : delta.keys()) {
+                    (sessions.isRegistered(user) ? online : offline).add(user);
+                }
+                response.addProperty("status", "ok");
+                response.addProperty("version", delta.version());
+                response.addProperty("full", false);
+                response.add("online", online);
+                response.add("offline", offline);
+                return;
+            }
+
+            // La versión se lee antes que la lista: lo que cambie en medio se vuelve a mandar en el próximo delta
+            long version = changes.version();
+            List<String> users = sessions.users();
             JsonArray usersArray = new JsonArray();
-            for (String user : connectedUsers) {
+            for (String user : users) {
                 usersArray.add(user);
             }
 
             response.addProperty("status", "ok");
             response.add("users", usersArray);
+            response.addProperty("version", version);
+            if (data.has("since")) {
+                response.addProperty("full", true);
+            }
 
-            System.out.println("Lista de usuarios enviada: " + connectedUsers);
+            System.out.println("Lista de usuarios enviada: " + users);
 
         } catch (Exception e) {
             response.addProperty("status", "error");
@@ -391,26 +906,48 @@ public class Server {
         }
     }
 
-    private static void handleGetAllGroups(JsonObject response) {
+    private static void handleGetAllGroups(JsonCodec.Fields data, JsonLine response) {
         try {
-            JsonArray groupsArray = new JsonArray();
-            for (Map.Entry<String, Set<String>> entry : groups.entrySet()) {
-                JsonObject groupObj = new JsonObject();
-                groupObj.addProperty("name", entry.getKey());
-
-                JsonArray membersArray = new JsonArray();
-                for (String member : entry.getValue()) {
-                    membersArray.add(member);
+            ChangeFeed.Changes delta = parseSince(data, ChangeFeed.GROUP);
+            if (delta != null) {
+                JsonArray changed = new JsonArray();
+                JsonArray deleted = new JsonArray();
+                for (String name : delta.keys()) {
+                    RoaringBitmap members = groups.members(symbols.id(name));
+                    if (members != null) {
+                        changed.add(groupJson(name, members));
+                    } else {
+                        deleted.add(name);
+                    }
                 }
-                groupObj.add("members", membersArray);
+                response.addProperty("status", "ok");
+                response.addProperty("version", delta.version());
+                response.addProperty("full", false);
+                response.add("groups", changed);
+                response.add("deleted", deleted);
+                return;
+            }
 
-                groupsArray.add(groupObj);
+            long version = changes.version();
+            // "member": solo los grupos de ese usuario, sacados del índice inverso
+            RoaringBitmap listed = data.has("member") ? groups.groupsOf(symbols.id(data.getString("member")))
+                    : groups.groups();
+            JsonArray groupsArray = new JsonArray();
+            for (int group : listed.toArray()) {
+                RoaringBitmap members = groups.members(group);
+                if (members != null) {
+                    groupsArray.add(groupJson(symbols.name(group), members));
+                }
             }
 
             response.addProperty("status", "ok");
             response.add("groups", groupsArray);
+            response.addProperty("version", version);
+            if (data.has("since")) {
+                response.addProperty("full", true);
+            }
 
-            System.out.println("Lista de grupos enviada: " + groups.keySet());
+            System.out.println("Lista de grupos enviada: " + groupsArray.size());
 
         } catch (Exception e) {
             response.addProperty("status", "error");
@@ -419,9 +956,51 @@ public class Server {
         }
     }
 
-    private static void handleDeleteGroup(JsonObject data, JsonObject response) {
+    private static JsonObject groupJson(String name, RoaringBitmap members) {
+        JsonObject groupObj = new JsonObject();
+        groupObj.addProperty("name", name);
+
+        JsonArray membersArray = new JsonArray();
+        for (int member : members.toArray()) {
+            membersArray.add(symbols.name(member));
+        }
+        groupObj.add("members", membersArray);
+        return groupObj;
+    }
+
+    // "since": versión que ya tiene el cliente; null si no la mandó o es muy vieja (va la lista completa)
+    private static ChangeFeed.Changes parseSince(JsonCodec.Fields data, byte kind) {
+        if (!data.has("since") || data.isNull("since")) {
+            return null;
+        }
+        return changes.since(kind, data.getLong("since"));
+    }
+
+    private static void handleGetStats(JsonLine response) {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("ioMode", nioServer != null ? "nio" : "blocking");
+        stats.addProperty("threadMode", ServerConfig.THREAD_MODE);
+        stats.addProperty("openConnections", openConnections.get());
+        stats.addProperty("registeredUsers", sessions.size());
+        stats.addProperty("expiredSessions", sessions.getExpired());
+        stats.addProperty("pendingDeliveries", pending.size());
+        if (nioServer != null) {
+            nioServer.addStats(stats);
+        }
+        OutboundQueue.addStats(stats, 10);
+
+        HistoryStore store = MessageHistory.getStore();
+        stats.addProperty("historyStore", store.name());
+        store.addStats(stats);
+        MessageHistory.audioBlobs().addStats(stats);
+
+        response.addProperty("status", "ok");
+        response.add("stats", stats);
+    }
+
+    private static void handleDeleteGroup(JsonCodec.Fields data, JsonLine response) {
         try {
-            String groupName = data.get("groupName").getAsString();
+            String groupName = data.getString("groupName");
 
             if (groupName == null || groupName.trim().isEmpty()) {
                 response.addProperty("status", "error");
@@ -429,13 +1008,14 @@ public class Server {
                 return;
             }
 
-            if (!groups.containsKey(groupName)) {
+            if (!groups.delete(symbols.id(groupName))) {
                 response.addProperty("status", "error");
                 response.addProperty("message", "Group not found: " + groupName);
                 return;
             }
 
-            groups.remove(groupName);
+            changes.record(ChangeFeed.GROUP, groupName);
+            pending.forget(MessageHistory.groupConversation(groupName));
 
             try {
                 boolean deleted = MessageHistory.deleteGroupHistory(groupName);
@@ -0,0 +1,105 @@
+package com.icesi.chatapp.Server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Parámetros de arranque del servidor. Se leen de propiedades del sistema
+ * (por ejemplo {@code -Dchat.io=nio}) para poder cambiar de modo sin recompilar.
+ */
+public final class ServerConfig {
+    // Modo de E/S del protocolo JSON: "blocking" (un hilo por conexión) o "nio" (selectores)
+    public static final String IO_MODE = System.getProperty("chat.io", "blocking");
+
+    // Hilos que atienden cada conexión bloqueante: "platform" o "virtual"
+    public static final String THREAD_MODE = System.getProperty("chat.threads", "platform");
+
+    // Puerto del protocolo de menú (ClientHandler / cliente de consola)
+    public static final int MENU_PORT = Integer.getInteger("chat.menuPort", 6789);
+
+    // Hilos de E/S (selectores) en modo nio
+    public static final int IO_THREADS = Integer.getInteger("chat.io.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    // Hilos que ejecutan las acciones en modo nio
+    public static final int WORKER_THREADS = Integer.getInteger("chat.workers",
+            Runtime.getRuntime().availableProcessors() * 2);
+
+    // Modo nio: peticiones leídas y sin procesar a partir de las cuales se deja de leer la conexión
+    public static final int NIO_MAX_INBOUND = Integer.getInteger("chat.io.maxInbound", 256);
+
+    // Tamaño máximo de una línea JSON entrante (bytes)
+    public static final int MAX_LINE_BYTES = Integer.getInteger("chat.maxLineBytes", 1024 * 1024);
+
+    // Journal del historial: espera máxima antes de cerrar un lote y tamaño máximo del lote
+    public static final long JOURNAL_MAX_LATENCY_MS = Long.getLong("chat.journal.maxLatencyMs", 5);
+    public static final int JOURNAL_MAX_BATCH = Integer.getInteger("chat.journal.maxBatch", 256);
+
+    // Carriles del journal = particiones del log de historial (solo al crearlo; luego manda chat_log/log.properties)
+    public static final int JOURNAL_LANES = Integer.getInteger("chat.journal.lanes",
+            Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    // Si es true, el ack de cada mensaje espera a que esté en disco (también se pide con "durable": true)
+    public static final boolean DURABLE_ACKS = Boolean.getBoolean("chat.durableAcks");
+
+    // Tamaño fijo de cada segmento mapeado del log de historial (bytes)
+    public static final int LOG_SEGMENT_BYTES = Integer.getInteger("chat.log.segmentBytes", 64 * 1024 * 1024);
+
+    // Backend del historial: file, postgres o memory; varios separados por coma = write-through (lee el primero)
+    public static final String HISTORY_STORE = System.getProperty("chat.history.store", "file");
+    // Mensajes por conversación que guarda el backend memory
+    public static final int HISTORY_MEMORY_MESSAGES = Integer.getInteger("chat.history.memoryMessages", 1000);
+
+    // Caché de conversaciones calientes: presupuesto de memoria (0 = sin caché) y mensajes por conversación
+    public static final long HISTORY_CACHE_BYTES = Long.getLong("chat.history.cacheBytes", 64L * 1024 * 1024);
+    public static final int HISTORY_CACHE_MESSAGES = Integer.getInteger("chat.history.cacheMessages", 1000);
+
+    // Conexión a PostgreSQL del backend postgres
+    public static final String DB_URL = System.getProperty("chat.db.url", "jdbc:postgresql://192.168.1.10:5432/chatdb");
+    public static final String DB_USER = System.getProperty("chat.db.user", "chat");
+    public static final String DB_PASSWORD = System.getProperty("chat.db.password", "chatpass");
+
+    // Escritor por lotes de la base de datos: capacidad de la cola, filas por lote, espera máxima del lote
+    public static final int DB_QUEUE_CAPACITY = Integer.getInteger("chat.db.queueCapacity", 10_000);
+    public static final int DB_MAX_BATCH = Integer.getInteger("chat.db.maxBatch", 500);
+    public static final long DB_MAX_LATENCY_MS = Long.getLong("chat.db.maxLatencyMs", 20);
+    // Cuánto espera un save* por lugar en la cola llena antes de rechazar la fila
+    public static final long DB_ENQUEUE_TIMEOUT_MS = Long.getLong("chat.db.enqueueTimeoutMs", 1000);
+
+    // Sesiones: inactividad tras la que vencen (0 = nunca) y resolución de la rueda que las vence
+    public static final long SESSION_TIMEOUT_MS = Long.getLong("chat.session.timeoutMs", 90_000);
+    public static final long SESSION_TICK_MS = Long.getLong("chat.session.tickMs", 1000);
+
+    // Cambios recientes de usuarios y grupos que se guardan para responder deltas ("since") en las acciones 9 y 10
+    public static final int CHANGE_FEED_CAPACITY = Integer.getInteger("chat.changes.capacity", 10_000);
+
+    // Cola de salida de cada conexión: tope en líneas y en bytes, y qué hacer con un push si está llena
+    // (drop-oldest, disconnect o spill: se descarta y el cliente recibe un aviso para releer el historial)
+    public static final int OUTBOUND_MAX_FRAMES = Integer.getInteger("chat.outbound.maxFrames", 1024);
+    public static final long OUTBOUND_MAX_BYTES = Long.getLong("chat.outbound.maxBytes", 4L * 1024 * 1024);
+    public static final String OUTBOUND_POLICY = System.getProperty("chat.outbound.policy", "spill");
+
+    // Mensajes por lote al entregar lo que llegó mientras el usuario no estaba (uno por conversación y ack)
+    public static final int PENDING_BATCH = Integer.getInteger("chat.pending.batch", 100);
+
+    // Notas de voz del cliente de consola: reenviar a los receptores mientras la subida todavía llega
+    public static final boolean AUDIO_CUT_THROUGH = Boolean.parseBoolean(
+            System.getProperty("chat.audio.cutThrough", "true"));
+    // Una subida que no avanza en este tiempo se da por cortada (los receptores rellenan y siguen)
+    public static final long AUDIO_STALL_MS = Long.getLong("chat.audio.stallMs", 15_000);
+
+    public static boolean useVirtualThreads() {
+        return "virtual".equalsIgnoreCase(THREAD_MODE);
+    }
+
+    // Executor de un hilo por tarea (virtual o de plataforma según chat.threads)
+    public static ExecutorService newConnectionExecutor(String namePrefix) {
+        if (useVirtualThreads()) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory());
+        }
+        return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name(namePrefix, 0).factory());
+    }
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,271 @@
+package com.icesi.chatapp.Server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * Registro de sesiones del protocolo JSON: sessionId ↔ username y la conexión
+ * en vivo de cada usuario.
+ *
+ * Los dos índices son mapas concurrentes, así que buscar en cualquier sentido
+ * es O(1) y no bloquea a las demás búsquedas. Además cada usuario tiene su id
+ * de {@link Symbols} y un índice por id, para recorrer los miembros de un
+ * grupo sin hashear nombres, y un bitmap con los ids que tienen conexión en
+ * vivo para cruzarlo con los miembros de un grupo. El nombre se reclama con un
+ * {@code putIfAbsent} sobre el índice por usuario: entre dos sesiones que
+ * piden el mismo nombre a la vez gana exactamente una. Las operaciones sobre
+ * una misma sessionId se serializan con el {@code compute} de su entrada.
+ *
+ * Una sesión sin actividad (registro, heartbeat o mensaje con su sessionId)
+ * durante {@code timeoutMillis} vence: se quita de los índices, libera el
+ * nombre y se avisa al {@link PresenceListener}.
+ */
+final class SessionRegistry {
+
+    // Se llama cuando un username entra (registro nuevo) o sale (vencimiento) del registro
+    interface PresenceListener {
+        void presenceChanged(String username, boolean online);
+    }
+
+    // Una sesión registrada; la conexión cambia cuando el cliente se reconecta
+    static final class Session {
+        final String sessionId;
+        final String username;
+        final int userId;
+        private final AtomicReference<ClientConnection> connection = new AtomicReference<>();
+        // Última actividad, en el reloj de SessionWheel.now()
+        volatile long lastSeen = SessionWheel.now();
+
+        private Session(String sessionId, String username, int userId) {
+            this.sessionId = sessionId;
+            this.username = username;
+            this.userId = userId;
+        }
+
+        ClientConnection connection() {
+            return connection.get();
+        }
+    }
+
+    private final Map<String, Session> bySession = new ConcurrentHashMap<>();
+    private final Map<String, Session> byUser = new ConcurrentHashMap<>();
+    // Las mismas sesiones que byUser, por id de usuario
+    private final IdIndex<Session> byId = new IdIndex<>();
+    // Usuarios con conexión en vivo; se lee y se cambia con su monitor
+    private final RoaringBitmap online = new RoaringBitmap();
+    private final Symbols symbols;
+    private final PresenceListener listener;
+    private final long timeoutMillis;
+    private final SessionWheel wheel;
+    private final AtomicLong expired = new AtomicLong();
+
+    // timeoutMillis <= 0: las sesiones no vencen
+    SessionRegistry(Symbols symbols, long timeoutMillis, long tickMillis, PresenceListener listener) {
+        this.symbols = symbols;
+        this.listener = listener;
+        this.timeoutMillis = timeoutMillis;
+        this.wheel = timeoutMillis > 0 ? new SessionWheel(this, timeoutMillis, tickMillis) : null;
+    }
+
+    /*
+     * Reclama username para sessionId y le asocia la conexión. Devuelve null
+     * si el nombre ya lo tiene otra sesión. Registrar de nuevo la misma pareja
+     * solo actualiza la conexión; si la sesión tenía otro nombre, lo libera.
+     */
+    Session claim(String sessionId, String username, ClientConnection conn) {
+        // {sesión reclamada, sesión nueva si se creó, sesión anterior liberada}
+        Session[] result = new Session[3];
+        /*
+         * Un nombre que ya tiene otra sesión se rechaza antes de tocar la tabla
+         * de símbolos, que es solo de agregado y hace fsync por nombre nuevo: así
+         * los intentos rechazados no la hacen crecer. Si el nombre está libre se
+         * interna fuera del compute; si otra sesión lo gana entre medio, ese
+         * nombre igual queda reclamado y ya estaba en la tabla.
+         */
+        Session holder = byUser.get(username);
+        if (holder != null && !holder.sessionId.equals(sessionId)) {
+            return null;
+        }
+        int userId = symbols.intern(username);
+        bySession.compute(sessionId, (id, current) -> {
+            if (current != null && current.username.equals(username)) {
+                result[0] = current;
+                return current;
+            }
+            Session fresh = new Session(id, username, userId);
+            if (byUser.putIfAbsent(username, fresh) != null) {
+                return current;
+            }
+            byId.set(userId, fresh);
+            if (current != null && byUser.remove(current.username, current)) {
+                byId.remove(current.userId, current);
+                result[2] = current;
+            }
+            result[0] = fresh;
+            result[1] = fresh;
+            return fresh;
+        });
+
+        Session session = result[0];
+        if (session == null) {
+            return null;
+        }
+        session.lastSeen = SessionWheel.now();
+        if (conn != null) {
+            session.connection.set(conn);
+            syncOnline(session.userId);
+        }
+        if (result[2] != null) {
+            syncOnline(result[2].userId);
+            listener.presenceChanged(result[2].username, false);
+        }
+        if (result[1] != null) {
+            if (wheel != null) {
+                wheel.schedule(session);
+            }
+            listener.presenceChanged(username, true);
+        }
+        return session;
+    }
+
+    // Cuenta como actividad de la sesión; false si no existe (venció o nunca se registró)
+    boolean touch(String sessionId) {
+        Session session = sessionId == null ? null : bySession.get(sessionId);
+        if (session == null) {
+            return false;
+        }
+        session.lastSeen = SessionWheel.now();
+        return true;
+    }
+
+    // Suelta la conexión solo si sigue siendo la de ese usuario (no pisa una reconexión)
+    void unbind(String username, ClientConnection conn) {
+        Session session = byUser.get(username);
+        if (session != null && session.connection.compareAndSet(conn, null)) {
+            syncOnline(session.userId);
+        }
+    }
+
+    /*
+     * Recalcula el bit del usuario con lo que hay ahora en el índice. Se
+     * llama después de cada cambio de conexión: aunque un unbind y una
+     * reconexión se crucen, el último en tomar el monitor ve el estado final.
+     */
+    private void syncOnline(int userId) {
+        synchronized (online) {
+            Session session = byId.get(userId);
+            if (session != null && session.connection() != null) {
+                online.add(userId);
+            } else {
+                online.remove(userId);
+            }
+        }
+    }
+
+    // Los de members que tienen conexión en vivo (bitmap nuevo, members no cambia)
+    RoaringBitmap onlineAmong(RoaringBitmap members) {
+        synchronized (online) {
+            return RoaringBitmap.and(members, online);
+        }
+    }
+
+    // Usuario de la sesión (y la marca como activa) o null si no está registrada
+    String usernameFor(String sessionId) {
+        Session session = sessionId == null ? null : bySession.get(sessionId);
+        if (session == null) {
+            return null;
+        }
+        session.lastSeen = SessionWheel.now();
+        return session.username;
+    }
+
+    boolean isRegistered(String username) {
+        return byUser.containsKey(username);
+    }
+
+    // Conexión en vivo del usuario o null si no tiene
+    ClientConnection connection(String username) {
+        Session session = byUser.get(username);
+        return session == null ? null : session.connection();
+    }
+
+    // Lo mismo por id de usuario (ver Symbols)
+    ClientConnection connection(int userId) {
+        Session session = byId.get(userId);
+        return session == null ? null : session.connection();
+    }
+
+    boolean isRegistered(int userId) {
+        return byId.get(userId) != null;
+    }
+
+    // Conexiones en vivo sin repetir (el proxy registra a todos sus usuarios por una sola)
+    Set<ClientConnection> connections() {
+        Set<ClientConnection> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Session session : byUser.values()) {
+            ClientConnection conn = session.connection();
+            if (conn != null) {
+                result.add(conn);
+            }
+        }
+        return result;
+    }
+
+    List<String> users() {
+        return new ArrayList<>(byUser.keySet());
+    }
+
+    int size() {
+        return byUser.size();
+    }
+
+    long getExpired() {
+        return expired.get();
+    }
+
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    // Lo usa la rueda para descartar entradas de sesiones que ya no están
+    boolean isCurrent(Session session) {
+        return bySession.get(session.sessionId) == session;
+    }
+
+    /*
+     * La rueda la encontró vencida. Se vuelve a mirar lastSeen dentro del
+     * compute de su sessionId: si justo llegó un heartbeat, se reprograma.
+     */
+    void expire(Session session, long now) {
+        boolean[] removed = new boolean[1];
+        bySession.compute(session.sessionId, (id, current) -> {
+            if (current != session || session.lastSeen + timeoutMillis > now) {
+                return current;
+            }
+            byUser.remove(session.username, session);
+            byId.remove(session.userId, session);
+            removed[0] = true;
+            return null;
+        });
+
+        if (removed[0]) {
+            session.connection.set(null);
+            syncOnline(session.userId);
+            expired.incrementAndGet();
+            System.out.println("Sesión vencida por inactividad: " + session.username + " (session: "
+                    + session.sessionId + ")");
+            listener.presenceChanged(session.username, false);
+        } else if (isCurrent(session)) {
+            wheel.schedule(session);
+        }
+    }
+}
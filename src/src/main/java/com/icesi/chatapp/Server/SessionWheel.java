@@ -0,0 +1,87 @@
+package com.icesi.chatapp.Server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rueda de tiempo (hashed timing wheel) que vence las sesiones inactivas.
+ *
+ * Cada sesión está en una sola ranura, la del tick en que vencería. Un
+ * heartbeat no la mueve: solo actualiza {@code lastSeen}. Cuando el tick llega
+ * a la ranura, cada sesión se vence o se vuelve a colocar donde cae su nuevo
+ * vencimiento, así que el costo por tick es el de esa ranura y cada sesión
+ * activa se visita una vez por período de timeout. La rueda tiene más ranuras
+ * que ticks en un timeout, por eso ninguna necesita dar más de una vuelta.
+ */
+final class SessionWheel {
+    private static final long ORIGIN = System.nanoTime();
+
+    private final SessionRegistry registry;
+    private final long timeoutMillis;
+    private final long tickMillis;
+    private final ArrayDeque<SessionRegistry.Session>[] slots;
+    private long nextTick;
+
+    @SuppressWarnings("unchecked")
+    SessionWheel(SessionRegistry registry, long timeoutMillis, long tickMillis) {
+        this.registry = registry;
+        this.timeoutMillis = timeoutMillis;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.slots = (ArrayDeque<SessionRegistry.Session>[]) new ArrayDeque<?>[(int) (timeoutMillis / this.tickMillis) + 2];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.nextTick = now() / this.tickMillis;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::tick, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Reloj monótono en milisegundos desde el arranque, para lastSeen y los vencimientos
+    static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ORIGIN);
+    }
+
+    synchronized void schedule(SessionRegistry.Session session) {
+        long due = Math.max(session.lastSeen + timeoutMillis, nextTick * tickMillis);
+        slots[(int) ((due / tickMillis) % slots.length)].add(session);
+    }
+
+    // Procesa las ranuras de los ticks que ya pasaron (incluye los atrasados)
+    private void tick() {
+        try {
+            long now = now();
+            List<SessionRegistry.Session> expired = new ArrayList<>();
+            synchronized (this) {
+                while (nextTick * tickMillis <= now) {
+                    ArrayDeque<SessionRegistry.Session> slot = slots[(int) (nextTick % slots.length)];
+                    nextTick++;
+                    for (int n = slot.size(); n > 0; n--) {
+                        SessionRegistry.Session s = slot.poll();
+                        if (!registry.isCurrent(s)) {
+                            continue;
+                        }
+                        if (s.lastSeen + timeoutMillis <= now) {
+                            expired.add(s);
+                        } else {
+                            schedule(s);
+                        }
+                    }
+                }
+            }
+            // Fuera del lock: vencer avisa a los clientes
+            for (SessionRegistry.Session s : expired) {
+                registry.expire(s, now);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error venciendo sesiones: " + e.getMessage());
+        }
+    }
+}
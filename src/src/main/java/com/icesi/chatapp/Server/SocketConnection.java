@@ -0,0 +1,43 @@
+package com.icesi.chatapp.Server;
+
+import java.io.IOException;
+import java.net.Socket;
+
+// Conexión bloqueante: un hilo por socket para leer; la escritura va por la cola de salida y su StreamWriter
+class SocketConnection extends ClientConnection {
+    private final Socket socket;
+    private final StreamWriter writer;
+
+    SocketConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        OutboundQueue queue = OutboundQueue.create(() -> "json " + socket.getRemoteSocketAddress() + " " + sessionUsers,
+                this::spillNotice);
+        this.writer = new StreamWriter(queue, socket.getOutputStream(), this::closeSocket);
+    }
+
+    @Override
+    void sendFrames(byte[][] frames, boolean push) {
+        if (push) {
+            writer.push(frames);
+        } else {
+            writer.send(frames);
+        }
+    }
+
+    // Cierra cuando termine de escribir lo encolado (la respuesta del modo clásico, por ejemplo)
+    void closeAfterFlush() {
+        writer.closeAfterFlush();
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.icesi.chatapp.Server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Escritor de un socket bloqueante: vacía una {@link OutboundQueue} en el
+ * stream desde un hilo que solo existe mientras hay algo pendiente. Quien
+ * encola nunca escribe en el socket, así que un cliente lento no frena a
+ * quien le manda un push.
+ *
+ * Un frame de archivo (ver {@link #push(FileBody, byte[]...)}) se escribe con
+ * {@link java.nio.channels.FileChannel#transferTo}: si el socket tiene canal,
+ * el kernel lo copia del disco al socket (sendfile) sin pasar por la memoria
+ * de Java.
+ *
+ * Con hilos virtuales cada ráfaga de escritura corre en un hilo nuevo (son
+ * baratos). Con hilos de plataforma la conexión tiene un hilo escritor propio
+ * que se crea con la primera escritura, espera entre ráfagas y termina al
+ * cerrarse: un push a N conexiones no crea N hilos del sistema por mensaje.
+ * No es un pool compartido porque un escritor puede quedar bloqueado mucho
+ * tiempo (cliente que no lee, nota de voz que todavía se sube) y dejaría sin
+ * hilo a las demás conexiones.
+ */
+class StreamWriter {
+    // Solo en modo virtual; en modo platform cada conexión usa su hilo (ver writeLoop)
+    private static final ExecutorService writers = ServerConfig.useVirtualThreads()
+            ? ServerConfig.newConnectionExecutor("writer-")
+            : null;
+    private static final ThreadFactory writerThreads = Thread.ofPlatform().name("writer-", 0).factory();
+
+    private final OutboundQueue queue;
+    private final OutputStream out;
+    // Destino de los frames de archivo: el canal del socket o, si no tiene, el mismo stream
+    private final WritableByteChannel channel;
+    private final Runnable onClose;
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private volatile boolean closeAfterFlush;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Modo platform: hilo escritor de la conexión (null hasta la primera escritura) y aviso de trabajo
+    private final Object signal = new Object();
+    private Thread thread;
+    private boolean wake;
+
+    // onClose cierra el socket; se llama una sola vez (error de escritura, desconexión por política o fin)
+    StreamWriter(OutboundQueue queue, OutputStream out, Runnable onClose) {
+        this(queue, out, null, onClose);
+    }
+
+    // channel: el del socket (Socket.getChannel(), puede ser null), para mandar archivos sin copiarlos
+    StreamWriter(OutboundQueue queue, OutputStream out, WritableByteChannel channel, Runnable onClose) {
+        this.queue = queue;
+        this.out = new BufferedOutputStream(out);
+        this.channel = channel != null ? channel : Channels.newChannel(this.out);
+        this.onClose = onClose;
+    }
+
+    // Respuesta o salida propia de la conexión: nunca se descarta
+    void send(byte[]... frames) {
+        offer(frames, false);
+    }
+
+    // Push en vivo: con la cola llena manda la política de OutboundQueue; varios frames van juntos
+    void push(byte[]... frames) {
+        offer(frames, true);
+    }
+
+    // Push de frames seguidos del contenido de file, que se lee del disco recién al escribirlo
+    boolean push(File file, byte[]... frames) {
+        return push(FileBody.of(file), frames);
+    }
+
+    // false si body no se encoló (ya quedó descartado); si se encoló, se escribe o se descarta después
+    boolean push(FileBody body, byte[]... frames) {
+        return offer(frames, body, true);
+    }
+
+    private void offer(byte[][] frames, boolean push) {
+        offer(frames, null, push);
+    }
+
+    private boolean offer(byte[][] frames, FileBody file, boolean push) {
+        if (closed.get() || closeAfterFlush) {
+            if (file != null) {
+                file.discard();
+            }
+            return false;
+        }
+        OutboundQueue.Offer result = queue.offer(frames, file, push);
+        if (result == OutboundQueue.Offer.DISCONNECT) {
+            System.err.println("Cola de salida llena, se desconecta al cliente lento");
+            close();
+            return false;
+        }
+        scheduleWrite();
+        return result == OutboundQueue.Offer.QUEUED;
+    }
+
+    private void scheduleWrite() {
+        if (!queue.isEmpty() && writing.compareAndSet(false, true)) {
+            if (writers != null) {
+                writers.execute(this::drain);
+            } else {
+                wakeWriter();
+            }
+        }
+    }
+
+    private void wakeWriter() {
+        synchronized (signal) {
+            wake = true;
+            if (thread == null) {
+                thread = writerThreads.newThread(this::writeLoop);
+                thread.start();
+            } else {
+                signal.notify();
+            }
+        }
+    }
+
+    // Hilo escritor de la conexión en modo platform: una ráfaga por aviso hasta que se cierra
+    private void writeLoop() {
+        while (true) {
+            synchronized (signal) {
+                while (!wake && !closed.get()) {
+                    try {
+                        signal.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed.get()) {
+                    return;
+                }
+                wake = false;
+            }
+            drain();
+        }
+    }
+
+    // En el hilo escritor: escribe en orden todo lo pendiente y hace un flush al vaciar la cola
+    private void drain() {
+        try {
+            OutboundQueue.Entry entry;
+            while ((entry = queue.next()) != null) {
+                if (entry.file() != null) {
+                    // Lo anterior tiene que salir antes que el archivo, que no pasa por el buffer
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        entry.file().discard();
+                        throw e;
+                    }
+                    entry.file().transferTo(channel);
+                } else {
+                    out.write(entry.frame());
+                    afterWrite(entry.frame());
+                }
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            close();
+        } finally {
+            writing.set(false);
+        }
+        if (closeAfterFlush && queue.isEmpty()) {
+            close();
+        } else {
+            scheduleWrite();
+        }
+    }
+
+    // Gancho para protocolos que necesitan algo entre dos frames (ver ClientHandler)
+    void afterWrite(byte[] frame) throws IOException {
+    }
+
+    OutputStream stream() {
+        return out;
+    }
+
+    // Cierra cuando termine de escribir lo encolado (la respuesta del modo clásico, por ejemplo)
+    void closeAfterFlush() {
+        closeAfterFlush = true;
+        if (queue.isEmpty() && !writing.get()) {
+            close();
+        } else {
+            scheduleWrite();
+        }
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        queue.close();
+        synchronized (signal) {
+            signal.notify();
+        }
+        onClose.run();
+    }
+}
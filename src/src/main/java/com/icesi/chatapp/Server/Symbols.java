@@ -0,0 +1,133 @@
+package com.icesi.chatapp.Server;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tabla de símbolos: a cada nombre de usuario, grupo o conversación le toca
+ * un id entero denso (0, 1, 2...) la primera vez que aparece, y el id no
+ * cambia mientras exista la tabla. Con ids los conjuntos de miembros son
+ * bitmaps ({@link GroupMembership}), la conexión de un usuario se busca por
+ * índice ({@link IdIndex}) y el log de historial guarda 4 bytes por nombre.
+ *
+ * Buscar un id o un nombre no toma locks; solo asignar uno nuevo. Cada nombre
+ * nuevo se anexa a {@code symbols.log} y se fuerza a disco antes de que nadie
+ * use el id, así que un registro del historial nunca apunta a un id que no
+ * se pueda leer al arrancar. Sin archivo la tabla vive solo en memoria.
+ */
+final class Symbols {
+    private static final String FILE_NAME = "symbols.log";
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[256];
+    private volatile int size;
+
+    private final FileChannel channel;
+    private final DataOutputStream out;
+
+    private Symbols(FileChannel channel) {
+        this.channel = channel;
+        this.out = channel == null ? null
+                : new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    // dir == null: sin persistencia
+    static Symbols open(File dir) throws IOException {
+        if (dir == null) {
+            return new Symbols(null);
+        }
+        dir.mkdirs();
+        File file = new File(dir, FILE_NAME);
+        byte[] data = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        Symbols symbols = new Symbols(channel);
+        long valid = symbols.recover(data);
+        // Un nombre cortado al final (caída a mitad de escritura) se descarta para anexar detrás de lo válido
+        channel.truncate(valid);
+        channel.position(valid);
+        return symbols;
+    }
+
+    // Id del nombre; lo asigna si todavía no tiene
+    int intern(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : assign(name);
+    }
+
+    // Id del nombre o -1 si nunca se le asignó uno
+    int id(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    String name(int id) {
+        String[] n = names;
+        if (id < 0 || id >= size || id >= n.length) {
+            throw new IllegalArgumentException("Símbolo desconocido: " + id);
+        }
+        return n[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private synchronized int assign(String name) {
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        if (out != null) {
+            try {
+                out.writeUTF(name);
+                out.flush();
+                channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("No se pudo guardar el símbolo " + name, e);
+            }
+        }
+        return add(name);
+    }
+
+    // Solo con el monitor tomado (o al abrir): el nombre queda visible antes que su id
+    private int add(String name) {
+        int id = size;
+        String[] n = names;
+        if (id == n.length) {
+            n = Arrays.copyOf(n, n.length * 2);
+        }
+        n[id] = name;
+        names = n;
+        size = id + 1;
+        ids.put(name, id);
+        return id;
+    }
+
+    // Devuelve cuántos bytes del archivo son nombres completos
+    private long recover(byte[] data) {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        long valid = 0;
+        try {
+            while (valid < data.length) {
+                add(in.readUTF());
+                valid = data.length - bytes.available();
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // Nombre cortado: lo anterior es la tabla
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (size > 0) {
+            System.out.println("Símbolos: " + size + " nombres");
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,170 @@
+package com.icesi.chatapp.Server;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseBatchWriterTest {
+    private static final String SQL = "INSERT INTO messages (sender, content) VALUES (?, ?)";
+
+    /*
+     * Base de datos de mentira: guarda las filas con commit y rechaza las que
+     * traen "poison" como contenido (igual que una restricción violada). Un
+     * executeBatch con una fila así falla entero, como en PostgreSQL.
+     */
+    private static final class FakeDatabase {
+        final List<String> committed = new ArrayList<>();
+        final List<String> pending = new ArrayList<>();
+        int connections;
+        int batchesExecuted;
+
+        DataSource dataSource() {
+            return proxy(DataSource.class, (p, m, args) -> switch (m.getName()) {
+                case "getConnection" -> {
+                    connections++;
+                    yield connection();
+                }
+                default -> throw new UnsupportedOperationException(m.getName());
+            });
+        }
+
+        private Connection connection() {
+            return proxy(Connection.class, (p, m, args) -> switch (m.getName()) {
+                case "prepareStatement" -> statement();
+                case "commit" -> {
+                    committed.addAll(pending);
+                    pending.clear();
+                    yield null;
+                }
+                case "rollback" -> {
+                    pending.clear();
+                    yield null;
+                }
+                case "setAutoCommit", "close" -> null;
+                default -> throw new UnsupportedOperationException(m.getName());
+            });
+        }
+
+        private PreparedStatement statement() {
+            Object[] bound = new Object[2];
+            List<String> batch = new ArrayList<>();
+            return proxy(PreparedStatement.class, (p, m, args) -> switch (m.getName()) {
+                case "setObject" -> {
+                    bound[(Integer) args[0] - 1] = args[1];
+                    yield null;
+                }
+                case "addBatch" -> {
+                    batch.add(bound[0] + ":" + bound[1]);
+                    yield null;
+                }
+                case "executeBatch" -> {
+                    batchesExecuted++;
+                    for (String row : batch) {
+                        if (row.endsWith(":poison")) {
+                            throw new BatchUpdateException("violates check constraint", new int[0]);
+                        }
+                    }
+                    pending.addAll(batch);
+                    batch.clear();
+                    yield new int[0];
+                }
+                case "executeUpdate" -> {
+                    String row = bound[0] + ":" + bound[1];
+                    if (row.endsWith(":poison")) {
+                        throw new SQLException("violates check constraint");
+                    }
+                    pending.add(row);
+                    yield 1;
+                }
+                case "close" -> null;
+                default -> throw new UnsupportedOperationException(m.getName());
+            });
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, java.lang.reflect.InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    // Lote grande y latencia alta: todo lo que se encola antes del primer flush va en un solo lote
+    private static DatabaseBatchWriter writer(FakeDatabase db) {
+        return new DatabaseBatchWriter(db.dataSource(), 1000, 500, 200, 1000);
+    }
+
+    @Test
+    void batchCommitsAllRowsInOneExecute() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        DatabaseBatchWriter writer = writer(db);
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            done.add(writer.insert(SQL, "ana", "mensaje " + i));
+        }
+        for (CompletableFuture<Void> f : done) {
+            f.get(5, TimeUnit.SECONDS);
+        }
+        writer.close();
+
+        assertEquals(100, db.committed.size());
+        assertEquals("ana:mensaje 0", db.committed.get(0));
+        assertEquals("ana:mensaje 99", db.committed.get(99));
+        assertEquals(1, db.batchesExecuted);
+        assertEquals(100, writer.getRows());
+        assertEquals(0, writer.getFailed());
+    }
+
+    @Test
+    void poisonRowFailsAloneAndTheRestAreSaved() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        DatabaseBatchWriter writer = writer(db);
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            done.add(writer.insert(SQL, "ana", i == 17 ? "poison" : "mensaje " + i));
+        }
+        for (int i = 0; i < done.size(); i++) {
+            if (i == 17) {
+                ExecutionException e = assertThrows(ExecutionException.class,
+                        () -> done.get(17).get(5, TimeUnit.SECONDS));
+                assertInstanceOf(SQLException.class, e.getCause());
+            } else {
+                done.get(i).get(5, TimeUnit.SECONDS);
+            }
+        }
+        writer.close();
+
+        assertEquals(49, db.committed.size());
+        assertFalse(db.committed.contains("ana:poison"));
+        assertEquals("ana:mensaje 16", db.committed.get(16));
+        assertEquals("ana:mensaje 18", db.committed.get(17));
+        assertEquals(49, writer.getRows());
+        assertEquals(1, writer.getFailed());
+        // El reintento usa la misma conexión del lote
+        assertEquals(1, db.connections);
+    }
+
+    @Test
+    void noConnectionFailsTheWholeBatch() {
+        DataSource down = proxy(DataSource.class, (p, m, args) -> {
+            throw new SQLException("connection refused");
+        });
+        DatabaseBatchWriter writer = new DatabaseBatchWriter(down, 1000, 500, 50, 1000);
+        CompletableFuture<Void> a = writer.insert(SQL, "ana", "uno");
+        CompletableFuture<Void> b = writer.insert(SQL, "ana", "dos");
+        assertThrows(ExecutionException.class, () -> a.get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> b.get(5, TimeUnit.SECONDS));
+        writer.close();
+        assertEquals(2, writer.getFailed());
+    }
+}
@@ -0,0 +1,125 @@
+package com.icesi.chatapp.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Throughput del backend file (HistoryLog + HistoryJournal) según la cantidad
+ * de escritores y de carriles: 1, 2, 4 y la cantidad de núcleos. Cada
+ * escritor anexa a su propia conversación, elegida para que los escritores se
+ * repartan parejo entre los carriles, sin esperar cada futuro (como los save*
+ * del servidor); la medición termina cuando todos los registros están en
+ * disco. Imprime mensajes por segundo y cuántos force hizo el journal.
+ *
+ *   gradle benchmarkHistory [-Pmessages=100000]
+ *
+ * Cada combinación usa un log nuevo en un directorio temporal. No corre con
+ * los tests.
+ */
+public class HistoryLogBenchmark {
+    private static final String PAYLOAD = "hola, ¿nos vemos a las 5? traigo el informe";
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        TreeSet<Integer> counts = new TreeSet<>(List.of(1, 2, 4, cores));
+
+        System.out.println(cores + " núcleos, " + messages + " mensajes por escritor, latencia máxima del lote "
+                + ServerConfig.JOURNAL_MAX_LATENCY_MS + " ms");
+        // Calentamiento: la primera combinación no tiene que pagar la compilación
+        run(2, 2, messages / 4);
+
+        System.out.printf("%6s %9s %12s %8s%n", "lanes", "writers", "msg/s", "force");
+        for (int lanes : counts) {
+            for (int writers : counts) {
+                Result r = run(lanes, writers, messages);
+                System.out.printf("%6d %9d %12.0f %8d%n", lanes, writers, r.perSecond, r.syncs);
+            }
+        }
+    }
+
+    private record Result(double perSecond, long syncs) {
+    }
+
+    private static Result run(int lanes, int writers, int messages) throws Exception {
+        File dir = Files.createTempDirectory("history-bench").toFile();
+        try {
+            File logDir = new File(dir, "log");
+            File legacyDir = new File(dir, "legacy");
+            legacyDir.mkdirs();
+            HistoryLog log = HistoryLog.open(logDir, legacyDir, lanes, ServerConfig.LOG_SEGMENT_BYTES,
+                    Symbols.open(logDir));
+            HistoryJournal journal = new HistoryJournal(log, ServerConfig.JOURNAL_MAX_LATENCY_MS,
+                    ServerConfig.JOURNAL_MAX_BATCH);
+            String[] conversations = conversations(log, writers);
+
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            List<List<CompletableFuture<Void>>> saved = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                String conversation = conversations[w];
+                String sender = "w" + w;
+                List<CompletableFuture<Void>> mine = new ArrayList<>(messages);
+                saved.add(mine);
+                Thread t = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < messages; i++) {
+                        mine.add(journal.append(new HistoryRecord(System.currentTimeMillis(),
+                                HistoryRecord.PRIVATE_TEXT, sender, "u", conversation, PAYLOAD)));
+                    }
+                });
+                t.start();
+                threads.add(t);
+            }
+
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+            for (List<CompletableFuture<Void>> mine : saved) {
+                for (CompletableFuture<Void> f : mine) {
+                    f.join();
+                }
+            }
+            long nanos = System.nanoTime() - begin;
+            journal.close();
+            return new Result((double) writers * messages * 1e9 / nanos, journal.getSyncs());
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    // Una conversación por escritor, repartidas en orden entre las particiones del log
+    private static String[] conversations(HistoryLog log, int writers) {
+        String[] names = new String[writers];
+        int next = 0;
+        for (int i = 0; next < writers; i++) {
+            String name = "w" + i + "_u";
+            if (log.partitionFor(name) == next % log.getPartitionCount()) {
+                names[next++] = name;
+            }
+        }
+        return names;
+    }
+
+    private static void deleteAll(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteAll(c);
+            }
+        }
+        Files.deleteIfExists(f.toPath());
+    }
+}
@@ -0,0 +1,114 @@
+package com.icesi.chatapp.Server;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/*
+ * Mide el camino de un mensaje privado (acción 1) con Gson y con
+ * JsonCodec/JsonLine: leer la petición, armar el push para el destinatario
+ * y la respuesta al remitente, y codificar los dos a frames UTF-8. Imprime
+ * bytes asignados por mensaje (ThreadMXBean del hilo actual) y ns por mensaje.
+ *
+ *   gradle benchmarkJson [-Pmessages=2000000]
+ *
+ * No es JMH: es un main con calentamiento, suficiente para comparar los dos
+ * caminos en la misma máquina. No corre con los tests.
+ */
+public class JsonCodecBenchmark {
+    private static final String REQUEST = "{\"action\":\"1\",\"requestId\":\"42\",\"data\":{\"sender\":\"ana\","
+            + "\"recipient\":\"luis\",\"message\":\"hola, ¿nos vemos a las 5? \\\"traigo\\\" el informe\"}}";
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        byte[][] a = new byte[2][];
+        byte[][] b = new byte[2][];
+        gson(a);
+        codec(b);
+        if (!Arrays.equals(a[0], b[0]) || !Arrays.equals(a[1], b[1])) {
+            throw new AssertionError("Los dos caminos no producen los mismos bytes");
+        }
+
+        // Calentamiento para que los dos caminos queden compilados antes de medir
+        for (int round = 0; round < 3; round++) {
+            run("gson", JsonCodecBenchmark::gson, messages / 4, false);
+            run("codec", JsonCodecBenchmark::codec, messages / 4, false);
+        }
+        run("gson", JsonCodecBenchmark::gson, messages, true);
+        run("codec", JsonCodecBenchmark::codec, messages, true);
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void run(String name, Path path, int messages, boolean print) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        byte[][] frames = new byte[2][];
+        long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            path.frames(frames);
+            sink += frames[0].length + frames[1].length;
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+        if (print) {
+            System.out.printf("%-6s %8.0f B/mensaje %8.0f ns/mensaje%n",
+                    name, (double) bytes / messages, (double) nanos / messages);
+        }
+    }
+
+    private interface Path {
+        void frames(byte[][] out);
+    }
+
+    // Deja en out[0] el push y en out[1] la respuesta
+    private static void gson(byte[][] out) {
+        JsonObject request = JsonParser.parseString(REQUEST).getAsJsonObject();
+        JsonObject data = request.getAsJsonObject("data");
+        String sender = data.get("sender").getAsString();
+        String recipient = data.get("recipient").getAsString();
+        String message = data.get("message").getAsString();
+
+        JsonObject push = new JsonObject();
+        push.addProperty("type", "privateMessage");
+        push.addProperty("sender", sender);
+        push.addProperty("recipient", recipient);
+        push.addProperty("message", message);
+
+        JsonObject response = new JsonObject();
+        response.addProperty("status", "ok");
+        response.addProperty("message", "Private message sent");
+        response.addProperty("sender", sender);
+        response.add("requestId", request.get("requestId"));
+
+        out[0] = ClientConnection.frame(push.toString());
+        out[1] = ClientConnection.frame(response.toString());
+    }
+
+    private static void codec(byte[][] out) {
+        JsonCodec.Request request = JsonCodec.decode(REQUEST);
+        JsonCodec.Fields data = request.data();
+        String sender = data.getString("sender");
+        String recipient = data.getString("recipient");
+        String message = data.getString("message");
+
+        JsonLine push = new JsonLine();
+        push.addProperty("type", "privateMessage");
+        push.addProperty("sender", sender);
+        push.addProperty("recipient", recipient);
+        push.addProperty("message", message);
+
+        JsonLine response = new JsonLine();
+        response.addProperty("status", "ok");
+        response.addProperty("message", "Private message sent");
+        response.addProperty("sender", sender);
+        response.addRaw("requestId", request.requestId());
+
+        out[0] = push.frame();
+        out[1] = response.frame();
+    }
+}
@@ -0,0 +1,200 @@
+package com.icesi.chatapp.Server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ * Escritores concurrentes sobre el backend file (log + journal por carriles):
+ * varios hilos en la misma conversación y otros cada uno en la suya. No se
+ * pierde ninguna línea y en cada conversación los mensajes de un mismo hilo
+ * quedan en el orden en que los mandó.
+ */
+class LogHistoryStoreTest {
+    private static final int SHARED_WRITERS = 4;
+    private static final int OWN_WRITERS = 4;
+    private static final int MESSAGES = 2000;
+    private static final String SHARED = "group_g";
+
+    @TempDir
+    Path dir;
+
+    private LogHistoryStore open() throws IOException {
+        File log = dir.resolve("chat_log").toFile();
+        return new LogHistoryStore(log, dir.resolve("chat_history").toFile(), Symbols.open(log));
+    }
+
+    private static String ownConversation(int writer) {
+        return "own" + writer + "_u";
+    }
+
+    @Test
+    void concurrentWritersKeepOrderPerConversationAndLoseNothing() throws Exception {
+        LogHistoryStore store = open();
+        ExecutorService pool = Executors.newFixedThreadPool(SHARED_WRITERS + OWN_WRITERS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<CompletableFuture<Void>>>> writers = new ArrayList<>();
+        for (int w = 0; w < SHARED_WRITERS + OWN_WRITERS; w++) {
+            int writer = w;
+            writers.add(pool.submit(() -> {
+                start.await();
+                List<CompletableFuture<Void>> saved = new ArrayList<>(MESSAGES);
+                for (int i = 0; i < MESSAGES; i++) {
+                    saved.add(store.append(writer < SHARED_WRITERS
+                            ? new HistoryRecord(System.currentTimeMillis(), HistoryRecord.GROUP_TEXT,
+                                    "w" + writer, "g", SHARED, writer + ":" + i)
+                            : new HistoryRecord(System.currentTimeMillis(), HistoryRecord.PRIVATE_TEXT,
+                                    "w" + writer, "u", ownConversation(writer), writer + ":" + i)));
+                }
+                return saved;
+            }));
+        }
+        start.countDown();
+        for (Future<List<CompletableFuture<Void>>> writer : writers) {
+            for (CompletableFuture<Void> saved : writer.get(60, TimeUnit.SECONDS)) {
+                saved.get(60, TimeUnit.SECONDS);
+            }
+        }
+        pool.shutdown();
+
+        assertHistory(store);
+        store.close();
+
+        // Lo mismo después de reabrir: todo quedó en disco
+        LogHistoryStore reopened = open();
+        assertHistory(reopened);
+        reopened.close();
+    }
+
+    /*
+     * Sin la caché delante, una lectura justo después de un append tiene que
+     * verlo aunque otros hilos estén escribiendo la misma conversación. Cada
+     * escritor lee desde donde quedó su lectura anterior.
+     */
+    @Test
+    void readSeesItsOwnWriteWhileOthersAppend() throws Exception {
+        LogHistoryStore store = open();
+        int rounds = 200;
+        ExecutorService pool = Executors.newFixedThreadPool(SHARED_WRITERS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int w = 0; w < SHARED_WRITERS; w++) {
+            int writer = w;
+            writers.add(pool.submit(() -> {
+                start.await();
+                long seen = 0;
+                for (int i = 0; i < rounds; i++) {
+                    String payload = writer + ":" + i;
+                    store.append(new HistoryRecord(System.currentTimeMillis(), HistoryRecord.GROUP_TEXT,
+                            "w" + writer, "g", SHARED, payload));
+                    HistoryPage page = store.read(SHARED, new HistoryQuery(null, seen - 1, HistoryQuery.NO_LIMIT));
+                    assertTrue(page.messages().stream().anyMatch(line -> line.endsWith(" " + payload)),
+                            "la lectura no vio " + payload);
+                    seen = page.total();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> writer : writers) {
+            writer.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        store.close();
+    }
+
+    /*
+     * Con segmentos chicos una conversación queda repartida en muchos
+     * segmentos cerrados. Al reabrir se leen sus .idx en vez de recorrerlos y
+     * todo se lee igual, también un borrado en el medio; un .idx que falta o
+     * está roto se reconstruye recorriendo su segmento.
+     */
+    @Test
+    void reopenReadsSealedSegmentsFromTheirIndexes() throws Exception {
+        File logDir = dir.resolve("chat_log").toFile();
+        File legacyDir = dir.resolve("chat_history").toFile();
+        int segmentBytes = 4096;
+        HistoryLog log = HistoryLog.open(logDir, legacyDir, 2, segmentBytes, Symbols.open(logDir));
+        HistoryJournal journal = new HistoryJournal(log, 0, 64);
+        String[] conversations = {"a_b", "c_d", "group_g"};
+        for (int i = 0; i < 600; i++) {
+            String conversation = conversations[i % conversations.length];
+            journal.append(new HistoryRecord(System.currentTimeMillis(), HistoryRecord.PRIVATE_TEXT,
+                    "a", "b", conversation, conversation + ":" + i + " " + "x".repeat(60)));
+            if (i == 300) {
+                journal.append(new HistoryRecord(System.currentTimeMillis(), HistoryRecord.CLEAR,
+                        "", "", "c_d", ""));
+            }
+        }
+        journal.awaitPending("a_b");
+        journal.awaitPending("c_d");
+        journal.awaitPending("group_g");
+        List<List<String>> before = new ArrayList<>();
+        for (String conversation : conversations) {
+            before.add(log.read(conversation, HistoryQuery.all()).messages());
+        }
+        journal.close();
+        assertEquals(200, before.get(0).size());
+        assertTrue(before.get(1).size() < 200, "el borrado no se aplicó");
+        assertTrue(log.getSegmentCount() > 10, "los segmentos no son chicos");
+
+        File index = dir.resolve("chat_log").resolve("p-" + log.partitionFor("a_b")).resolve("0000000001.idx").toFile();
+        assertTrue(index.exists());
+        for (int round = 0; round < 3; round++) {
+            if (round == 1) {
+                assertTrue(index.delete());
+            } else if (round == 2) {
+                Files.write(index.toPath(), new byte[]{1, 2, 3});
+            }
+            HistoryLog reopened = HistoryLog.open(logDir, legacyDir, 2, segmentBytes, Symbols.open(logDir));
+            for (int c = 0; c < conversations.length; c++) {
+                assertEquals(before.get(c), reopened.read(conversations[c], HistoryQuery.all()).messages());
+                assertEquals(before.get(c).subList(5, 15),
+                        reopened.read(conversations[c], new HistoryQuery(null, 4L, 10)).messages());
+            }
+            assertTrue(index.length() > 3, "no se reconstruyó el .idx");
+        }
+    }
+
+    private static void assertHistory(HistoryStore store) {
+        List<String> shared = store.read(SHARED, HistoryQuery.all()).messages();
+        assertEquals(SHARED_WRITERS * MESSAGES, shared.size());
+        assertOrdered(shared, 0, SHARED_WRITERS);
+
+        for (int w = SHARED_WRITERS; w < SHARED_WRITERS + OWN_WRITERS; w++) {
+            List<String> own = store.read(ownConversation(w), HistoryQuery.all()).messages();
+            assertEquals(MESSAGES, own.size());
+            assertOrdered(own, w, w + 1);
+        }
+    }
+
+    // Cada línea termina en "writer:i"; por escritor los i tienen que ser 0, 1, 2, ... sin huecos
+    private static void assertOrdered(List<String> lines, int firstWriter, int endWriter) {
+        int[] next = new int[endWriter];
+        for (String line : lines) {
+            String[] payload = line.substring(line.lastIndexOf(' ') + 1).split(":");
+            int writer = Integer.parseInt(payload[0]);
+            int i = Integer.parseInt(payload[1]);
+            assertTrue(writer >= firstWriter && writer < endWriter, "escritor inesperado en " + line);
+            assertEquals(next[writer], i, "orden del escritor " + writer);
+            next[writer]++;
+        }
+        for (int w = firstWriter; w < endWriter; w++) {
+            assertEquals(MESSAGES, next[w]);
+        }
+    }
+}
@@ -19,6 +19,10 @@ export default function ChatApp(username) {
     let usersListElement = null;
     let groupsListElement = null;
 
+    // Versiones de las listas que ya tenemos (0 = pedir la lista completa)
+    let usersVersion = 0;
+    let groupsVersion = 0;
+
     async function loadInitialData() {
         try {
             console.log('Loading initial data...');
@@ -72,6 +76,34 @@ export default function ChatApp(username) {
     }
 
 
+    // Trae solo lo que cambió en usuarios y grupos desde la última versión
+    async function syncLists() {
+        const u = await ChatService.getConnectedUsers(usersVersion);
+        if (u.full) {
+            users = (u.users || []).filter(x => x !== username);
+        } else {
+            users = users.filter(x => !u.offline.includes(x));
+            u.online.forEach(x => { if (x !== username && !users.includes(x)) users.push(x); });
+        }
+        usersVersion = u.version;
+
+        const g = await ChatService.getAllGroups(groupsVersion);
+        const changed = (g.groups || []).map(x => ({ name: x.name, members: x.members || [] }));
+        if (g.full) {
+            groups = changed;
+        } else {
+            const names = new Set([...changed.map(x => x.name), ...g.deleted]);
+            groups = groups.filter(x => !names.has(x.name)).concat(changed);
+        }
+        groupsVersion = g.version;
+
+        if (u.full || g.full || u.online.length || u.offline.length || changed.length || g.deleted.length) {
+            renderUsersList();
+            renderGroupsList();
+        }
+    }
+
+
     // ============ SIDEBAR CREATION ============
     function createSidebar() {
         const sidebar = document.createElement('div');
@@ -169,6 +201,40 @@ export default function ChatApp(username) {
 
     loadInitialData();
 
+    // Mensajes en vivo: si son del chat abierto se agregan; los demás se ven al abrir el chat (historial)
+    const events = ChatService.subscribe(username, (push) => {
+        let key;
+        if (push.type === 'privateMessage' || (push.type === 'voiceNote' && push.recipient)) {
+            key = `private_${push.sender}`;
+        } else if (push.type === 'groupMessage' || push.type === 'voiceNote') {
+            key = `group_${push.group}`;
+        } else {
+            return;
+        }
+        if (!selectedChat || key !== `${chatType}_${selectedChat}`) return;
+
+        messages.push({
+            sender: push.sender,
+            content: push.type === 'voiceNote' ? `[AUDIO: ${push.fileName}]` : push.message,
+            timestamp: new Date().toLocaleTimeString()
+        });
+        messageCache[key] = [...messages];
+        if (currentView === 'chat') updateMessagesContainer(messages);
+    });
+
+    // Heartbeat: el servidor vence las sesiones inactivas; si ya venció, se registra de nuevo
+    setInterval(async () => {
+        try {
+            const r = await ChatService.heartbeat();
+            if (r.status !== 'ok') {
+                await ChatService.registerUser(username);
+            }
+        } catch (err) {
+            console.error('Error sending heartbeat:', err);
+        }
+        syncLists().catch(err => console.error('Error syncing lists:', err));
+    }, 30000);
+
     // Initial render DESPUÉS de crear los elementos
     renderUsersList();
     renderGroupsList();
@@ -644,6 +710,7 @@ export default function ChatApp(username) {
 
 
     function handleLogout() {
+        events.close();
         sessionStorage.removeItem('username');
         document.getElementById('app').innerHTML = '';
         // Dynamically import Home to avoid circular dependency
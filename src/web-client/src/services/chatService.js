@@ -19,6 +19,22 @@ export const ChatService = {
         return await res.json();
     },
 
+    // Pushes en vivo para username (mensajes privados, de grupo y notas de voz); onPush recibe cada uno
+    subscribe: (username, onPush) => {
+        const events = new EventSource(`${API_URL}/events?username=${encodeURIComponent(username)}`);
+        events.onmessage = (e) => onPush(JSON.parse(e.data));
+        return events;
+    },
+
+    heartbeat: async () => {
+        const res = await fetch(`${API_URL}/heartbeat`, {
+            method: 'POST',
+            headers: { 'Content-Type': 'application/json' },
+            body: JSON.stringify({ sessionId: sessionStorage.getItem('sessionId') })
+        });
+        return await res.json();
+    },
+
     deleteGroup: async (groupName) => {
         const res = await fetch(`${API_URL}/groups/${encodeURIComponent(groupName)}`,{
             method: 'DELETE',
@@ -27,9 +43,10 @@ export const ChatService = {
         return await res.json();
     },
 
-    getConnectedUsers: async () => {
+    // Con since devuelve { version, full, ... } con solo los cambios desde esa versión
+    getConnectedUsers: async (since) => {
         try {
-            const res = await fetch(`${API_URL}/users`);
+            const res = await fetch(since === undefined ? `${API_URL}/users` : `${API_URL}/users?since=${since}`);
             if (!res.ok) throw new Error(`HTTP error! status: ${res.status}`);
             return await res.json();
         } catch (err) {
@@ -38,9 +55,9 @@ export const ChatService = {
         }
     },
 
-    getAllGroups: async () => {
+    getAllGroups: async (since) => {
         try {
-            const res = await fetch(`${API_URL}/groups`);
+            const res = await fetch(since === undefined ? `${API_URL}/groups` : `${API_URL}/groups?since=${since}`);
             if (!res.ok) throw new Error(`HTTP error! status: ${res.status}`);
             return await res.json();
         } catch (err) {